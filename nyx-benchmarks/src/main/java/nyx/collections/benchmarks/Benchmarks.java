@@ -0,0 +1,41 @@
+package nyx.collections.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count, so every benchmark is measured
+ * both single-threaded and under contention. The thread counts are set by
+ * the {@code threads} system property (1 and 4 by default), the first
+ * argument selects the benchmarks by a regular expression:
+ *
+ * <pre>
+ * java -Dthreads=1,2,8 -jar target/benchmarks.jar 'Map.*'
+ * </pre>
+ *
+ * The results of every run are saved in {@code nyx-<threads>-threads.json}.
+ * For finer control the JMH launcher is available as well:
+ * {@code java -cp target/benchmarks.jar org.openjdk.jmh.Main -h}.
+ *
+ * @author varlou@gmail.com
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : Benchmarks.class.getPackage().getName() + ".*";
+		for (String threads : System.getProperty("threads", "1,4").split(",")) {
+			int t = Integer.parseInt(threads.trim());
+			Options opt = new OptionsBuilder()
+					.include(include)
+					.threads(t)
+					.result("nyx-" + t + "-threads.json")
+					.resultFormat(ResultFormatType.JSON)
+					.build();
+			new Runner(opt).run();
+		}
+	}
+
+}
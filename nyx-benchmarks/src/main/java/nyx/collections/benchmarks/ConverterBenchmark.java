@@ -0,0 +1,71 @@
+package nyx.collections.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import nyx.collections.converter.ClassDictionary;
+import nyx.collections.converter.SerialConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of a string and of a small object by the
+ * {@link SerialConverter}, with and without a shared {@link ClassDictionary}.
+ *
+ * @author varlou@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConverterBenchmark {
+
+	@Param({ "string", "item" })
+	String element;
+
+	@Param({ "false", "true" })
+	boolean dictionary;
+
+	private SerialConverter<Object> converter;
+	private Object value;
+	private byte[] encoded;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setUp() {
+		converter = dictionary ? new SerialConverter<Object>(new ClassDictionary()) : new SerialConverter<Object>();
+		value = element.equals("string") ? Values.string(42) : Values.item(42);
+		encoded = converter.encode(value);
+		direct = ByteBuffer.allocateDirect(encoded.length);
+		direct.put(encoded).clear();
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return converter.encode(value);
+	}
+
+	@Benchmark
+	public Object decode() {
+		return converter.decode(encoded);
+	}
+
+	/** Decodes straight from a direct buffer as the storage does. */
+	@Benchmark
+	public Object decodeInPlace() {
+		return converter.decode(direct, 0, encoded.length);
+	}
+
+}
@@ -0,0 +1,87 @@
+package nyx.collections.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import nyx.collections.NyxList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link NyxList} against a synchronized {@link ArrayList}, both are safe to
+ * share between the benchmark threads.
+ *
+ * @author varlou@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark {
+
+	@Param({ "1000", "100000" })
+	int size;
+
+	@Param({ "nyx", "java" })
+	String impl;
+
+	private List<String> list;
+
+	@Setup
+	public void setUp() {
+		list = impl.equals("nyx") ? new NyxList<String>() : Collections.synchronizedList(new ArrayList<String>());
+		for (int i = 0; i < size; i++) list.add(Values.string(i));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (list instanceof AutoCloseable) ((AutoCloseable) list).close();
+	}
+
+	@Benchmark
+	public String get() {
+		return list.get(ThreadLocalRandom.current().nextInt(size));
+	}
+
+	@Benchmark
+	public String put() {
+		int i = ThreadLocalRandom.current().nextInt(size);
+		return list.set(i, Values.string(i));
+	}
+
+	@Benchmark
+	public void iterate(Blackhole bh) {
+		for (String s : list) bh.consume(s);
+	}
+
+	/**
+	 * Appends an element and removes the last one, the size stays the same.
+	 * Removals are serialized, so another thread can not remove the last
+	 * element in between.
+	 */
+	@Benchmark
+	public String addRemove() {
+		list.add(Values.string(size));
+		synchronized (this) {
+			return list.remove(list.size() - 1);
+		}
+	}
+
+}
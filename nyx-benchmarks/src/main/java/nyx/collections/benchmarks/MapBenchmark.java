@@ -0,0 +1,82 @@
+package nyx.collections.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import nyx.collections.NyxMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link NyxMap} against a synchronized {@link HashMap}.
+ *
+ * @author varlou@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapBenchmark {
+
+	@Param({ "1000", "100000" })
+	int size;
+
+	@Param({ "nyx", "java" })
+	String impl;
+
+	private Map<Integer, String> map;
+
+	@Setup
+	public void setUp() {
+		map = impl.equals("nyx") ? new NyxMap<Integer, String>() : Collections.synchronizedMap(new HashMap<Integer, String>());
+		for (int i = 0; i < size; i++) map.put(i, Values.string(i));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (map instanceof AutoCloseable) ((AutoCloseable) map).close();
+	}
+
+	@Benchmark
+	public String get() {
+		return map.get(ThreadLocalRandom.current().nextInt(size));
+	}
+
+	@Benchmark
+	public String put() {
+		int i = ThreadLocalRandom.current().nextInt(size);
+		return map.put(i, Values.string(i));
+	}
+
+	@Benchmark
+	public void iterate(Blackhole bh) {
+		for (Map.Entry<Integer, String> e : map.entrySet()) bh.consume(e.getValue());
+	}
+
+	/** Removes an entry and puts it back, the size stays about the same. */
+	@Benchmark
+	public String removePut() {
+		int i = ThreadLocalRandom.current().nextInt(size);
+		String removed = map.remove(i);
+		map.put(i, Values.string(i));
+		return removed;
+	}
+
+}
@@ -0,0 +1,72 @@
+package nyx.collections.benchmarks;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import nyx.collections.NyxQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link NyxQueue} against a {@link ConcurrentLinkedQueue}.
+ *
+ * @author varlou@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+
+	@Param({ "1000", "100000" })
+	int size;
+
+	@Param({ "nyx", "java" })
+	String impl;
+
+	private Queue<String> queue;
+
+	@Setup
+	public void setUp() {
+		queue = impl.equals("nyx") ? new NyxQueue<String>() : new ConcurrentLinkedQueue<String>();
+		for (int i = 0; i < size; i++) queue.offer(Values.string(i));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (queue instanceof AutoCloseable) ((AutoCloseable) queue).close();
+	}
+
+	@Benchmark
+	public String peek() {
+		return queue.peek();
+	}
+
+	/** Adds an element to the tail and takes one from the head, the size stays the same. */
+	@Benchmark
+	public String offerPoll() {
+		queue.offer(Values.string(size));
+		return queue.poll();
+	}
+
+	@Benchmark
+	public void iterate(Blackhole bh) {
+		for (String s : queue) bh.consume(s);
+	}
+
+}
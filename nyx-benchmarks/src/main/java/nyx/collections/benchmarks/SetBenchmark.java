@@ -0,0 +1,82 @@
+package nyx.collections.benchmarks;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import nyx.collections.NyxSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link NyxSet} against a synchronized {@link HashSet}.
+ *
+ * @author varlou@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetBenchmark {
+
+	@Param({ "1000", "100000" })
+	int size;
+
+	@Param({ "nyx", "java" })
+	String impl;
+
+	private Set<String> set;
+
+	@Setup
+	public void setUp() {
+		set = impl.equals("nyx") ? new NyxSet<String>() : Collections.synchronizedSet(new HashSet<String>());
+		for (int i = 0; i < size; i++) set.add(Values.string(i));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (set instanceof AutoCloseable) ((AutoCloseable) set).close();
+	}
+
+	@Benchmark
+	public boolean contains() {
+		return set.contains(Values.string(ThreadLocalRandom.current().nextInt(size)));
+	}
+
+	/** Adds an element which is already there. */
+	@Benchmark
+	public boolean put() {
+		return set.add(Values.string(ThreadLocalRandom.current().nextInt(size)));
+	}
+
+	@Benchmark
+	public void iterate(Blackhole bh) {
+		for (String s : set) bh.consume(s);
+	}
+
+	/** Removes an element and adds it back, the size stays about the same. */
+	@Benchmark
+	public boolean removeAdd() {
+		String s = Values.string(ThreadLocalRandom.current().nextInt(size));
+		boolean removed = set.remove(s);
+		set.add(s);
+		return removed;
+	}
+
+}
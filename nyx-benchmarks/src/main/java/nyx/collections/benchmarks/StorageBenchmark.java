@@ -0,0 +1,111 @@
+package nyx.collections.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import nyx.collections.storage.ElasticByteStorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw puts and gets of byte arrays in an {@link ElasticByteStorage}, no
+ * serialization and no on-heap tier involved.
+ *
+ * @author varlou@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+
+	@Param({ "1000", "100000" })
+	int size;
+
+	@Param({ "64", "1024" })
+	int valueSize;
+
+	private ElasticByteStorage<Integer> storage;
+	private byte[] value;
+
+	@Setup
+	public void setUp() {
+		storage = ElasticByteStorage.withIntKeys();
+		value = new byte[valueSize];
+		for (int i = 0; i < size; i++) storage.put(i, value);
+	}
+
+	@TearDown
+	public void tearDown() {
+		storage.close();
+	}
+
+	@Benchmark
+	public byte[] get() {
+		return storage.get(ThreadLocalRandom.current().nextInt(size));
+	}
+
+	/** Overwrites an element, {@code put} rejects the keys which are already there. */
+	@Benchmark
+	public byte[] update() {
+		return storage.update(ThreadLocalRandom.current().nextInt(size), value);
+	}
+
+	/**
+	 * Removes an element and puts it back, the size stays about the same.
+	 * The element is put back by {@code update}, another thread may have put
+	 * it back already.
+	 */
+	@Benchmark
+	public byte[] removePut() {
+		int i = ThreadLocalRandom.current().nextInt(size);
+		storage.remove(i);
+		return storage.update(i, value);
+	}
+
+	/**
+	 * Defragmentation of a storage two thirds of which are removed, the
+	 * work {@link ElasticByteStorage#purge()} schedules in the background.
+	 */
+	@State(Scope.Thread)
+	public static class Fragmented {
+		ElasticByteStorage<Integer> storage;
+
+		@Setup(Level.Invocation)
+		public void setUp(StorageBenchmark b) {
+			storage = ElasticByteStorage.withIntKeys();
+			for (int i = 0; i < b.size; i++) storage.put(i, b.value);
+			for (int i = 0; i < b.size; i++) if (i % 3 != 0) storage.remove(i);
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown() {
+			storage.close();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 5)
+	@Measurement(iterations = 20)
+	public ElasticByteStorage<Integer> purge(Fragmented f) {
+		f.storage.compact();
+		return f.storage;
+	}
+
+}
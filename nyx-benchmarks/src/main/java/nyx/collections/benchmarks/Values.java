@@ -0,0 +1,37 @@
+package nyx.collections.benchmarks;
+
+import java.io.Serializable;
+
+/**
+ * Elements stored by the benchmarks.
+ *
+ * @author varlou@gmail.com
+ */
+final class Values {
+
+	private Values() { }
+
+	/** Returns a string of about 32 characters which depends on a given number. */
+	static String string(int i) {
+		return "nyx-benchmark-value-" + (1_000_000_000 + i);
+	}
+
+	/** Returns an object of a few fields which depends on a given number. */
+	static Item item(int i) {
+		return new Item(i, string(i), new long[] { i, -i, i * 31L });
+	}
+
+	static class Item implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final int id;
+		final String name;
+		final long[] values;
+
+		Item(int id, String name, long[] values) {
+			this.id = id;
+			this.name = name;
+			this.values = values;
+		}
+	}
+
+}
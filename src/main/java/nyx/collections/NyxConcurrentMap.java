@@ -0,0 +1,90 @@
+package nyx.collections;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nyx.collections.pool.ObjectPool;
+import nyx.collections.storage.ElasticByteStorage;
+
+/**
+ * Hybrid (on-heap + off-heap) implementation of Java
+ * {@link java.util.concurrent.ConcurrentMap} collection.
+ * <p>
+ * Entries are kept the same way as by {@link NyxMap}, but instead of a single
+ * lock the keys are spread over lock stripes, so an atomic operation on one
+ * key does not hold up the writers of other keys. Writes still do not run in
+ * parallel: new entries pass through the single write-behind queue of the
+ * {@link ObjectPool} and its one relocation task, and every write ends in an
+ * index update under the write lock of the storage. Reads take no lock at
+ * all, they are served by the heap tier or by the optimistic reads of the
+ * {@link ElasticByteStorage}.
+ * <p>
+ * Atomic operations such as {@link #putIfAbsent}, {@link #replace} and
+ * {@link #computeIfAbsent} hold the stripe of their key, so the remapping
+ * functions are called at most once and must not modify this map. Iterators
+ * are weakly consistent, {@link #size()} is exact only when the map is not
+ * being modified.
+ *
+ * @author varlou@gmail.com
+ */
+public class NyxConcurrentMap<K, V> extends NyxMap<K, V> implements ConcurrentMap<K, V> {
+
+	/** Default number of lock stripes, four per processor. */
+	public static final int CONCURRENCY = Runtime.getRuntime().availableProcessors() * 4;
+
+	private final Lock[] stripes;
+
+	public NyxConcurrentMap() {
+		this(16);
+	}
+
+	public NyxConcurrentMap(int capacity) {
+		this(capacity, CONCURRENCY);
+	}
+
+	/**
+	 * @param concurrency the expected number of concurrent writers, rounded up
+	 *            to a power of two lock stripes
+	 */
+	public NyxConcurrentMap(int capacity, int concurrency) {
+		this(capacity, ElasticByteStorage.MAX_CHUNK, 1, concurrency);
+	}
+
+	/**
+	 * @param memSize the maximum size of an off-heap chunk in bytes, see
+	 *            {@link NyxMap#NyxMap(int, int, int)}
+	 * @param encoders the number of threads serializing new entries in
+	 *            parallel, see {@link ObjectPool}
+	 * @param concurrency the expected number of concurrent writers, rounded up
+	 *            to a power of two lock stripes
+	 */
+	public NyxConcurrentMap(int capacity, int memSize, int encoders, int concurrency) {
+		super(capacity, memSize, encoders);
+		if (concurrency < 1) throw new IllegalArgumentException();
+		this.stripes = new Lock[concurrency == 1 ? 1 : Integer.highestOneBit(concurrency - 1) << 1];
+		for (int i = 0; i < stripes.length; i++) stripes[i] = new ReentrantLock();
+	}
+
+	/** Reads are not locked. */
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean containsKey(Object key) {
+		return storage().containsKey((K) key);
+	}
+
+	/** Reads are not locked. */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		return storage().get((K) key);
+	}
+
+	/** Returns the stripe of a given key. */
+	@Override
+	Lock writeLock(Object key) {
+		int h = key == null ? 0 : key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+
+}
@@ -3,68 +3,205 @@ package nyx.collections;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import nyx.collections.pool.ObjectPool;
 import nyx.collections.pool.ObjectPool.Type;
+import nyx.collections.pool.PoolMetrics;
+import nyx.collections.storage.DurableByteStorage;
 import nyx.collections.storage.ElasticByteStorage;
 import nyx.collections.storage.Storage;
+import nyx.collections.vm.LeakGuard;
 
 /**
  * Hybrid (on-heap + off-heap) implementation of Java {@link java.util.List} collection.
  * 
  * @author varlou@gmail.com
  */
-public class NyxList<E> implements List<E>, Serializable {
+public class NyxList<E> implements List<E>, AutoCloseable, Serializable {
 
-	private static final long serialVersionUID = 2004160303284077450L;
+	private static final long serialVersionUID = 5746268425872927588L;
+	/* size of the first off-heap chunk */
+	static final int MIN_CHUNK = Const._1Kb * 4;
 
-	private Storage<Integer, E> storage;
+	// int keys are read without boxing
+	private ObjectPool<Integer, E> storage;
 
-	private List<Integer> elements;
+	// storage ids of the elements in the list order
+	private int[] elements;
 	private int size = 0;
+	// ids are reused, so the storage keys stay dense
+	private int nextId = 0;
+	private int[] freeIds = new int[0];
+	private int freeCount = 0;
 
 	// counts update and delete operations
 	private volatile int modCount = 0;
 
 	// main RW lock guarding all access
 	private transient ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// not null if this list is persisted in a directory
+	private transient DurableByteStorage<Integer> durable;
+	// closes the storage if the list is not closed
+	private transient LeakGuard guard;
 	
 	/**
-	 * Creates NyxList with an initial capacity of 16 elements and 4Kb.
+	 * Creates NyxList with an initial capacity of 16 elements and 4Kb. The
+	 * off-heap chunks grow up to {@link ElasticByteStorage#MAX_CHUNK}.
 	 */
 	public NyxList() {
-		this(16, Const._1Kb * 4, Type.WEAK);
+		this(16, ElasticByteStorage.MAX_CHUNK, Type.WEAK);
 	}
 
+	/**
+	 * @param memSize the maximum size of an off-heap chunk in bytes, chunks
+	 *            double in size from 4Kb up to it as the list grows, at most
+	 *            {@link ElasticByteStorage#MAX_CHUNK}
+	 */
 	public NyxList(int capacity, int memSize, Type poolType) {
+		this(capacity, memSize, poolType, 1);
+	}
+
+	/**
+	 * @param encoders the number of threads serializing new elements in
+	 *            parallel, see {@link ObjectPool}
+	 */
+	public NyxList(int capacity, int memSize, Type poolType, int encoders) {
 		if (capacity < 1)
 			throw new IllegalArgumentException();
-		this.storage = new ObjectPool<Integer,E>(poolType, new ElasticByteStorage<Integer>());
-		this.elements = new ArrayList<>(capacity);
+		this.storage = new ObjectPool<Integer,E>(poolType, ElasticByteStorage.withIntKeys(MIN_CHUNK, maxChunk(memSize)), encoders);
+		this.elements = new int[capacity];
+		this.guard = LeakGuard.watch(this, storage);
+		expose(getClass().getSimpleName());
 	}
 	
+	/**
+	 * Creates NyxList which keeps its elements in a given off-heap storage,
+	 * e.g. {@link nyx.collections.storage.MappedByteStorage}.
+	 */
+	public NyxList(Storage<Integer, byte[]> offHeapStorage, Type poolType) {
+		this.storage = new ObjectPool<Integer,E>(poolType, offHeapStorage);
+		this.elements = new int[16];
+		this.guard = LeakGuard.watch(this, storage);
+		expose(getClass().getSimpleName());
+	}
+
 	public NyxList(Collection<? extends E> copy) {
-		this(copy.size(), Const._1Kb * 4, Type.WEAK);
+		this(copy.size(), ElasticByteStorage.MAX_CHUNK, Type.WEAK);
 		addAll(copy);
 	}
 
+	/** Clamps a requested chunk size to the sizes the storage supports. */
+	static int maxChunk(int memSize) {
+		return Math.max(MIN_CHUNK, Math.min(memSize, ElasticByteStorage.MAX_CHUNK));
+	}
+
+	/**
+	 * Opens NyxList persisted in a given directory. A new list is created if
+	 * the directory does not contain one.
+	 * <p>
+	 * The order of elements is saved when the list is closed. A list which
+	 * was not closed properly gets its elements in the order they were
+	 * created.
+	 *
+	 * @see DurableByteStorage
+	 */
+	public static <E> NyxList<E> open(Path dir) throws IOException {
+		DurableByteStorage<Integer> durable = DurableByteStorage.withIntKeys(dir);
+		NyxList<E> list = new NyxList<>(durable, Type.WEAK);
+		list.durable = durable;
+		list.restoreOrder();
+		return list;
+	}
+
+	private void restoreOrder() {
+		Set<Integer> keys = durable.keySet();
+		byte[] attachment = durable.attachment();
+		BitSet used = new BitSet();
+		int count = 0;
+		int[] order = new int[Math.max(keys.size(), 16)];
+		if (attachment != null) {
+			ByteBuffer buf = ByteBuffer.wrap(attachment);
+			for (int i = buf.getInt(); i > 0 && count < order.length; i--) {
+				int id = buf.getInt();
+				if (used.get(id) || !keys.contains(id)) break;
+				used.set(id);
+				order[count++] = id;
+			}
+		}
+		if (count != keys.size()) {
+			used.clear();
+			for (Integer id : keys) used.set(id);
+			count = 0;
+			for (int id = used.nextSetBit(0); id >= 0; id = used.nextSetBit(id + 1)) order[count++] = id;
+		}
+		this.elements = order;
+		this.size = count;
+		this.nextId = used.length();
+		for (int id = used.nextClearBit(0); id < nextId; id = used.nextClearBit(id + 1)) releaseId(id);
+	}
+
+	/**
+	 * Returns the live metrics of this list, which are also registered as an
+	 * MBean, see {@link nyx.collections.metrics.Metrics}.
+	 */
+	public PoolMetrics metrics() {
+		return storage.metrics();
+	}
+
+	/** Registers the metrics of this list as the MBean of a given type. */
+	void expose(String type) {
+		storage.expose(type);
+	}
+
+	/**
+	 * Releases resources of this list, it can no longer be used afterwards. A
+	 * list opened with {@link #open(Path)} is saved and can be reopened.
+	 */
+	@Override
+	public void close() {
+		try {
+			lock.writeLock().lock();
+			if (durable != null) {
+				ByteBuffer order = ByteBuffer.allocate(4 + size * 4);
+				order.putInt(size);
+				for (int i = 0; i < size; i++) order.putInt(elements[i]);
+				durable.attach(order.array());
+			}
+			storage.close();
+			guard.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
 	@Override
 	public int size() {
-		return storage.size();
+		try {
+			lock.readLock().lock();
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return storage.size() == 0;
+		return size() == 0;
 	}
 
 	@Override
@@ -72,7 +209,7 @@ public class NyxList<E> implements List<E>, Serializable {
 		Iterator<E> it = iterator();
 		while (it.hasNext()) {
 			E next = it.next();
-			if (next == obj || next.equals(obj))
+			if (next == obj || next != null && next.equals(obj))
 				return true;
 		}
 		return false;
@@ -82,9 +219,9 @@ public class NyxList<E> implements List<E>, Serializable {
 	public Iterator<E> iterator() {
 		return new Iterator<E>() {
 			private int iCursor = 0;
-			@Override public boolean hasNext() { return iCursor <= NyxList.this.elements.size() - 1; }
+			@Override public boolean hasNext() { return iCursor < size(); }
 			@Override public E next() { return get(iCursor++); }
-			@Override public void remove() { NyxList.this.remove(get(iCursor)); }
+			@Override public void remove() { NyxList.this.remove(--iCursor); }
 		};
 	}
 
@@ -115,13 +252,7 @@ public class NyxList<E> implements List<E>, Serializable {
 
 	@Override
 	public boolean add(E e) {
-		try {
-			lock.writeLock().lock();
-			storage.put(size, e);
-			this.elements.add(size++);
-		} finally {
-			lock.writeLock().unlock();
-		}
+		add(size(), e);
 		return e != null ? true : false;
 	}
 
@@ -129,32 +260,40 @@ public class NyxList<E> implements List<E>, Serializable {
 	public void add(int index, E element) {
 		try {
 			lock.writeLock().lock();
-			this.storage.put(size, element);
-			this.elements.add(index, size++);
+			if (index < 0 || index > size) throw new IndexOutOfBoundsException();
+			int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+			this.storage.put(id, element);
+			if (size == elements.length)
+				elements = Arrays.copyOf(elements, Math.max(16, size + (size >> 1)));
+			System.arraycopy(elements, index, elements, index + 1, size - index);
+			elements[index] = id;
+			size++;
 		} finally {
 			lock.writeLock().unlock();
 		}
 	}
 
+	private void releaseId(int id) {
+		if (freeCount == freeIds.length)
+			freeIds = Arrays.copyOf(freeIds, Math.max(16, freeCount << 1));
+		freeIds[freeCount++] = id;
+	}
+
 	@Override
 	public boolean remove(Object obj) {
 		boolean deleted = false;
 		try {
 			lock.writeLock().lock();
-			Iterator<Integer> iter = elements.iterator();
-			while (iter.hasNext()) {
-				Integer key = iter.next();
-				E nextElement = this.storage.get(key);
-				if (nextElement == obj || nextElement.equals(obj)) {
-					iter.remove();
+			for (int i = 0; i < size; i++) {
+				E nextElement = this.storage.get(elements[i]);
+				if (nextElement == obj || nextElement != null && nextElement.equals(obj)) {
+					remove(i);
 					deleted = true;
 					break;
 				}
 			}
 			return deleted;
 		} finally {
-			if (deleted)
-				checkMods();
 			lock.writeLock().unlock();
 		}
 	}
@@ -217,7 +356,7 @@ public class NyxList<E> implements List<E>, Serializable {
 	public void clear() {
 		try {
 			lock.writeLock().lock();
-			elements.clear();
+			size = nextId = freeCount = 0;
 			storage.clear();
 		} finally {
 			modCount = 0;
@@ -227,17 +366,23 @@ public class NyxList<E> implements List<E>, Serializable {
 
 	@Override
 	public E get(int index) {
-		checkBounds(index);
-		return storage.get(index);
+		try {
+			lock.readLock().lock();
+			checkBounds(index);
+			return storage.get(elements[index]);
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	@Override
 	public E set(int index, E element) {
 		try {
 			lock.writeLock().lock();
-			E deleted = remove(index);
-			add(index, element);
-			return deleted;
+			checkBounds(index);
+			E replaced = storage.get(elements[index]);
+			storage.update(elements[index], element);
+			return replaced;
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -248,15 +393,20 @@ public class NyxList<E> implements List<E>, Serializable {
 		try {
 			lock.writeLock().lock();
 			checkBounds(index);
-			return this.storage.remove(this.elements.get(index));
-		} finally {
+			int id = elements[index];
+			System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+			size--;
+			E removed = this.storage.remove(id);
+			releaseId(id);
 			checkMods();
+			return removed;
+		} finally {
 			lock.writeLock().unlock();
 		}
 	}
 
 	private void checkBounds(int index) {
-		if (index > size()-1) throw new IndexOutOfBoundsException();
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException();
 	}
 
 	/**
@@ -265,7 +415,7 @@ public class NyxList<E> implements List<E>, Serializable {
 	 * of this collection size.
 	 */
 	private void checkMods() {
-		if (modCount++ > size() / 3) {
+		if (modCount++ > size / 3) {
 			this.storage.purge();
 			modCount = 0;
 		}
@@ -307,9 +457,10 @@ public class NyxList<E> implements List<E>, Serializable {
 	public List<E> subList(int fromIndex, int toIndex) {
 		try {
 			lock.readLock().lock();
+			if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) throw new IndexOutOfBoundsException();
 			List<E> result = new ArrayList<>(toIndex - fromIndex);
-			for (Integer id : this.elements.subList(fromIndex, toIndex))
-				result.add(storage.get(id));
+			for (int i = fromIndex; i < toIndex; i++)
+				result.add(storage.get(elements[i]));
 			return result;
 		} finally {
 			lock.readLock().unlock();
@@ -348,24 +499,57 @@ public class NyxList<E> implements List<E>, Serializable {
 			throws ClassNotFoundException, IOException {
 		in.defaultReadObject();
 		lock = new ReentrantReadWriteLock();
+		guard = LeakGuard.watch(this, storage);
+		expose(getClass().getSimpleName());
 	}
 	
 	class ListItr implements ListIterator<E> {
 
 		private int cursor = 0;
+		/* index of the element returned last, -1 once it is removed or an element is added */
+		private int lastRet = -1;
 
 		public ListItr() { }
 		public ListItr(int position) { this.cursor = position; }
 
 		@Override public boolean hasNext() { return cursor < size(); }
-		@Override public E next() { return get(cursor++); }
 		@Override public boolean hasPrevious() { return cursor > 0; }
-		@Override public E previous() { return get(cursor--); }
-		@Override public int nextIndex() { return cursor + 1; }
+		@Override public int nextIndex() { return cursor; }
 		@Override public int previousIndex() { return cursor - 1; }
-		@Override public void remove() { NyxList.this.remove(cursor--); }
-		@Override public void set(E e) { NyxList.this.set(cursor, e); }
-		@Override public void add(E e) { NyxList.this.add(e); }
+
+		@Override
+		public E next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			lastRet = cursor;
+			return get(cursor++);
+		}
+
+		@Override
+		public E previous() {
+			if (!hasPrevious()) throw new NoSuchElementException();
+			lastRet = --cursor;
+			return get(cursor);
+		}
+
+		@Override
+		public void remove() {
+			if (lastRet < 0) throw new IllegalStateException();
+			NyxList.this.remove(lastRet);
+			cursor = lastRet;
+			lastRet = -1;
+		}
+
+		@Override
+		public void set(E e) {
+			if (lastRet < 0) throw new IllegalStateException();
+			NyxList.this.set(lastRet, e);
+		}
+
+		@Override
+		public void add(E e) {
+			NyxList.this.add(cursor++, e);
+			lastRet = -1;
+		}
 
 	}
 
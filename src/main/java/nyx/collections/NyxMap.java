@@ -1,40 +1,99 @@
 package nyx.collections;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import nyx.collections.pool.ObjectPool;
+import nyx.collections.pool.PoolMetrics;
+import nyx.collections.storage.DurableByteStorage;
 import nyx.collections.storage.ElasticByteStorage;
 import nyx.collections.storage.Storage;
+import nyx.collections.vm.LeakGuard;
 
 /**
  * Hybrid (on-heap + off-heap) implementation of Java {@link java.util.Map} collection.
+ * <p>
+ * Entries are kept as records of the key and value bytes in the off-heap hash
+ * index of an {@link ElasticByteStorage}. Existing keys are found without
+ * decoding their values, a value is overwritten in place when the new one
+ * fits and removed entries leave no tombstones in the index. Atomic
+ * operations such as {@link #compute} and {@link #merge} decode the old value
+ * at most once and encode the new one once.
  * 
  * @author varlou@gmail.com
  */
-public class NyxMap<K, V> implements Map<K, V> {
+public class NyxMap<K, V> implements Map<K, V>, AutoCloseable {
 
-	private Storage<K, V> storage;
+	private ObjectPool<K, V> storage;
 	
 	// main RW lock guarding all access to this Map
 	private ReadWriteLock lock = new ReentrantReadWriteLock();
-	// counts update and delete operations
-	private volatile int modCount = 0;
-	private final int MOD_THRESHOLD = 3;
+	// counts delete operations since fragmentation was checked
+	private final AtomicInteger modCount = new AtomicInteger();
+	private final int MOD_THRESHOLD = 64;
+	// closes the storage if the map is not closed
+	private final LeakGuard guard;
 	
 	public NyxMap() {
 		this(16);
 	}
 	
 	public NyxMap(int capacity) {
+		this(capacity, 1);
+	}
+
+	/**
+	 * @param encoders the number of threads serializing new entries in
+	 *            parallel, see {@link ObjectPool}
+	 */
+	public NyxMap(int capacity, int encoders) {
+		this(capacity, ElasticByteStorage.MAX_CHUNK, encoders);
+	}
+
+	/**
+	 * @param memSize the maximum size of an off-heap chunk in bytes, chunks
+	 *            double in size from 4Kb up to it as the map grows, at most
+	 *            {@link ElasticByteStorage#MAX_CHUNK}
+	 * @param encoders the number of threads serializing new entries in
+	 *            parallel, see {@link ObjectPool}
+	 */
+	public NyxMap(int capacity, int memSize, int encoders) {
 		if (capacity<1) throw new IllegalArgumentException();
-		this.storage = new ObjectPool<K,V>(new ElasticByteStorage<K>());
+		this.storage = new ObjectPool<K,V>(ObjectPool.Type.WEAK,
+				new ElasticByteStorage<K>(NyxList.MIN_CHUNK, NyxList.maxChunk(memSize)), encoders);
+		this.guard = LeakGuard.watch(this, storage);
+		storage.expose(getClass().getSimpleName());
+	}
+
+	/**
+	 * Creates NyxMap which keeps its entries in a given off-heap storage,
+	 * e.g. {@link nyx.collections.storage.MappedByteStorage}.
+	 */
+	public NyxMap(Storage<K, byte[]> offHeapStorage) {
+		this.storage = new ObjectPool<K,V>(offHeapStorage);
+		this.guard = LeakGuard.watch(this, storage);
+		storage.expose(getClass().getSimpleName());
+	}
+
+	/**
+	 * Opens NyxMap persisted in a given directory. A new map is created if the
+	 * directory does not contain one.
+	 *
+	 * @see DurableByteStorage
+	 */
+	public static <K, V> NyxMap<K, V> open(Path dir) throws IOException {
+		return new NyxMap<>(new DurableByteStorage<K>(dir));
 	}
 
 	@Override
@@ -47,9 +106,15 @@ public class NyxMap<K, V> implements Map<K, V> {
 		return this.storage.size() == 0;
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public boolean containsKey(Object key) {
-		return storage.keySet().contains(key);
+		try {
+			lock.readLock().lock();
+			return storage.containsKey((K) key);
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	@Override
@@ -70,17 +135,157 @@ public class NyxMap<K, V> implements Map<K, V> {
 		}
 	}
 
+	/**
+	 * Adds a new entry, which is written behind, or overwrites the value of
+	 * an existing one, see {@link ObjectPool#replace}.
+	 */
 	@Override
 	public V put(K key, V value) {
-		V prevValue = checkMods(remove(key));
-		storage.put(key, value);
-		return prevValue;
+		try {
+			writeLock(key).lock();
+			if (storage.containsKey(key)) return storage.replace(key, value);
+			storage.put(key, value);
+			return null;
+		} finally {
+			writeLock(key).unlock();
+		}
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public V remove(Object key) {
-		return checkMods(storage.remove((K) key));
+		try {
+			writeLock(key).lock();
+			return checkMods(storage.remove((K) key));
+		} finally {
+			writeLock(key).unlock();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean remove(Object key, Object value) {
+		try {
+			writeLock(key).lock();
+			V current = storage.get((K) key);
+			if (current == null || !current.equals(value)) return false;
+			delete((K) key);
+			return true;
+		} finally {
+			writeLock(key).unlock();
+		}
+	}
+
+	@Override
+	public V putIfAbsent(K key, V value) {
+		try {
+			writeLock(key).lock();
+			if (storage.containsKey(key)) return storage.get(key);
+			storage.put(key, value);
+			return null;
+		} finally {
+			writeLock(key).unlock();
+		}
+	}
+
+	@Override
+	public V replace(K key, V value) {
+		try {
+			writeLock(key).lock();
+			return storage.containsKey(key) ? storage.replace(key, value) : null;
+		} finally {
+			writeLock(key).unlock();
+		}
+	}
+
+	@Override
+	public boolean replace(K key, V oldValue, V newValue) {
+		try {
+			writeLock(key).lock();
+			V current = storage.get(key);
+			if (current == null || !current.equals(oldValue)) return false;
+			storage.update(key, newValue);
+			return true;
+		} finally {
+			writeLock(key).unlock();
+		}
+	}
+
+	@Override
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> fn) {
+		try {
+			writeLock(key).lock();
+			if (storage.containsKey(key)) return storage.get(key);
+			V value = fn.apply(key);
+			if (value != null) storage.put(key, value);
+			return value;
+		} finally {
+			writeLock(key).unlock();
+		}
+	}
+
+	@Override
+	public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> fn) {
+		try {
+			writeLock(key).lock();
+			V old = storage.get(key);
+			return old != null ? store(key, old, fn.apply(key, old)) : null;
+		} finally {
+			writeLock(key).unlock();
+		}
+	}
+
+	@Override
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> fn) {
+		try {
+			writeLock(key).lock();
+			V old = storage.get(key);
+			return store(key, old, fn.apply(key, old));
+		} finally {
+			writeLock(key).unlock();
+		}
+	}
+
+	@Override
+	public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> fn) {
+		try {
+			writeLock(key).lock();
+			V old = storage.get(key);
+			return store(key, old, old == null ? value : fn.apply(old, value));
+		} finally {
+			writeLock(key).unlock();
+		}
+	}
+
+	/**
+	 * Stores the result of a remapping function, the old value is already
+	 * decoded so it is not decoded again. Must be called holding the write
+	 * lock of the key.
+	 */
+	private V store(K key, V old, V value) {
+		if (value == null) {
+			if (old != null) delete(key);
+		} else if (old == null) {
+			storage.put(key, value);
+		} else {
+			storage.update(key, value);
+		}
+		return value;
+	}
+
+	/** Returns the pool of the entries, for subclasses which read it without the lock. */
+	ObjectPool<K, V> storage() {
+		return storage;
+	}
+
+	/** Returns the lock which guards the modifications of a given key. */
+	Lock writeLock(Object key) {
+		return lock.writeLock();
+	}
+
+	/** Removes an entry without decoding its value. */
+	private void delete(K key) {
+		if (storage.delete(key)) removed();
 	}
 
 	/**
@@ -93,27 +298,51 @@ public class NyxMap<K, V> implements Map<K, V> {
 	}
 	
 	/**
-	 * Checks total number of modifications and executes
-	 * {@link nyx.collectoins.storage.Storage#purge} when it exceeds 1/3 of this
-	 * collection size.
+	 * Counts a removed entry.
 	 * 
 	 * @param prevValue variable equal to <b>null</b> causes this method to skip.
 	 */
 	private V checkMods(V prevValue) {
-		
-		if (prevValue!=null && modCount++ > size() / MOD_THRESHOLD) {
-			this.storage.purge();
-			modCount = 0;
-		}
+		if (prevValue != null) removed();
 		return prevValue;
 	}
 
+	/**
+	 * Executes {@link nyx.collections.storage.Storage#purge} every
+	 * {@link #MOD_THRESHOLD} removals if the free space of the storage
+	 * exceeds a half of the space occupied by the entries. Freed space is
+	 * reused by new entries, so purging is only needed against fragmentation.
+	 */
+	private void removed() {
+		if (modCount.incrementAndGet() % MOD_THRESHOLD != 0) return;
+		PoolMetrics metrics = storage.metrics();
+		if (metrics.getOffHeapFreeBytes() > metrics.getOffHeapUsedBytes() / 2) storage.purge();
+	}
+
 	@Override
 	public void clear() {
-		modCount = 0;
+		modCount.set(0);
 		storage.clear();
 	}
 
+	/**
+	 * Returns the live metrics of this map, which are also registered as an
+	 * MBean, see {@link nyx.collections.metrics.Metrics}.
+	 */
+	public PoolMetrics metrics() {
+		return storage.metrics();
+	}
+
+	/**
+	 * Releases resources of this map, it can no longer be used afterwards. A
+	 * map opened with {@link #open(Path)} is saved and can be reopened.
+	 */
+	@Override
+	public void close() {
+		storage.close();
+		guard.close();
+	}
+
 	@Override
 	public Set<K> keySet() {
 		return storage.keySet();
@@ -0,0 +1,685 @@
+package nyx.collections;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import nyx.collections.converter.ConverterFactory;
+import nyx.collections.pool.ObjectPool;
+import nyx.collections.pool.PoolMetrics;
+import nyx.collections.storage.ElasticByteStorage;
+import nyx.collections.storage.OffHeapTree;
+import nyx.collections.vm.LeakGuard;
+
+/**
+ * Hybrid (on-heap + off-heap) implementation of Java
+ * {@link java.util.NavigableMap} collection.
+ * <p>
+ * Keys are ordered by an {@link OffHeapTree}, a B+tree whose nodes and keys
+ * live off-heap, and the values are kept in an {@link ObjectPool} under the
+ * ids of their entries. Range scans walk the linked leaves of the tree and
+ * decode the keys of the range only, a value is decoded when it is asked for.
+ * Neither the index nor the entries take heap space, so sorted scans over
+ * large maps put no pressure on the garbage collector.
+ * <p>
+ * Access is guarded by a read-write lock. Iterators of the map and of its
+ * views are weakly consistent: they never throw
+ * {@link java.util.ConcurrentModificationException} and go on after the last
+ * returned key when the map is modified meanwhile.
+ *
+ * @author varlou@gmail.com
+ */
+public class NyxNavigableMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V>, AutoCloseable {
+
+	/* what a view looks for, the opposite of each is the one with the last bit flipped */
+	private static final int FIRST = 0;
+	private static final int LAST = 1;
+	private static final int CEILING = 2;
+	private static final int FLOOR = 3;
+	private static final int HIGHER = 4;
+	private static final int LOWER = 5;
+
+	private final Comparator<? super K> comparator;
+	private final OffHeapTree<K> tree;
+	private final ObjectPool<Integer, V> values;
+
+	// main RW lock guarding all access to this Map
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	// the whole map, navigation is implemented by the views
+	private final View all = new View(true, null, false, true, null, false, false);
+	// closes the storages if the map is not closed
+	private final LeakGuard guard;
+
+	/** Creates NyxNavigableMap ordered by the natural ordering of the keys. */
+	public NyxNavigableMap() {
+		this(null);
+	}
+
+	public NyxNavigableMap(Comparator<? super K> comparator) {
+		this(comparator, ElasticByteStorage.MAX_CHUNK, 1);
+	}
+
+	/**
+	 * @param comparator the order of the keys, {@code null} for the natural
+	 *            ordering
+	 * @param memSize the maximum size of an off-heap chunk in bytes, chunks
+	 *            double in size from 4Kb up to it as the map grows, at most
+	 *            {@link ElasticByteStorage#MAX_CHUNK}
+	 * @param encoders the number of threads serializing new values in
+	 *            parallel, see {@link ObjectPool}
+	 */
+	public NyxNavigableMap(Comparator<? super K> comparator, int memSize, int encoders) {
+		this.comparator = comparator;
+		this.tree = new OffHeapTree<K>(comparator, ConverterFactory.<K> get(), NyxList.maxChunk(memSize));
+		this.values = new ObjectPool<Integer, V>(ObjectPool.Type.WEAK,
+				ElasticByteStorage.withIntKeys(NyxList.MIN_CHUNK, NyxList.maxChunk(memSize)), encoders);
+		this.guard = LeakGuard.watch(this, new Storages(tree, values));
+		values.expose(getClass().getSimpleName());
+	}
+
+	@Override
+	public int size() {
+		try {
+			lock.readLock().lock();
+			return tree.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean containsKey(Object key) {
+		try {
+			lock.readLock().lock();
+			return tree.find((K) check(key)) >= 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		try {
+			lock.readLock().lock();
+			int id = tree.find((K) check(key));
+			return id >= 0 ? values.get(id) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a new entry, which is written behind, or overwrites the value of
+	 * an existing one, see {@link ObjectPool#replace}.
+	 */
+	@Override
+	public V put(K key, V value) {
+		try {
+			lock.writeLock().lock();
+			int id = tree.insert(check(key));
+			if (id < 0) return values.replace(-id - 1, value);
+			values.put(id, value);
+			return null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V remove(Object key) {
+		try {
+			lock.writeLock().lock();
+			int id = tree.delete((K) check(key));
+			return id >= 0 ? values.remove(id) : null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		try {
+			lock.writeLock().lock();
+			tree.clear();
+			values.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Keys compared by their natural ordering must not be null. */
+	private <T> T check(T key) {
+		return comparator == null ? Objects.requireNonNull(key) : key;
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(Object a, Object b) {
+		return comparator != null ? comparator.compare((K) a, (K) b) : ((Comparable<Object>) a).compareTo(b);
+	}
+
+	/**
+	 * Returns the live metrics of the values of this map, which are also
+	 * registered as an MBean, see {@link nyx.collections.metrics.Metrics}.
+	 */
+	public PoolMetrics metrics() {
+		return values.metrics();
+	}
+
+	/** Releases resources of this map, it can no longer be used afterwards. */
+	@Override
+	public void close() {
+		new Storages(tree, values).close();
+		guard.close();
+	}
+
+	@Override public Comparator<? super K> comparator() { return comparator; }
+	@Override public K firstKey() { return all.firstKey(); }
+	@Override public K lastKey() { return all.lastKey(); }
+	@Override public Map.Entry<K, V> firstEntry() { return all.firstEntry(); }
+	@Override public Map.Entry<K, V> lastEntry() { return all.lastEntry(); }
+	@Override public Map.Entry<K, V> pollFirstEntry() { return all.pollFirstEntry(); }
+	@Override public Map.Entry<K, V> pollLastEntry() { return all.pollLastEntry(); }
+	@Override public Map.Entry<K, V> lowerEntry(K key) { return all.lowerEntry(key); }
+	@Override public K lowerKey(K key) { return all.lowerKey(key); }
+	@Override public Map.Entry<K, V> floorEntry(K key) { return all.floorEntry(key); }
+	@Override public K floorKey(K key) { return all.floorKey(key); }
+	@Override public Map.Entry<K, V> ceilingEntry(K key) { return all.ceilingEntry(key); }
+	@Override public K ceilingKey(K key) { return all.ceilingKey(key); }
+	@Override public Map.Entry<K, V> higherEntry(K key) { return all.higherEntry(key); }
+	@Override public K higherKey(K key) { return all.higherKey(key); }
+	@Override public Set<Map.Entry<K, V>> entrySet() { return all.entrySet(); }
+	@Override public NavigableSet<K> keySet() { return all.navigableKeySet(); }
+	@Override public NavigableSet<K> navigableKeySet() { return all.navigableKeySet(); }
+	@Override public NavigableSet<K> descendingKeySet() { return all.descendingKeySet(); }
+	@Override public Collection<V> values() { return all.values(); }
+	@Override public NavigableMap<K, V> descendingMap() { return all.descendingMap(); }
+
+	@Override
+	public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		return all.subMap(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override public NavigableMap<K, V> headMap(K toKey, boolean inclusive) { return all.headMap(toKey, inclusive); }
+	@Override public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) { return all.tailMap(fromKey, inclusive); }
+	@Override public SortedMap<K, V> subMap(K fromKey, K toKey) { return all.subMap(fromKey, toKey); }
+	@Override public SortedMap<K, V> headMap(K toKey) { return all.headMap(toKey); }
+	@Override public SortedMap<K, V> tailMap(K fromKey) { return all.tailMap(fromKey); }
+
+	/**
+	 * Range of the map in the ascending or the descending order. Bounds are
+	 * absolute, i.e. {@code lo} is the least key of the range whatever the
+	 * order is.
+	 */
+	private class View extends AbstractMap<K, V> implements NavigableMap<K, V> {
+		private final boolean fromStart;
+		private final K lo;
+		private final boolean loInclusive;
+		private final boolean toEnd;
+		private final K hi;
+		private final boolean hiInclusive;
+		private final boolean descending;
+
+		View(boolean fromStart, K lo, boolean loInclusive, boolean toEnd, K hi, boolean hiInclusive,
+				boolean descending) {
+			this.fromStart = fromStart;
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.toEnd = toEnd;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			this.descending = descending;
+		}
+
+		private boolean tooLow(Object key) {
+			if (fromStart) return false;
+			int c = compare(key, lo);
+			return c < 0 || (c == 0 && !loInclusive);
+		}
+
+		private boolean tooHigh(Object key) {
+			if (toEnd) return false;
+			int c = compare(key, hi);
+			return c > 0 || (c == 0 && !hiInclusive);
+		}
+
+		private boolean inRange(Object key) {
+			return !tooLow(key) && !tooHigh(key);
+		}
+
+		/* an exclusive bound of a new view may equal an exclusive bound of this one */
+		private boolean inRange(Object key, boolean inclusive) {
+			if (inclusive) return inRange(key);
+			return (fromStart || compare(key, lo) >= 0) && (toEnd || compare(key, hi) <= 0);
+		}
+
+		private boolean whole() {
+			return fromStart && toEnd;
+		}
+
+		/**
+		 * Positions a cursor at the entry a navigation method looks for. Must
+		 * be called holding the lock.
+		 *
+		 * @return the cursor or {@code null} if there is no such entry in the
+		 *         range
+		 */
+		private OffHeapTree<K>.Cursor seek(int op, K key) {
+			return absolute(descending ? op ^ 1 : op, key);
+		}
+
+		/** Positions a cursor in the ascending order, see {@link #seek}. */
+		private OffHeapTree<K>.Cursor absolute(int op, K key) {
+			switch (op) {
+			case FIRST:
+				return below(fromStart ? tree.first() : tree.ceiling(lo, loInclusive));
+			case LAST:
+				return above(toEnd ? tree.last() : tree.floor(hi, hiInclusive));
+			case CEILING:
+				return tooLow(key) ? absolute(FIRST, null) : below(tree.ceiling(key, true));
+			case FLOOR:
+				return tooHigh(key) ? absolute(LAST, null) : above(tree.floor(key, true));
+			case HIGHER:
+				return tooLow(key) ? absolute(FIRST, null) : below(tree.ceiling(key, false));
+			default:
+				return tooHigh(key) ? absolute(LAST, null) : above(tree.floor(key, false));
+			}
+		}
+
+		/* drops a cursor which has moved past the high bound */
+		private OffHeapTree<K>.Cursor below(OffHeapTree<K>.Cursor cursor) {
+			return cursor == null || tooHigh(cursor.key()) ? null : cursor;
+		}
+
+		/* drops a cursor which has moved past the low bound */
+		private OffHeapTree<K>.Cursor above(OffHeapTree<K>.Cursor cursor) {
+			return cursor == null || tooLow(cursor.key()) ? null : cursor;
+		}
+
+		/** Moves a cursor to the next entry in the order of this view. */
+		private OffHeapTree<K>.Cursor next(OffHeapTree<K>.Cursor cursor) {
+			if (descending) return cursor.previous() ? above(cursor) : null;
+			return cursor.next() ? below(cursor) : null;
+		}
+
+		private Map.Entry<K, V> entry(int op, K key) {
+			try {
+				lock.readLock().lock();
+				OffHeapTree<K>.Cursor cursor = seek(op, key);
+				return cursor != null ? new SimpleImmutableEntry<>(cursor.key(), values.get(cursor.id())) : null;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		private K key(int op, K key) {
+			try {
+				lock.readLock().lock();
+				OffHeapTree<K>.Cursor cursor = seek(op, key);
+				if (cursor != null) return cursor.key();
+				if (op == FIRST || op == LAST) throw new NoSuchElementException();
+				return null;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		private Map.Entry<K, V> poll(int op) {
+			try {
+				lock.writeLock().lock();
+				OffHeapTree<K>.Cursor cursor = seek(op, null);
+				if (cursor == null) return null;
+				K key = cursor.key();
+				return new SimpleImmutableEntry<>(key, values.remove(tree.delete(key)));
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		@Override
+		public int size() {
+			if (whole()) return NyxNavigableMap.this.size();
+			try {
+				lock.readLock().lock();
+				int size = 0;
+				for (OffHeapTree<K>.Cursor cursor = seek(FIRST, null); cursor != null; cursor = next(cursor)) size++;
+				return size;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public boolean isEmpty() {
+			if (whole()) return NyxNavigableMap.this.isEmpty();
+			return entry(FIRST, null) == null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return inRange(check(key)) && NyxNavigableMap.this.containsKey(key);
+		}
+
+		@Override
+		public V get(Object key) {
+			return inRange(check(key)) ? NyxNavigableMap.this.get(key) : null;
+		}
+
+		@Override
+		public V put(K key, V value) {
+			if (!inRange(check(key))) throw new IllegalArgumentException("key out of range");
+			return NyxNavigableMap.this.put(key, value);
+		}
+
+		@Override
+		public V remove(Object key) {
+			return inRange(check(key)) ? NyxNavigableMap.this.remove(key) : null;
+		}
+
+		@Override
+		public void clear() {
+			if (whole()) {
+				NyxNavigableMap.this.clear();
+				return;
+			}
+			for (Iterator<Map.Entry<K, V>> it = new EntryIterator(); it.hasNext();) {
+				it.next();
+				it.remove();
+			}
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			return descending ? Collections.reverseOrder(comparator) : comparator;
+		}
+
+		@Override public K firstKey() { return key(FIRST, null); }
+		@Override public K lastKey() { return key(LAST, null); }
+		@Override public Map.Entry<K, V> firstEntry() { return entry(FIRST, null); }
+		@Override public Map.Entry<K, V> lastEntry() { return entry(LAST, null); }
+		@Override public Map.Entry<K, V> pollFirstEntry() { return poll(FIRST); }
+		@Override public Map.Entry<K, V> pollLastEntry() { return poll(LAST); }
+		@Override public Map.Entry<K, V> lowerEntry(K key) { return entry(LOWER, key); }
+		@Override public K lowerKey(K key) { return key(LOWER, key); }
+		@Override public Map.Entry<K, V> floorEntry(K key) { return entry(FLOOR, key); }
+		@Override public K floorKey(K key) { return key(FLOOR, key); }
+		@Override public Map.Entry<K, V> ceilingEntry(K key) { return entry(CEILING, key); }
+		@Override public K ceilingKey(K key) { return key(CEILING, key); }
+		@Override public Map.Entry<K, V> higherEntry(K key) { return entry(HIGHER, key); }
+		@Override public K higherKey(K key) { return key(HIGHER, key); }
+
+		@Override
+		public Set<Map.Entry<K, V>> entrySet() {
+			return new AbstractSet<Map.Entry<K, V>>() {
+				@Override public int size() { return View.this.size(); }
+				@Override public boolean isEmpty() { return View.this.isEmpty(); }
+				@Override public Iterator<Map.Entry<K, V>> iterator() { return new EntryIterator(); }
+				@Override public void clear() { View.this.clear(); }
+			};
+		}
+
+		@Override public NavigableSet<K> keySet() { return navigableKeySet(); }
+		@Override public NavigableSet<K> navigableKeySet() { return new KeySet(this); }
+		@Override public NavigableSet<K> descendingKeySet() { return new KeySet(descendingMap()); }
+
+		@Override
+		public View descendingMap() {
+			return new View(fromStart, lo, loInclusive, toEnd, hi, hiInclusive, !descending);
+		}
+
+		@Override
+		public View subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+			int c = compare(check(fromKey), check(toKey));
+			if (descending ? c < 0 : c > 0) throw new IllegalArgumentException("fromKey > toKey");
+			if (descending) return range(false, toKey, toInclusive, false, fromKey, fromInclusive);
+			return range(false, fromKey, fromInclusive, false, toKey, toInclusive);
+		}
+
+		@Override
+		public View headMap(K toKey, boolean inclusive) {
+			if (descending) return range(false, check(toKey), inclusive, toEnd, hi, hiInclusive);
+			return range(fromStart, lo, loInclusive, false, check(toKey), inclusive);
+		}
+
+		@Override
+		public View tailMap(K fromKey, boolean inclusive) {
+			if (descending) return range(fromStart, lo, loInclusive, false, check(fromKey), inclusive);
+			return range(false, check(fromKey), inclusive, toEnd, hi, hiInclusive);
+		}
+
+		@Override public SortedMap<K, V> subMap(K fromKey, K toKey) { return subMap(fromKey, true, toKey, false); }
+		@Override public SortedMap<K, V> headMap(K toKey) { return headMap(toKey, false); }
+		@Override public SortedMap<K, V> tailMap(K fromKey) { return tailMap(fromKey, true); }
+
+		/** Creates a view of a range within this one. */
+		private View range(boolean fromStart, K lo, boolean loInclusive, boolean toEnd, K hi, boolean hiInclusive) {
+			if (!fromStart && !inRange(lo, loInclusive)) throw new IllegalArgumentException("key out of range");
+			if (!toEnd && !inRange(hi, hiInclusive)) throw new IllegalArgumentException("key out of range");
+			return new View(fromStart, lo, loInclusive, toEnd, hi, hiInclusive, descending);
+		}
+
+		/**
+		 * Walks the leaves of the tree in the order of this view. The next
+		 * key is decoded in advance, its value only if the entry asks for it.
+		 */
+		private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+			private OffHeapTree<K>.Cursor cursor;
+			/* modifications of the tree the cursor is valid for */
+			private int modifications;
+			private K last;
+			private boolean returned;
+			private boolean removable;
+
+			EntryIterator() {
+				try {
+					lock.readLock().lock();
+					this.cursor = seek(FIRST, null);
+					this.modifications = tree.modifications();
+				} finally {
+					lock.readLock().unlock();
+				}
+			}
+
+			/** The entries have moved if the tree was modified, so the next one is looked up again. */
+			private void revalidate() {
+				if (tree.modifications() == modifications) return;
+				cursor = returned ? seek(HIGHER, last) : seek(FIRST, null);
+				modifications = tree.modifications();
+			}
+
+			@Override
+			public boolean hasNext() {
+				try {
+					lock.readLock().lock();
+					revalidate();
+					return cursor != null;
+				} finally {
+					lock.readLock().unlock();
+				}
+			}
+
+			@Override
+			public Map.Entry<K, V> next() {
+				try {
+					lock.readLock().lock();
+					revalidate();
+					if (cursor == null) throw new NoSuchElementException();
+					Map.Entry<K, V> entry = new LazyEntry(cursor.key(), cursor.id(), modifications);
+					last = entry.getKey();
+					returned = removable = true;
+					cursor = View.this.next(cursor);
+					return entry;
+				} finally {
+					lock.readLock().unlock();
+				}
+			}
+
+			@Override
+			public void remove() {
+				if (!removable) throw new IllegalStateException();
+				removable = false;
+				NyxNavigableMap.this.remove(last);
+			}
+		}
+	}
+
+	/** Entry of an iterator, its value is decoded when it is asked for. */
+	private class LazyEntry implements Map.Entry<K, V> {
+		private final K key;
+		private final int id;
+		/* the id is valid while the tree is not modified */
+		private final int modifications;
+
+		LazyEntry(K key, int id, int modifications) {
+			this.key = key;
+			this.id = id;
+			this.modifications = modifications;
+		}
+
+		@Override
+		public K getKey() {
+			return key;
+		}
+
+		@Override
+		public V getValue() {
+			try {
+				lock.readLock().lock();
+				int current = tree.modifications() == modifications ? id : tree.find(key);
+				return current >= 0 ? values.get(current) : null;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public V setValue(V value) {
+			return put(key, value);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return Objects.equals(key, e.getKey()) && Objects.equals(getValue(), e.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(key) ^ Objects.hashCode(getValue());
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + getValue();
+		}
+	}
+
+	/** Keys of a view, they are decoded without their values. */
+	private class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+		private final View map;
+
+		KeySet(View map) {
+			this.map = map;
+		}
+
+		@Override
+		public Iterator<K> iterator() {
+			final Iterator<Map.Entry<K, V>> entries = map.entrySet().iterator();
+			return new Iterator<K>() {
+				@Override public boolean hasNext() { return entries.hasNext(); }
+				@Override public K next() { return entries.next().getKey(); }
+				@Override public void remove() { entries.remove(); }
+			};
+		}
+
+		@Override public Iterator<K> descendingIterator() { return descendingSet().iterator(); }
+		@Override public int size() { return map.size(); }
+		@Override public boolean isEmpty() { return map.isEmpty(); }
+		@Override public boolean contains(Object o) { return map.containsKey(o); }
+		@Override public void clear() { map.clear(); }
+		@Override public Comparator<? super K> comparator() { return map.comparator(); }
+		@Override public K first() { return map.firstKey(); }
+		@Override public K last() { return map.lastKey(); }
+		@Override public K lower(K key) { return map.lowerKey(key); }
+		@Override public K floor(K key) { return map.floorKey(key); }
+		@Override public K ceiling(K key) { return map.ceilingKey(key); }
+		@Override public K higher(K key) { return map.higherKey(key); }
+		@Override public NavigableSet<K> descendingSet() { return new KeySet(map.descendingMap()); }
+		@Override public SortedSet<K> subSet(K fromKey, K toKey) { return subSet(fromKey, true, toKey, false); }
+		@Override public SortedSet<K> headSet(K toKey) { return headSet(toKey, false); }
+		@Override public SortedSet<K> tailSet(K fromKey) { return tailSet(fromKey, true); }
+
+		@Override
+		public boolean remove(Object o) {
+			if (!map.containsKey(o)) return false;
+			map.remove(o);
+			return true;
+		}
+
+		@Override
+		public K pollFirst() {
+			Map.Entry<K, V> e = map.pollFirstEntry();
+			return e != null ? e.getKey() : null;
+		}
+
+		@Override
+		public K pollLast() {
+			Map.Entry<K, V> e = map.pollLastEntry();
+			return e != null ? e.getKey() : null;
+		}
+
+		@Override
+		public NavigableSet<K> subSet(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+			return new KeySet(map.subMap(fromKey, fromInclusive, toKey, toInclusive));
+		}
+
+		@Override
+		public NavigableSet<K> headSet(K toKey, boolean inclusive) {
+			return new KeySet(map.headMap(toKey, inclusive));
+		}
+
+		@Override
+		public NavigableSet<K> tailSet(K fromKey, boolean inclusive) {
+			return new KeySet(map.tailMap(fromKey, inclusive));
+		}
+	}
+
+	/* closes the storages, must not refer to the map */
+	private static class Storages implements AutoCloseable {
+		private final OffHeapTree<?> tree;
+		private final ObjectPool<?, ?> values;
+
+		Storages(OffHeapTree<?> tree, ObjectPool<?, ?> values) {
+			this.tree = tree;
+			this.values = values;
+		}
+
+		@Override
+		public void close() {
+			values.close();
+			tree.close();
+		}
+	}
+
+}
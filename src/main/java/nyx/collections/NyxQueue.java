@@ -5,10 +5,23 @@ import java.io.Serializable;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 
+import nyx.collections.pool.ObjectPool.Type;
+
 public class NyxQueue<E extends Serializable> extends NyxList<E> implements Queue<E>, Serializable {
 
 	private static final long serialVersionUID = -5865537730193466157L;
 
+	public NyxQueue() {
+	}
+
+	/**
+	 * @param memSize the maximum size of an off-heap chunk in bytes, see
+	 *            {@link NyxList#NyxList(int, int, Type)}
+	 */
+	public NyxQueue(int capacity, int memSize) {
+		super(capacity, memSize, Type.WEAK);
+	}
+
 	@Override
 	public boolean offer(E e) {
 		return super.add(e);
@@ -1,145 +1,129 @@
 package nyx.collections;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.*;
-import java.util.function.UnaryOperator;
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+import javax.management.ObjectName;
+
+import nyx.collections.metrics.Metrics;
+import nyx.collections.pool.PoolMetrics;
+import nyx.collections.storage.ElasticByteStorage;
+import nyx.collections.vm.LeakGuard;
 
 /**
- *	Basic implementation of Set collection interface.
- * 
+ * Hybrid (on-heap + off-heap) implementation of Java {@link java.util.Set} collection.
+ * <p>
+ * Elements are the keys of an {@link ElasticByteStorage}, i.e. they are kept
+ * in its off-heap hash index of the encoded element bytes. {@link #add},
+ * {@link #remove} and {@link #contains} encode the element once, look it up
+ * by the hash of its bytes and compare the bytes, so they take constant time
+ * on average and never decode other elements. Two elements are the same if
+ * their encoded bytes are equal, which is the case for equal strings, numbers
+ * and other value types.
+ * <p>
+ * The set is thread-safe and its iterator is weakly consistent, see
+ * {@link ElasticByteStorage#keySet()}.
+ *
  * @author varlou@gmail.com
  */
-public class NyxSet<E> implements Set<E>, Serializable {
+public class NyxSet<E> extends AbstractSet<E> implements AutoCloseable, Serializable {
 
-	private static final long serialVersionUID = -7388374589811129603L;
+	private static final long serialVersionUID = -1029594507180223894L;
+	/* elements have no values, only keys */
+	private static final byte[] NO_VALUE = new byte[0];
 
-	private final NyxList<E> internList = new NyxList<>();
+	private final ElasticByteStorage<E> storage;
 
-	@Override
-	public boolean add(E e) {
-		if (!internList.contains(e)) {
-			internList.add(e);
-			return true;
-		} else return false;
-	}
+	private transient PoolMetrics metrics;
+	/* the MBean of the metrics, null if not exposed */
+	private transient ObjectName metricsName;
+	// closes the storage if the set is not closed
+	private transient LeakGuard guard;
 
-	@Override
-	public boolean remove(Object obj) {
-		return internList.remove(obj);
+	public NyxSet() {
+		this(16, ElasticByteStorage.MAX_CHUNK);
 	}
 
-	@Override
-	public boolean containsAll(Collection<?> c) {
-		return internList.containsAll(c);
+	/**
+	 * @param memSize the maximum size of an off-heap chunk in bytes, chunks
+	 *            double in size from 4Kb up to it as the set grows, at most
+	 *            {@link ElasticByteStorage#MAX_CHUNK}
+	 */
+	public NyxSet(int capacity, int memSize) {
+		if (capacity < 1) throw new IllegalArgumentException();
+		this.storage = new ElasticByteStorage<E>(NyxList.MIN_CHUNK, NyxList.maxChunk(memSize));
+		init();
 	}
 
-	@Override
-	public boolean removeAll(Collection<?> c) {
-		return internList.removeAll(c);
+	private void init() {
+		this.metrics = PoolMetrics.of(storage);
+		this.metricsName = Metrics.register(getClass().getSimpleName(), metrics);
+		this.guard = LeakGuard.watch(this, storage);
 	}
 
-	@Override
-	public boolean retainAll(Collection<?> c) {
-		return internList.retainAll(c);
+	/**
+	 * Returns the live metrics of this set, which are also registered as an
+	 * MBean, see {@link nyx.collections.metrics.Metrics}. Only the off-heap
+	 * metrics are collected as the set has no heap tier.
+	 */
+	public PoolMetrics metrics() {
+		return metrics;
 	}
 
 	@Override
-	public boolean addAll(Collection<? extends E> c) {
-		boolean result = false;
-		for (E e : c) result |= add(e);
-		return result;
-	}
-
-	public void add(int index, E element) {
-		internList.add(index, element);
-	}
-
-	public boolean addAll(int index, Collection<? extends E> c) {
-		return internList.addAll(index, c);
-	}
-
-	public E get(int index) {
-		return internList.get(index);
-	}
-
-	public E set(int index, E element) {
-		return internList.set(index, element);
-	}
-
-	public E remove(int index) {
-		return internList.remove(index);
-	}
-
-	public int indexOf(Object o) {
-		return internList.indexOf(o);
-	}
-
-	public int lastIndexOf(Object o) {
-		return internList.lastIndexOf(o);
-	}
-
-	public ListIterator<E> listIterator() {
-		return internList.listIterator();
-	}
-
-	public ListIterator<E> listIterator(int index) {
-		return internList.listIterator(index);
-	}
-
-	public List<E> subList(int fromIndex, int toIndex) {
-		return internList.subList(fromIndex, toIndex);
+	public boolean add(E e) {
+		return storage.putIfAbsent(e, NO_VALUE);
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
-	public int hashCode() {
-		return internList.hashCode();
+	public boolean remove(Object obj) {
+		return storage.remove((E) obj) != null;
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
-	public boolean equals(Object o) {
-		return internList.equals(o);
-	}
-
-	public void replaceAll(UnaryOperator<E> operator) {
-		internList.replaceAll(operator);
-	}
-
-	public void sort(Comparator<? super E> c) {
-		internList.sort(c);
+	public boolean contains(Object obj) {
+		return storage.containsKey((E) obj);
 	}
 
 	@Override
 	public void clear() {
-		internList.clear();
+		storage.clear();
 	}
 
+	/** Releases resources of this set, it can no longer be used afterwards. */
 	@Override
-	public int size() {
-		return internList.size();
+	public void close() {
+		Metrics.unregister(metricsName);
+		storage.close();
+		guard.close();
 	}
 
 	@Override
-	public boolean isEmpty() {
-		return internList.isEmpty();
+	public int size() {
+		return storage.size();
 	}
 
 	@Override
-	public boolean contains(Object obj) {
-		return internList.contains(obj);
+	public boolean isEmpty() {
+		return storage.size() == 0;
 	}
 
+	/**
+	 * Returns an iterator which decodes the elements one by one, see
+	 * {@link ElasticByteStorage#keySet()}.
+	 */
 	@Override
 	public Iterator<E> iterator() {
-		return internList.iterator();
+		return storage.keySet().iterator();
 	}
 
-	@Override
-	public Object[] toArray() {
-		return internList.toArray();
-	}
-
-	@Override
-	public <T> T[] toArray(T[] a) {
-		return internList.toArray(a);
+	private void readObject(java.io.ObjectInputStream in)
+			throws ClassNotFoundException, IOException {
+		in.defaultReadObject();
+		init();
 	}
 }
@@ -0,0 +1,76 @@
+package nyx.collections.converter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converter for arrays of primitives. An array is written as a marker byte
+ * followed by its elements, <b>{@code null}</b> is written as a single zero
+ * byte.
+ *
+ * @author varlou@gmail.com
+ */
+public class ArrayConverter<E> extends BinaryConverter<E> {
+
+	private static final long serialVersionUID = -3302150484463653958L;
+
+	static final Class<?>[] TYPES = { boolean[].class, byte[].class, short[].class, char[].class,
+			int[].class, long[].class, float[].class, double[].class };
+	private static final int[] WIDTH = { 1, 1, 2, 2, 4, 8, 4, 8 };
+
+	private final int kind;
+
+	/**
+	 * @throws IllegalArgumentException if a given class is not an array of
+	 *             primitives
+	 */
+	public ArrayConverter(Class<E> cls) {
+		this.kind = kind(cls);
+		if (kind < 0) throw new IllegalArgumentException(cls.getName());
+	}
+
+	static int kind(Class<?> cls) {
+		for (int i = 0; i < TYPES.length; i++)
+			if (TYPES[i] == cls) return i;
+		return -1;
+	}
+
+	@Override
+	protected void write(E value, ByteBuffer out) {
+		if (value == null) {
+			out.put((byte) 0);
+			return;
+		}
+		out.put((byte) 1);
+		switch (kind) {
+		case 0: for (boolean v : (boolean[]) value) out.put((byte) (v ? 1 : 0)); break;
+		case 1: out.put((byte[]) value); break;
+		case 2: for (short v : (short[]) value) out.putShort(v); break;
+		case 3: for (char v : (char[]) value) out.putChar(v); break;
+		case 4: for (int v : (int[]) value) out.putInt(v); break;
+		case 5: for (long v : (long[]) value) out.putLong(v); break;
+		case 6: for (float v : (float[]) value) out.putFloat(v); break;
+		default: for (double v : (double[]) value) out.putDouble(v);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public E decode(ByteBuffer in, int offset, int length) {
+		if (in.get(offset) == 0) return null;
+		int n = (length - 1) / WIDTH[kind];
+		int pos = offset + 1;
+		Object value;
+		switch (kind) {
+		case 0: { boolean[] a = new boolean[n]; for (int i = 0; i < n; i++) a[i] = in.get(pos + i) != 0; value = a; break; }
+		case 1: { byte[] a = new byte[n]; for (int i = 0; i < n; i++) a[i] = in.get(pos + i); value = a; break; }
+		case 2: { short[] a = new short[n]; for (int i = 0; i < n; i++) a[i] = in.getShort(pos + 2 * i); value = a; break; }
+		case 3: { char[] a = new char[n]; for (int i = 0; i < n; i++) a[i] = in.getChar(pos + 2 * i); value = a; break; }
+		case 4: { int[] a = new int[n]; for (int i = 0; i < n; i++) a[i] = in.getInt(pos + 4 * i); value = a; break; }
+		case 5: { long[] a = new long[n]; for (int i = 0; i < n; i++) a[i] = in.getLong(pos + 8 * i); value = a; break; }
+		case 6: { float[] a = new float[n]; for (int i = 0; i < n; i++) a[i] = in.getFloat(pos + 4 * i); value = a; break; }
+		default: { double[] a = new double[n]; for (int i = 0; i < n; i++) a[i] = in.getDouble(pos + 8 * i); value = a; }
+		}
+		return (E) value;
+	}
+
+}
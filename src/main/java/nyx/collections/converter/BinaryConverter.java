@@ -0,0 +1,63 @@
+package nyx.collections.converter;
+
+import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import nyx.collections.Const;
+
+/**
+ * Base class of the type-specialized converters. An element is written into
+ * a per-thread buffer which grows when needed, so the only allocation of
+ * {@link #encode} is the resulting array. A buffer grown beyond
+ * {@link #MAX_KEPT} bytes is dropped after the call, so one big element does
+ * not pin its buffer for the lifetime of the thread. Every converter encodes
+ * <b>{@code null}</b> values on its own.
+ *
+ * @author varlou@gmail.com
+ */
+public abstract class BinaryConverter<E> implements BufferConverter<E>, Serializable {
+
+	private static final long serialVersionUID = -7260406087224653567L;
+
+	/** Maximum size of a per-thread buffer kept between calls (64Kb). */
+	public static final int MAX_KEPT = Const._1Kb * 64;
+
+	// growable buffer for encoding. One instance per thread.
+	private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(Const._1Kb);
+		};
+	};
+
+	/**
+	 * Writes an element at the current position of a buffer.
+	 *
+	 * @throws BufferOverflowException if the buffer is too small, the element
+	 *             is written again into a bigger one
+	 */
+	protected abstract void write(E value, ByteBuffer out);
+
+	@Override
+	public byte[] encode(E from) {
+		ByteBuffer out = BUFFER.get();
+		for (;;) {
+			out.clear();
+			try {
+				write(from, out);
+				return Arrays.copyOf(out.array(), out.position());
+			} catch (BufferOverflowException e) {
+				out = ByteBuffer.allocate(out.capacity() << 1);
+				if (out.capacity() <= MAX_KEPT) BUFFER.set(out);
+			}
+		}
+	}
+
+	@Override
+	public E decode(byte[] to) {
+		if (to == null) return null;
+		return decode(ByteBuffer.wrap(to), 0, to.length);
+	}
+
+}
@@ -0,0 +1,24 @@
+package nyx.collections.converter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converter which can decode an element directly from a {@link ByteBuffer},
+ * e.g. from an off-heap chunk of a storage, without copying its bytes to an
+ * intermediate array.
+ * 
+ * @author varlou@gmail.com
+ */
+public interface BufferConverter<E> extends Converter<E, byte[]> {
+
+	/**
+	 * Decodes an element from a range of a buffer. The buffer is shared, so
+	 * only absolute get methods may be used and its position, limit and mark
+	 * must be left intact.
+	 * 
+	 * @param offset the index of the first byte of the element
+	 * @param length the number of bytes of the element
+	 */
+	E decode(ByteBuffer buffer, int offset, int length);
+
+}
@@ -0,0 +1,102 @@
+package nyx.collections.converter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class descriptors shared by the serialized elements of a storage. A
+ * descriptor is registered once, the elements refer to it by a compact id
+ * and carry no stream header. The elements can only be read back with the
+ * same dictionary, so it has to be kept along with them.
+ *
+ * @author varlou@gmail.com
+ */
+public class ClassDictionary implements Serializable {
+
+	private static final long serialVersionUID = -4420867035656082390L;
+
+	private transient ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+	// descriptors by id, replaced on registration
+	private transient volatile ObjectStreamClass[] descriptors = new ObjectStreamClass[0];
+
+	/** Returns the number of registered descriptors. */
+	public int size() {
+		return descriptors.length;
+	}
+
+	private int id(ObjectStreamClass desc) {
+		Integer id = ids.get(desc.getName());
+		if (id != null) return id;
+		synchronized (this) {
+			id = ids.get(desc.getName());
+			if (id != null) return id;
+			ObjectStreamClass[] d = Arrays.copyOf(descriptors, descriptors.length + 1);
+			d[id = descriptors.length] = desc;
+			descriptors = d;
+			ids.put(desc.getName(), id);
+			return id;
+		}
+	}
+
+	private ObjectStreamClass descriptor(int id) throws IOException {
+		ObjectStreamClass[] d = descriptors;
+		if (id >= d.length) throw new IOException("Unknown class id " + id);
+		return d[id];
+	}
+
+	/** Returns stream which writes descriptors as ids of this dictionary. */
+	ObjectOutputStream output(OutputStream out) throws IOException {
+		return new ObjectOutputStream(out) {
+			@Override
+			protected void writeStreamHeader() {
+			}
+
+			@Override
+			protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+				int id = id(desc);
+				while (id >= 0x80) {
+					write(id & 0x7f | 0x80);
+					id >>>= 7;
+				}
+				write(id);
+			}
+		};
+	}
+
+	/** Returns stream which reads descriptors as ids of this dictionary. */
+	ObjectInputStream input(InputStream in) throws IOException {
+		return new ObjectInputStream(in) {
+			@Override
+			protected void readStreamHeader() {
+			}
+
+			@Override
+			protected ObjectStreamClass readClassDescriptor() throws IOException {
+				int id = 0;
+				for (int shift = 0, b = 0x80; (b & 0x80) != 0; shift += 7)
+					id |= ((b = readUnsignedByte()) & 0x7f) << shift;
+				return descriptor(id);
+			}
+		};
+	}
+
+	private void writeObject(java.io.ObjectOutputStream out) throws IOException {
+		out.writeObject(descriptors);
+	}
+
+	private void readObject(java.io.ObjectInputStream in)
+			throws ClassNotFoundException, IOException {
+		this.descriptors = (ObjectStreamClass[]) in.readObject();
+		this.ids = new ConcurrentHashMap<>();
+		for (int i = 0; i < descriptors.length; i++)
+			ids.put(descriptors[i].getName(), i);
+	}
+
+}
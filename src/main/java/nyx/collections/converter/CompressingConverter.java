@@ -0,0 +1,203 @@
+package nyx.collections.converter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import nyx.collections.Const;
+
+/**
+ * Converter which deflates the bytes of a base converter. Elements smaller
+ * than a threshold, and elements which do not shrink, are kept as is. The
+ * first encoded elements are collected into a preset dictionary which is
+ * then used for all elements, so small elements of similar content compress
+ * well. The dictionary is serialized along with the converter.
+ *
+ * @author varlou@gmail.com
+ */
+public class CompressingConverter<E> implements BufferConverter<E>, Serializable {
+
+	private static final long serialVersionUID = 6108407306617837919L;
+
+	/** Default size of an element below which it is not compressed. */
+	public static final int DEFAULT_THRESHOLD = 64;
+	/* size of the preset dictionary, a dictionary is processed per element */
+	private static final int DICTIONARY_SIZE = Const._1Kb * 4;
+
+	private static final byte RAW = 0;
+	private static final byte DEFLATED = 1;
+	private static final byte DEFLATED_DICT = 2;
+
+	// codec state and a buffer for compressed bytes. One instance per thread.
+	private static final ThreadLocal<Codec> CODEC = new ThreadLocal<Codec>() {
+		protected Codec initialValue() {
+			return new Codec();
+		};
+	};
+
+	private final Converter<E, byte[]> baseConverter;
+	private final int threshold;
+	private volatile byte[] dictionary;
+	/* samples collected for the dictionary, guarded by this */
+	private transient ByteBuffer samples;
+
+	private transient LongAdder elements;
+	private transient LongAdder compressed;
+	private transient LongAdder rawBytes;
+	private transient LongAdder storedBytes;
+	private transient LongAdder compressNanos;
+	private transient LongAdder decompressNanos;
+
+	public CompressingConverter(Converter<E, byte[]> base) {
+		this(base, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param base converter of elements to bytes
+	 * @param threshold the size of an encoded element below which it is not
+	 *            compressed
+	 */
+	public CompressingConverter(Converter<E, byte[]> base, int threshold) {
+		this.baseConverter = base;
+		this.threshold = threshold;
+		init();
+	}
+
+	private void init() {
+		this.samples = dictionary == null ? ByteBuffer.allocate(DICTIONARY_SIZE) : null;
+		this.elements = new LongAdder();
+		this.compressed = new LongAdder();
+		this.rawBytes = new LongAdder();
+		this.storedBytes = new LongAdder();
+		this.compressNanos = new LongAdder();
+		this.decompressNanos = new LongAdder();
+	}
+
+	/** Returns compression ratio and time spent since the converter is created. */
+	public CompressionStats stats() {
+		return new CompressionStats(elements.sum(), compressed.sum(), rawBytes.sum(),
+				storedBytes.sum(), compressNanos.sum(), decompressNanos.sum());
+	}
+
+	@Override
+	public byte[] encode(E from) {
+		byte[] raw = baseConverter.encode(from);
+		if (raw == null) return null;
+		byte[] dict = dictionary;
+		if (dict == null) dict = sample(raw);
+		byte[] stored = null;
+		if (raw.length >= threshold) {
+			long started = System.nanoTime();
+			stored = deflate(raw, dict);
+			compressNanos.add(System.nanoTime() - started);
+		}
+		if (stored == null) {
+			stored = new byte[raw.length + 1];
+			stored[0] = RAW;
+			System.arraycopy(raw, 0, stored, 1, raw.length);
+		} else {
+			compressed.increment();
+		}
+		elements.increment();
+		rawBytes.add(raw.length);
+		storedBytes.add(stored.length);
+		return stored;
+	}
+
+	/** Collects a sample, returns the dictionary once it is complete. */
+	private synchronized byte[] sample(byte[] raw) {
+		if (dictionary != null) return dictionary;
+		samples.put(raw, 0, Math.min(raw.length, samples.remaining()));
+		if (samples.hasRemaining()) return null;
+		dictionary = samples.array();
+		samples = null;
+		return dictionary;
+	}
+
+	/** Returns deflated element or {@code null} if it does not shrink. */
+	private static byte[] deflate(byte[] raw, byte[] dict) {
+		Codec codec = CODEC.get();
+		Deflater deflater = codec.deflater;
+		deflater.reset();
+		if (dict != null) deflater.setDictionary(dict);
+		deflater.setInput(raw);
+		deflater.finish();
+		byte[] out = codec.buffer(raw.length + 6);
+		int header = 1;
+		out[0] = dict != null ? DEFLATED_DICT : DEFLATED;
+		int n = raw.length;
+		for (; n >= 0x80; n >>>= 7) out[header++] = (byte) (n & 0x7f | 0x80);
+		out[header++] = (byte) n;
+		// anything longer than the raw element is useless
+		int length = header + deflater.deflate(out, header, Math.max(0, raw.length - header));
+		if (!deflater.finished()) return null;
+		return Arrays.copyOf(out, length);
+	}
+
+	@Override
+	public E decode(byte[] to) {
+		if (to == null) return null;
+		return decode(ByteBuffer.wrap(to), 0, to.length);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public E decode(ByteBuffer buffer, int offset, int length) {
+		byte flag = buffer.get(offset);
+		if (flag == RAW) {
+			if (baseConverter instanceof BufferConverter)
+				return ((BufferConverter<E>) baseConverter).decode(buffer, offset + 1, length - 1);
+			return baseConverter.decode(copy(buffer, offset + 1, length - 1, new byte[length - 1]));
+		}
+		long started = System.nanoTime();
+		int rawLength = 0, pos = offset + 1;
+		for (int shift = 0, b = 0x80; (b & 0x80) != 0; shift += 7)
+			rawLength |= ((b = buffer.get(pos++)) & 0x7f) << shift;
+		Codec codec = CODEC.get();
+		int inLength = length - (pos - offset);
+		byte[] in = copy(buffer, pos, inLength, codec.buffer(inLength));
+		byte[] raw = new byte[rawLength];
+		Inflater inflater = codec.inflater;
+		inflater.reset();
+		try {
+			if (flag == DEFLATED_DICT) inflater.setDictionary(dictionary);
+			inflater.setInput(in, 0, inLength);
+			if (inflater.inflate(raw) != rawLength) throw new IOException("Truncated element");
+		} catch (DataFormatException | IOException e) {
+			throw new RuntimeException(e);
+		}
+		decompressNanos.add(System.nanoTime() - started);
+		return baseConverter.decode(raw);
+	}
+
+	private static byte[] copy(ByteBuffer buffer, int offset, int length, byte[] to) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.position(offset);
+		dup.get(to, 0, length);
+		return to;
+	}
+
+	private void readObject(java.io.ObjectInputStream in)
+			throws ClassNotFoundException, IOException {
+		in.defaultReadObject();
+		init();
+	}
+
+	/** Deflater and inflater of a thread with a growable buffer. */
+	private static class Codec {
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		final Inflater inflater = new Inflater(true);
+		private byte[] buffer = new byte[Const._1Kb];
+
+		byte[] buffer(int length) {
+			if (buffer.length < length) buffer = new byte[Math.max(length, buffer.length << 1)];
+			return buffer;
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+package nyx.collections.converter;
+
+/**
+ * Snapshot of compression ratio and CPU cost of a {@link CompressingConverter}.
+ *
+ * @author varlou@gmail.com
+ */
+public class CompressionStats {
+
+	private final long elements;
+	private final long compressedElements;
+	private final long rawBytes;
+	private final long storedBytes;
+	private final long compressNanos;
+	private final long decompressNanos;
+
+	public CompressionStats(long elements, long compressedElements, long rawBytes,
+			long storedBytes, long compressNanos, long decompressNanos) {
+		this.elements = elements;
+		this.compressedElements = compressedElements;
+		this.rawBytes = rawBytes;
+		this.storedBytes = storedBytes;
+		this.compressNanos = compressNanos;
+		this.decompressNanos = decompressNanos;
+	}
+
+	/** Number of encoded elements. */
+	public long getElements() { return elements; }
+	/** Number of encoded elements which are kept compressed. */
+	public long getCompressedElements() { return compressedElements; }
+	/** Number of bytes of the encoded elements before compression. */
+	public long getRawBytes() { return rawBytes; }
+	/** Number of bytes of the encoded elements after compression. */
+	public long getStoredBytes() { return storedBytes; }
+	/** Time spent in compression in nanoseconds. */
+	public long getCompressNanos() { return compressNanos; }
+	/** Time spent in decompression in nanoseconds. */
+	public long getDecompressNanos() { return decompressNanos; }
+
+	/**
+	 * Returns compression ratio, the number of stored bytes per raw byte.
+	 * Values below {@code 1} mean savings.
+	 */
+	public double getRatio() {
+		return rawBytes == 0 ? 1 : (double) storedBytes / rawBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "CompressionStats[elements=" + elements + ", compressed=" + compressedElements
+				+ ", raw=" + rawBytes + ", stored=" + storedBytes + ", ratio="
+				+ String.format("%.3f", getRatio()) + ", compressNanos=" + compressNanos
+				+ ", decompressNanos=" + decompressNanos + "]";
+	}
+}
@@ -1,21 +1,80 @@
 package nyx.collections.converter;
 
+import java.io.Serializable;
+
 public class ConverterFactory {
 
 	public static Converter<?,byte[]> DEFAULT = new SerialConverter<>();
-	
-	/** Returns default converter. */
+
+	/**
+	 * Returns default converter. It picks a binary format by the runtime class
+	 * of an element and falls back to Java serialization for unknown classes.
+	 */
 	public static <E> Converter<E,byte[]> get() {
-		return new NullConverter<>(new SerialConverter<E>());
+		return new TaggedConverter<E>();
+	}
+
+	/**
+	 * Returns default converter which keeps the class descriptors of the
+	 * serialized elements in a given dictionary.
+	 */
+	public static <E> Converter<E,byte[]> get(ClassDictionary dictionary) {
+		return new TaggedConverter<E>(dictionary);
 	}
-	
+
+	/**
+	 * Returns converter which compresses the bytes of a given converter if
+	 * they are at least {@code threshold} bytes long.
+	 */
+	public static <E> CompressingConverter<E> compressed(Converter<E,byte[]> base, int threshold) {
+		return new CompressingConverter<E>(base, threshold);
+	}
+
 	/** Returns best suited converter for a given class. */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public static <E> Converter<E,byte[]> forClass(Class<E> cls) {
-		return new SerialConverter<E>();
+		if (cls == String.class) return (Converter<E, byte[]>) new StringConverter();
+		if (PrimitiveConverter.kind(cls) >= 0) return new PrimitiveConverter<E>(cls);
+		if (ArrayConverter.kind(cls) >= 0) return new ArrayConverter<E>(cls);
+		if (FieldConverter.supports(cls)) return new FieldConverter<E>(cls);
+		return new TaggedConverter<E>();
 	}
-	
+
+	/**
+	 * Returns converter between a given class and {@code byte[]} in either
+	 * direction.
+	 *
+	 * @throws IllegalArgumentException if neither of the classes is
+	 *             {@code byte[]}
+	 */
+	@SuppressWarnings("unchecked")
 	public static <F,T> Converter<F,T> forTypes(Class<F> from, Class<T> to) {
-		return null;
+		if (to == byte[].class) return (Converter<F, T>) forClass(from);
+		if (from == byte[].class) return (Converter<F, T>) new Inverse<T>(forClass(to));
+		throw new IllegalArgumentException(from.getName() + " -> " + to.getName());
+	}
+
+	// converter from byte[] to an element
+	private static class Inverse<E> implements Converter<byte[], E>, Serializable {
+
+		private static final long serialVersionUID = 3519766296046003811L;
+
+		private final Converter<E, byte[]> converter;
+
+		Inverse(Converter<E, byte[]> converter) {
+			this.converter = converter;
+		}
+
+		@Override
+		public E encode(byte[] from) {
+			return converter.decode(from);
+		}
+
+		@Override
+		public byte[] decode(E to) {
+			return converter.encode(to);
+		}
+
 	}
 
 }
@@ -0,0 +1,214 @@
+package nyx.collections.converter;
+
+import java.io.Externalizable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Converter which writes the fields of a plain class one by one, without the
+ * class descriptors and stream headers of Java serialization. Primitive
+ * fields are written as is, other fields are written as a length followed by
+ * the bytes of a converter of the field type. Instances of subclasses fall
+ * back to Java serialization.
+ *
+ * @author varlou@gmail.com
+ */
+public class FieldConverter<E> extends BinaryConverter<E> {
+
+	private static final long serialVersionUID = -3944853716813398826L;
+
+	private static final byte NULL = 0;
+	private static final byte FIELDS = 1;
+	private static final byte SERIAL = 2;
+
+	private static final Class<?>[] PRIMITIVES = { boolean.class, byte.class, short.class, char.class,
+			int.class, long.class, float.class, double.class };
+
+	private final Class<E> cls;
+	private final transient Field[] fields;
+	// kind of a primitive field or -1
+	private final transient int[] kinds;
+	// converter of a reference field or null
+	private final transient BinaryConverter<Object>[] converters;
+	private final transient Constructor<E> constructor;
+	private final SerialConverter<E> serialConverter = new SerialConverter<>();
+
+	/**
+	 * @throws IllegalArgumentException if fields of a given class can not be
+	 *             written one by one
+	 */
+	@SuppressWarnings("unchecked")
+	public FieldConverter(Class<E> cls) {
+		if (!supports(cls)) throw new IllegalArgumentException(cls.getName());
+		this.cls = cls;
+		List<Field> list = fields(cls);
+		this.fields = list.toArray(new Field[list.size()]);
+		this.kinds = new int[fields.length];
+		this.converters = (BinaryConverter<Object>[]) new BinaryConverter<?>[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i].setAccessible(true);
+			Class<?> type = fields[i].getType();
+			kinds[i] = -1;
+			for (int k = 0; k < PRIMITIVES.length; k++)
+				if (PRIMITIVES[k] == type) kinds[i] = k;
+			if (kinds[i] < 0) {
+				converters[i] = (BinaryConverter<Object>) (TaggedConverter.tag(type) != TaggedConverter.SERIAL
+						? ConverterFactory.forClass(type) : new TaggedConverter<>());
+			}
+		}
+		Constructor<E> c = null;
+		try {
+			c = cls.getDeclaredConstructor();
+			c.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+		}
+		this.constructor = c;
+	}
+
+	/**
+	 * Tells if fields of a given class can be written one by one. Classes of
+	 * the JDK, classes with custom serialization and records are left to Java
+	 * serialization.
+	 */
+	public static boolean supports(Class<?> cls) {
+		if (cls.isPrimitive() || cls.isArray() || cls.isInterface() || cls.isEnum()
+				|| Modifier.isAbstract(cls.getModifiers()) || Externalizable.class.isAssignableFrom(cls))
+			return false;
+		for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+			String name = c.getName();
+			if (name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.")
+					|| name.startsWith("sun."))
+				return false;
+			for (Method m : c.getDeclaredMethods()) {
+				String mName = m.getName();
+				if (!Modifier.isStatic(m.getModifiers())
+						&& (mName.equals("writeObject") || mName.equals("readObject")
+								|| mName.equals("writeReplace") || mName.equals("readResolve")))
+					return false;
+			}
+		}
+		for (Field f : fields(cls))
+			if (!f.trySetAccessible()) return false;
+		return true;
+	}
+
+	// instance fields of a class and its superclasses in a stable order
+	private static List<Field> fields(Class<?> cls) {
+		List<Field> list = new ArrayList<>();
+		for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+			List<Field> declared = new ArrayList<>();
+			for (Field f : c.getDeclaredFields())
+				if ((f.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) == 0) declared.add(f);
+			Collections.sort(declared, new Comparator<Field>() {
+				public int compare(Field f1, Field f2) {
+					return f1.getName().compareTo(f2.getName());
+				}
+			});
+			list.addAll(0, declared);
+		}
+		return list;
+	}
+
+	@Override
+	protected void write(E value, ByteBuffer out) {
+		if (value == null) {
+			out.put(NULL);
+			return;
+		}
+		if (value.getClass() != cls) {
+			out.put(SERIAL);
+			out.put(serialConverter.encode(value));
+			return;
+		}
+		out.put(FIELDS);
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				Field f = fields[i];
+				switch (kinds[i]) {
+				case 0: out.put((byte) (f.getBoolean(value) ? 1 : 0)); break;
+				case 1: out.put(f.getByte(value)); break;
+				case 2: out.putShort(f.getShort(value)); break;
+				case 3: out.putChar(f.getChar(value)); break;
+				case 4: out.putInt(f.getInt(value)); break;
+				case 5: out.putLong(f.getLong(value)); break;
+				case 6: out.putFloat(f.getFloat(value)); break;
+				case 7: out.putDouble(f.getDouble(value)); break;
+				default:
+					int start = out.position();
+					out.putInt(0);
+					converters[i].write(f.get(value), out);
+					out.putInt(start, out.position() - start - 4);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public E decode(ByteBuffer in, int offset, int length) {
+		byte tag = in.get(offset);
+		if (tag == NULL) return null;
+		if (tag == SERIAL) return serialConverter.decode(in, offset + 1, length - 1);
+		try {
+			E value = newInstance();
+			int pos = offset + 1;
+			for (int i = 0; i < fields.length; i++) {
+				Field f = fields[i];
+				switch (kinds[i]) {
+				case 0: f.setBoolean(value, in.get(pos) != 0); pos += 1; break;
+				case 1: f.setByte(value, in.get(pos)); pos += 1; break;
+				case 2: f.setShort(value, in.getShort(pos)); pos += 2; break;
+				case 3: f.setChar(value, in.getChar(pos)); pos += 2; break;
+				case 4: f.setInt(value, in.getInt(pos)); pos += 4; break;
+				case 5: f.setLong(value, in.getLong(pos)); pos += 8; break;
+				case 6: f.setFloat(value, in.getFloat(pos)); pos += 4; break;
+				case 7: f.setDouble(value, in.getDouble(pos)); pos += 8; break;
+				default:
+					int len = in.getInt(pos);
+					f.set(value, converters[i].decode(in, pos + 4, len));
+					pos += 4 + len;
+				}
+			}
+			return value;
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private E newInstance() throws ReflectiveOperationException {
+		if (constructor != null) return constructor.newInstance();
+		return (E) Allocator.UNSAFE_ALLOCATE.invoke(Allocator.UNSAFE, cls);
+	}
+
+	// fields are not serializable, so a converter is built anew
+	private Object readResolve() {
+		return new FieldConverter<>(cls);
+	}
+
+	// creates instances of classes without a no-arg constructor
+	private static class Allocator {
+		static final Object UNSAFE;
+		static final Method UNSAFE_ALLOCATE;
+		static {
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				UNSAFE = theUnsafe.get(null);
+				UNSAFE_ALLOCATE = unsafeClass.getMethod("allocateInstance", Class.class);
+			} catch (ReflectiveOperationException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+	}
+
+}
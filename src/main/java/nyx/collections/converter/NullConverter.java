@@ -1,5 +1,8 @@
 package nyx.collections.converter;
 
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
 import nyx.collections.Const;
 
 /**
@@ -7,22 +10,38 @@ import nyx.collections.Const;
  * 
  * @author varlou@gmail.com
  */
-public class NullConverter<F,T> implements Converter<F, T> {
+public class NullConverter<F> implements BufferConverter<F>, Serializable {
+
+	private static final long serialVersionUID = -5119540371385123707L;
 
-	private final Converter<F,T> baseConverter;
+	private final Converter<F,byte[]> baseConverter;
 	
-	public NullConverter(Converter<F, T> base) {
+	public NullConverter(Converter<F, byte[]> base) {
 		this.baseConverter = base;
 	}
 
 	@Override
-	public F decode(T data) {
+	public F decode(byte[] data) {
 		F decValue = this.baseConverter.decode(data);
 		return (F) decValue != Const.<F> nil() ? decValue : null;
 	}
 
+	/** Decodes in place if the base converter can, otherwise copies the bytes. */
+	@Override
+	public F decode(ByteBuffer buffer, int offset, int length) {
+		F decValue;
+		if (baseConverter instanceof BufferConverter) {
+			decValue = ((BufferConverter<F>) baseConverter).decode(buffer, offset, length);
+		} else {
+			byte[] data = new byte[length];
+			for (int i = 0; i < length; i++) data[i] = buffer.get(offset + i);
+			decValue = baseConverter.decode(data);
+		}
+		return decValue != Const.<F> nil() ? decValue : null;
+	}
+
 	@Override
-	public T encode(F e) {
+	public byte[] encode(F e) {
 		return this.baseConverter.encode(e != null ? e : Const.<F> nil());
 	}
 
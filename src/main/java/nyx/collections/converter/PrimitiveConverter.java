@@ -0,0 +1,68 @@
+package nyx.collections.converter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converter for primitive wrappers. A value takes exactly as many bytes as
+ * the primitive, <b>{@code null}</b> takes none.
+ *
+ * @author varlou@gmail.com
+ */
+public class PrimitiveConverter<E> extends BinaryConverter<E> {
+
+	private static final long serialVersionUID = 4593409526380049870L;
+
+	static final Class<?>[] TYPES = { Boolean.class, Byte.class, Short.class, Character.class,
+			Integer.class, Long.class, Float.class, Double.class };
+
+	private final int kind;
+
+	/**
+	 * @throws IllegalArgumentException if a given class is not a primitive
+	 *             wrapper
+	 */
+	public PrimitiveConverter(Class<E> cls) {
+		this.kind = kind(cls);
+		if (kind < 0) throw new IllegalArgumentException(cls.getName());
+	}
+
+	static int kind(Class<?> cls) {
+		for (int i = 0; i < TYPES.length; i++)
+			if (TYPES[i] == cls) return i;
+		return -1;
+	}
+
+	@Override
+	protected void write(E value, ByteBuffer out) {
+		if (value == null) return;
+		switch (kind) {
+		case 0: out.put((byte) (((Boolean) value) ? 1 : 0)); break;
+		case 1: out.put((Byte) value); break;
+		case 2: out.putShort((Short) value); break;
+		case 3: out.putChar((Character) value); break;
+		case 4: out.putInt((Integer) value); break;
+		case 5: out.putLong((Long) value); break;
+		case 6: out.putFloat((Float) value); break;
+		default: out.putDouble((Double) value);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public E decode(ByteBuffer in, int offset, int length) {
+		if (length == 0) return null;
+		Object value;
+		switch (kind) {
+		case 0: value = in.get(offset) != 0; break;
+		case 1: value = in.get(offset); break;
+		case 2: value = in.getShort(offset); break;
+		case 3: value = in.getChar(offset); break;
+		case 4: value = in.getInt(offset); break;
+		case 5: value = in.getLong(offset); break;
+		case 6: value = in.getFloat(offset); break;
+		default: value = in.getDouble(offset);
+		}
+		return (E) value;
+	}
+
+}
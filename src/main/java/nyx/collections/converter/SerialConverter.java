@@ -3,18 +3,22 @@ package nyx.collections.converter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 import nyx.collections.Const;
 
 /**
  * Implements Object to byte[] array converter based on standard Java serialization mechanism.
+ * With a {@link ClassDictionary} elements refer to shared class descriptors
+ * instead of carrying their own.
  * 
  * @author varlou@gmail.com	
  */
-public class SerialConverter<E> implements Converter<E, byte[]>, Serializable {
+public class SerialConverter<E> implements BufferConverter<E>, Serializable {
 
 	private static final long serialVersionUID = 1100572136596789915L;
 	
@@ -24,13 +28,27 @@ public class SerialConverter<E> implements Converter<E, byte[]>, Serializable {
 			return new ByteArrayOutputStream(Const._1Kb * 16);
 		};
 	};
+
+	private final ClassDictionary dictionary;
+
+	public SerialConverter() {
+		this(null);
+	}
+
+	/**
+	 * @param dictionary class descriptors shared by the elements, {@code null}
+	 *            if each element carries its own
+	 */
+	public SerialConverter(ClassDictionary dictionary) {
+		this.dictionary = dictionary;
+	}
 	
 	@Override
 	public byte[] encode(E from) {
 		if (from==null) return null;
 		ByteArrayOutputStream baos = BAOS.get();
 		try {
-			ObjectOutputStream os = new ObjectOutputStream(baos);
+			ObjectOutputStream os = dictionary != null ? dictionary.output(baos) : new ObjectOutputStream(baos);
 			os.writeUnshared(from);
 			return baos.toByteArray();
 		} catch (IOException e1) {
@@ -46,10 +64,56 @@ public class SerialConverter<E> implements Converter<E, byte[]>, Serializable {
 	public E decode(byte[] to) {
 		if (to==null) return null;
 		try {
-			return (E) new ObjectInputStream(new ByteArrayInputStream(to)).readUnshared();
+			return (E) input(new ByteArrayInputStream(to)).readUnshared();
+		} catch (ClassNotFoundException | IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public E decode(ByteBuffer buffer, int offset, int length) {
+		try {
+			return (E) input(new BufferInputStream(buffer, offset, length)).readUnshared();
 		} catch (ClassNotFoundException | IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	private ObjectInputStream input(InputStream in) throws IOException {
+		return dictionary != null ? dictionary.input(in) : new ObjectInputStream(in);
+	}
+
+	/** Reads a range of a shared buffer by absolute gets. */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		private int pos;
+		private final int end;
+
+		BufferInputStream(ByteBuffer buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.pos = offset;
+			this.end = offset + length;
+		}
+
+		@Override
+		public int read() {
+			return pos < end ? buffer.get(pos++) & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (pos >= end) return -1;
+			int n = Math.min(len, end - pos);
+			for (int i = 0; i < n; i++) b[off + i] = buffer.get(pos++);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return end - pos;
+		}
+	}
+
 }
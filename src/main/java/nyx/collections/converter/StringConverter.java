@@ -0,0 +1,68 @@
+package nyx.collections.converter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converter for strings. A string is written in UTF-8 without a length,
+ * <b>{@code null}</b> is written as a single byte {@code 0xff} which never
+ * occurs in UTF-8.
+ *
+ * @author varlou@gmail.com
+ */
+public class StringConverter extends BinaryConverter<String> {
+
+	private static final long serialVersionUID = -1950434839010914117L;
+
+	private static final byte NULL = (byte) 0xff;
+
+	@Override
+	protected void write(String value, ByteBuffer out) {
+		if (value == null) {
+			out.put(NULL);
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xc0 | c >> 6));
+				out.put((byte) (0x80 | c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				out.put((byte) (0xf0 | cp >> 18));
+				out.put((byte) (0x80 | cp >> 12 & 0x3f));
+				out.put((byte) (0x80 | cp >> 6 & 0x3f));
+				out.put((byte) (0x80 | cp & 0x3f));
+			} else {
+				out.put((byte) (0xe0 | c >> 12));
+				out.put((byte) (0x80 | c >> 6 & 0x3f));
+				out.put((byte) (0x80 | c & 0x3f));
+			}
+		}
+	}
+
+	@Override
+	public String decode(ByteBuffer in, int offset, int length) {
+		if (length == 1 && in.get(offset) == NULL) return null;
+		char[] chars = new char[length];
+		int n = 0;
+		for (int i = offset, end = offset + length; i < end; ) {
+			int b = in.get(i++);
+			if (b >= 0) {
+				chars[n++] = (char) b;
+			} else if ((b & 0xe0) == 0xc0) {
+				chars[n++] = (char) ((b & 0x1f) << 6 | in.get(i++) & 0x3f);
+			} else if ((b & 0xf0) == 0xe0) {
+				chars[n++] = (char) ((b & 0x0f) << 12 | (in.get(i++) & 0x3f) << 6 | in.get(i++) & 0x3f);
+			} else {
+				int cp = (b & 0x07) << 18 | (in.get(i++) & 0x3f) << 12 | (in.get(i++) & 0x3f) << 6 | in.get(i++) & 0x3f;
+				chars[n++] = Character.highSurrogate(cp);
+				chars[n++] = Character.lowSurrogate(cp);
+			}
+		}
+		return new String(chars, 0, n);
+	}
+
+}
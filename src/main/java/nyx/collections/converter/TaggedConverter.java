@@ -0,0 +1,77 @@
+package nyx.collections.converter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converter for elements of arbitrary types. An element is written as a tag
+ * byte, which selects a converter by the runtime class of the element,
+ * followed by the bytes of that converter. Elements of other types fall back
+ * to Java serialization.
+ *
+ * @author varlou@gmail.com
+ */
+public class TaggedConverter<E> extends BinaryConverter<E> {
+
+	private static final long serialVersionUID = 2279035963081618370L;
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 9;
+	private static final byte ARRAY = 10;
+	static final byte SERIAL = 127;
+
+	// converters by tag, primitives go first
+	private static final BinaryConverter<?>[] CONVERTERS = new BinaryConverter<?>[ARRAY + ArrayConverter.TYPES.length];
+	static {
+		for (int i = 0; i < PrimitiveConverter.TYPES.length; i++)
+			CONVERTERS[i + 1] = new PrimitiveConverter<>(PrimitiveConverter.TYPES[i]);
+		CONVERTERS[STRING] = new StringConverter();
+		for (int i = 0; i < ArrayConverter.TYPES.length; i++)
+			CONVERTERS[i + ARRAY] = new ArrayConverter<>(ArrayConverter.TYPES[i]);
+	}
+
+	private final SerialConverter<E> serialConverter;
+
+	public TaggedConverter() {
+		this(null);
+	}
+
+	/**
+	 * @param dictionary class descriptors shared by the serialized elements,
+	 *            {@code null} if each element carries its own
+	 */
+	public TaggedConverter(ClassDictionary dictionary) {
+		this.serialConverter = new SerialConverter<>(dictionary);
+	}
+
+	static byte tag(Class<?> cls) {
+		if (cls == String.class) return STRING;
+		int kind = PrimitiveConverter.kind(cls);
+		if (kind >= 0) return (byte) (kind + 1);
+		kind = ArrayConverter.kind(cls);
+		if (kind >= 0) return (byte) (kind + ARRAY);
+		return SERIAL;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void write(E value, ByteBuffer out) {
+		if (value == null) {
+			out.put(NULL);
+			return;
+		}
+		byte tag = tag(value.getClass());
+		out.put(tag);
+		if (tag == SERIAL) out.put(serialConverter.encode(value));
+		else ((BinaryConverter<E>) CONVERTERS[tag]).write(value, out);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public E decode(ByteBuffer in, int offset, int length) {
+		byte tag = in.get(offset);
+		if (tag == NULL) return null;
+		if (tag == SERIAL) return serialConverter.decode(in, offset + 1, length - 1);
+		return ((BinaryConverter<E>) CONVERTERS[tag]).decode(in, offset + 1, length - 1);
+	}
+
+}
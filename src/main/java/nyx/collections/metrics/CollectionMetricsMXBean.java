@@ -0,0 +1,56 @@
+package nyx.collections.metrics;
+
+/**
+ * Management interface of a Nyx collection, see {@link Metrics}. Latencies
+ * are in nanoseconds and their percentiles are accurate within a factor of
+ * two, see {@link Histogram}.
+ *
+ * @author varlou@gmail.com
+ */
+public interface CollectionMetricsMXBean {
+
+	/** Number of reads served from the heap. */
+	long getCacheHits();
+	/** Number of reads which decoded an element from the off-heap storage. */
+	long getCacheMisses();
+	double getCacheHitRate();
+	/** Number of entries evicted by the bounds or collected by GC. */
+	long getCacheEvictions();
+	/** Number of elements on the heap. */
+	long getCacheSize();
+
+	long getEncodeCount();
+	double getEncodeMeanNanos();
+	long getEncodeP50Nanos();
+	long getEncodeP99Nanos();
+	long getEncodeMaxNanos();
+
+	long getDecodeCount();
+	double getDecodeMeanNanos();
+	long getDecodeP50Nanos();
+	long getDecodeP99Nanos();
+	long getDecodeMaxNanos();
+
+	/** Number of elements waiting to be written behind to the off-heap storage. */
+	int getWriteBehindQueueDepth();
+
+	/** Number of off-heap bytes occupied by live elements. */
+	long getOffHeapUsedBytes();
+	/** Number of off-heap bytes allocated for the chunks. */
+	long getOffHeapReservedBytes();
+	/** Number of off-heap bytes in the free lists. */
+	long getOffHeapFreeBytes();
+	/** Number of off-heap bytes in remainders too small to be reused. */
+	long getOffHeapWastedBytes();
+
+	/** Number of completed purges of the off-heap storage. */
+	long getPurgeCount();
+	double getPurgeMeanNanos();
+	long getPurgeMaxNanos();
+
+	/** Number of times the entries of the collected elements have been dropped. */
+	long getCleanerRuns();
+	/** Number of entries of the collected elements dropped from the heap. */
+	long getCleanerCollected();
+
+}
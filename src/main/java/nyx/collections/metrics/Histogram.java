@@ -0,0 +1,82 @@
+package nyx.collections.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values such as latencies in nanoseconds. Values
+ * are counted in buckets of powers of two, so percentiles are accurate within
+ * a factor of two. Recording takes no lock: the counters are striped between
+ * the threads, which makes the histogram cheap enough for the hot paths.
+ *
+ * @author varlou@gmail.com
+ */
+public final class Histogram {
+
+	/* bucket i counts values from 2^(i-1) to 2^i - 1, bucket 0 counts zeroes */
+	private static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder sum = new LongAdder();
+
+	public Histogram() {
+		for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+	}
+
+	/** Counts a value, negative values count as zero. */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+		sum.add(value);
+	}
+
+	/** Counts the nanoseconds elapsed since a given {@link System#nanoTime()}. */
+	public void since(long started) {
+		record(System.nanoTime() - started);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) count += bucket.sum();
+		return count;
+	}
+
+	public long getSum() { return sum.sum(); }
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket which holds a given percentile,
+	 * {@code 0} if nothing is recorded.
+	 *
+	 * @param percentile from {@code 0} to {@code 1}, e.g. {@code 0.99}
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) count += counts[i] = buckets[i].sum();
+		long rank = Math.max(1, (long) Math.ceil(percentile * count)), seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			if ((seen += counts[i]) >= rank) return upper(i);
+		return 0;
+	}
+
+	/** Returns the upper bound of the bucket of the largest value. */
+	public long getMax() {
+		for (int i = BUCKETS - 1; i > 0; i--)
+			if (buckets[i].sum() > 0) return upper(i);
+		return 0;
+	}
+
+	private static long upper(int bucket) {
+		return (1L << bucket) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "Histogram[count=" + getCount() + ", mean=" + String.format("%.1f", getMean()) + ", p50="
+				+ getPercentile(0.5) + ", p99=" + getPercentile(0.99) + ", max=" + getMax() + "]";
+	}
+}
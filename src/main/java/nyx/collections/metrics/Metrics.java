@@ -0,0 +1,59 @@
+package nyx.collections.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Registers the metrics of the collections in the platform MBean server
+ * under {@code nyx.collections:type=<collection>,id=<n>}, so they can be
+ * watched with JConsole or any JMX agent. Registration is turned off by
+ * setting the {@code nyx.metrics.jmx} system property to {@code false},
+ * the metrics are still collected and available from the collections.
+ *
+ * @author varlou@gmail.com
+ */
+public final class Metrics {
+
+	private static final Logger LOG = Logger.getLogger(Metrics.class.getName());
+
+	/** The JMX domain of the collection MBeans. */
+	public static final String DOMAIN = "nyx.collections";
+
+	private static final boolean JMX = Boolean.parseBoolean(System.getProperty("nyx.metrics.jmx", "true"));
+	private static final AtomicLong ids = new AtomicLong();
+
+	private Metrics() { }
+
+	/**
+	 * Registers an MBean of a collection of a given type.
+	 *
+	 * @return the name of the MBean or {@code null} if it is not registered
+	 */
+	public static ObjectName register(String type, Object mbean) {
+		if (!JMX) return null;
+		try {
+			ObjectName name = new ObjectName(DOMAIN + ":type=" + type + ",id=" + ids.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+			return name;
+		} catch (JMException e) {
+			LOG.log(Level.WARNING, "Failed to register metrics of " + type, e);
+			return null;
+		}
+	}
+
+	/** Unregisters an MBean registered by {@link #register(String, Object)}. */
+	public static void unregister(ObjectName name) {
+		if (name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			// already unregistered
+		}
+	}
+
+}
@@ -0,0 +1,350 @@
+package nyx.collections.pool;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * On-heap cache which keeps strong references to its values and is bounded
+ * by the total weight of its entries, one per entry unless a
+ * {@link Weigher} is given.
+ * <p>
+ * Eviction follows W-TinyLFU: new entries enter a small LRU window, entries
+ * leaving the window compete with the least recently used entry of the main
+ * segmented LRU, and the one accessed less often according to a frequency
+ * sketch is evicted. So a scan over cold keys does not flush the hot set.
+ * <p>
+ * Only the bounds are serialized, the entries are not.
+ *
+ * @author varlou@gmail.com
+ */
+public class BoundedCache<K, V> implements Serializable {
+
+	private static final long serialVersionUID = -3406813287113417521L;
+
+	/** Capacity of the cache of {@link ObjectPool.Type#BOUNDED} pools. */
+	public static final long DEFAULT_CAPACITY = 10000;
+
+	/** Weight of a value, e.g. its estimated size in bytes. */
+	public interface Weigher<V> {
+		int weigh(V value);
+	}
+
+	private static final byte WINDOW = 0;
+	private static final byte PROBATION = 1;
+	private static final byte PROTECTED = 2;
+
+	private final long maxWeight;
+	private final Weigher<? super V> weigher;
+
+	private transient Map<K, Node<K, V>> nodes;
+	private transient Queue<K, V> window;
+	private transient Queue<K, V> probation;
+	private transient Queue<K, V> protect;
+	private transient long windowWeight;
+	private transient long probationWeight;
+	private transient long protectedWeight;
+	private transient long evictions;
+	private transient FrequencySketch sketch;
+	// guards all the state, as even a read reorders the entries
+	private transient Lock lock;
+
+	public BoundedCache(long capacity) {
+		this(capacity, null);
+	}
+
+	/**
+	 * @param maxWeight the maximum total weight of the entries
+	 * @param weigher the weigher of the values, must be serializable for the
+	 *            cache to be serializable, {@code null} weighs each value as one
+	 */
+	public BoundedCache(long maxWeight, Weigher<? super V> weigher) {
+		if (maxWeight < 1) throw new IllegalArgumentException();
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		init();
+	}
+
+	private void init() {
+		this.nodes = new HashMap<>();
+		this.window = new Queue<>();
+		this.probation = new Queue<>();
+		this.protect = new Queue<>();
+		this.windowWeight = probationWeight = protectedWeight = evictions = 0;
+		this.sketch = new FrequencySketch((int) Math.min(maxWeight, 1 << 20));
+		this.lock = new ReentrantLock();
+	}
+
+	/* the window takes 1% of the weight, the protected segment 80% of the rest */
+	private long windowMax() { return Math.max(1, maxWeight / 100); }
+	private long protectedMax() { return (maxWeight - windowMax()) * 4 / 5; }
+
+	/** Returns a cached value or {@code null}. */
+	public V get(K key) {
+		lock.lock();
+		try {
+			sketch.increment(key);
+			Node<K, V> node = nodes.get(key);
+			if (node == null) return null;
+			touch(node);
+			return node.value;
+		} finally { lock.unlock(); }
+	}
+
+	/**
+	 * Caches a value replacing the previous one, the value is not cached if
+	 * it weighs more than the cache holds.
+	 */
+	public void put(K key, V value) {
+		int weight = weigher == null ? 1 : weigher.weigh(value);
+		lock.lock();
+		try {
+			sketch.increment(key);
+			Node<K, V> node = nodes.get(key);
+			if (weight > maxWeight) {
+				if (node != null) discard(node);
+				return;
+			}
+			if (node != null) {
+				node.value = value;
+				addWeight(node, weight - node.weight);
+				node.weight = weight;
+				touch(node);
+			} else {
+				node = new Node<>(key, value, weight);
+				nodes.put(key, node);
+				window.addLast(node);
+				windowWeight += weight;
+			}
+			evict();
+		} finally { lock.unlock(); }
+	}
+
+	public void remove(K key) {
+		lock.lock();
+		try {
+			Node<K, V> node = nodes.get(key);
+			if (node != null) discard(node);
+		} finally { lock.unlock(); }
+	}
+
+	public void clear() {
+		lock.lock();
+		try {
+			nodes.clear();
+			window.clear();
+			probation.clear();
+			protect.clear();
+			windowWeight = probationWeight = protectedWeight = 0;
+		} finally { lock.unlock(); }
+	}
+
+	/** Number of cached entries. */
+	public int size() {
+		lock.lock();
+		try { return nodes.size(); } finally { lock.unlock(); }
+	}
+
+	/** Total weight of cached entries. */
+	public long weight() {
+		lock.lock();
+		try { return total(); } finally { lock.unlock(); }
+	}
+
+	private long total() { return windowWeight + probationWeight + protectedWeight; }
+
+	public long maxWeight() { return maxWeight; }
+
+	/** Number of entries evicted to keep the cache within its bounds. */
+	public long evictions() {
+		lock.lock();
+		try { return evictions; } finally { lock.unlock(); }
+	}
+
+	/** Moves an accessed entry to the most recently used position. */
+	private void touch(Node<K, V> node) {
+		switch (node.queue) {
+		case WINDOW:
+			window.moveToLast(node);
+			break;
+		case PROBATION:
+			// the second access promotes an entry to the protected segment
+			probation.remove(node);
+			probationWeight -= node.weight;
+			node.queue = PROTECTED;
+			protect.addLast(node);
+			protectedWeight += node.weight;
+			for (Node<K, V> first; protectedWeight > protectedMax() && (first = protect.first) != node;) {
+				protect.remove(first);
+				protectedWeight -= first.weight;
+				first.queue = PROBATION;
+				probation.addLast(first);
+				probationWeight += first.weight;
+			}
+			break;
+		default:
+			protect.moveToLast(node);
+		}
+	}
+
+	/** Moves entries out of the window and evicts until the cache fits. */
+	private void evict() {
+		while (windowWeight > windowMax()) {
+			Node<K, V> candidate = window.first;
+			window.remove(candidate);
+			windowWeight -= candidate.weight;
+			candidate.queue = PROBATION;
+			probation.addLast(candidate);
+			probationWeight += candidate.weight;
+			admit(candidate);
+		}
+		// weights of the updated entries may still exceed the bound
+		while (total() > maxWeight) {
+			Node<K, V> victim = probation.first != null ? probation.first
+					: protect.first != null ? protect.first : window.first;
+			evict(victim);
+		}
+	}
+
+	/** Evicts either the candidate or the victims it is more popular than. */
+	private void admit(Node<K, V> candidate) {
+		while (total() > maxWeight) {
+			Node<K, V> victim = probation.first != candidate ? probation.first : protect.first;
+			if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+				evict(candidate);
+				return;
+			}
+			evict(victim);
+		}
+	}
+
+	private void evict(Node<K, V> node) {
+		discard(node);
+		evictions++;
+	}
+
+	private void discard(Node<K, V> node) {
+		nodes.remove(node.key);
+		addWeight(node, -node.weight);
+		queue(node).remove(node);
+	}
+
+	private void addWeight(Node<K, V> node, long delta) {
+		switch (node.queue) {
+		case WINDOW: windowWeight += delta; break;
+		case PROBATION: probationWeight += delta; break;
+		default: protectedWeight += delta;
+		}
+	}
+
+	private Queue<K, V> queue(Node<K, V> node) {
+		return node.queue == WINDOW ? window : node.queue == PROBATION ? probation : protect;
+	}
+
+	private void readObject(java.io.ObjectInputStream in)
+			throws ClassNotFoundException, IOException {
+		in.defaultReadObject();
+		init();
+	}
+
+	private static class Node<K, V> {
+		final K key;
+		V value;
+		int weight;
+		byte queue = WINDOW;
+		Node<K, V> prev, next;
+
+		Node(K key, V value, int weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/** Doubly linked list of nodes from the least to the most recently used. */
+	private static class Queue<K, V> {
+		Node<K, V> first, last;
+
+		void addLast(Node<K, V> node) {
+			node.prev = last;
+			node.next = null;
+			if (last == null) first = node;
+			else last.next = node;
+			last = node;
+		}
+
+		void remove(Node<K, V> node) {
+			if (node.prev == null) first = node.next;
+			else node.prev.next = node.next;
+			if (node.next == null) last = node.prev;
+			else node.next.prev = node.prev;
+			node.prev = node.next = null;
+		}
+
+		void moveToLast(Node<K, V> node) {
+			if (node == last) return;
+			remove(node);
+			addLast(node);
+		}
+
+		void clear() { first = last = null; }
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters estimating how often keys are
+	 * accessed. All counters are halved once the number of increments
+	 * reaches ten times the capacity, so the history fades.
+	 */
+	private static class FrequencySketch {
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+				0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final long HALF = 0x7777777777777777L;
+
+		private final long[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int capacity) {
+			// four counters per entry, sixteen counters per long
+			int counters = Integer.highestOneBit(Math.max(16, capacity) - 1) << 3;
+			this.table = new long[counters >>> 4];
+			this.mask = counters - 1;
+			this.sampleSize = 10 * Math.max(16, capacity);
+		}
+
+		int frequency(Object key) {
+			int hash = key.hashCode(), min = 15;
+			for (int i = 0; i < SEEDS.length; i++) {
+				int idx = index(hash, i);
+				min = Math.min(min, (int) (table[idx >>> 4] >>> ((idx & 15) << 2)) & 15);
+			}
+			return min;
+		}
+
+		void increment(Object key) {
+			int hash = key.hashCode();
+			boolean added = false;
+			for (int i = 0; i < SEEDS.length; i++) {
+				int idx = index(hash, i), shift = (idx & 15) << 2;
+				if ((table[idx >>> 4] >>> shift & 15) != 15) {
+					table[idx >>> 4] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				for (int i = 0; i < table.length; i++) table[i] = table[i] >>> 1 & HALF;
+				additions >>>= 1;
+			}
+		}
+
+		private int index(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			return (int) (h ^ h >>> 32) & mask;
+		}
+	}
+
+}
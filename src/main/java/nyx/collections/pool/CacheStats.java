@@ -0,0 +1,45 @@
+package nyx.collections.pool;
+
+/**
+ * Snapshot of the effectiveness of the on-heap tier of an {@link ObjectPool}.
+ *
+ * @author varlou@gmail.com
+ */
+public class CacheStats {
+
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+	private final long size;
+	private final long weight;
+
+	public CacheStats(long hits, long misses, long evictions, long size, long weight) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.size = size;
+		this.weight = weight;
+	}
+
+	/** Number of reads served from the heap. */
+	public long getHits() { return hits; }
+	/** Number of reads which decoded an element from the off-heap storage. */
+	public long getMisses() { return misses; }
+	/** Number of entries evicted by the bounds or collected by GC. */
+	public long getEvictions() { return evictions; }
+	/** Number of entries on the heap. */
+	public long getSize() { return size; }
+	/** Total weight of entries on the heap, equals to size if unweighed. */
+	public long getWeight() { return weight; }
+
+	public double getHitRate() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats[hits=" + hits + ", misses=" + misses + ", evictions="
+				+ evictions + ", size=" + size + ", weight=" + weight + ", hitRate="
+				+ String.format("%.3f", getHitRate()) + "]";
+	}
+}
@@ -6,26 +6,65 @@ import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import nyx.collections.Acme;
+import javax.management.ObjectName;
+
 import nyx.collections.KVal;
+import nyx.collections.converter.BufferConverter;
+import nyx.collections.converter.CompressingConverter;
 import nyx.collections.converter.Converter;
 import nyx.collections.converter.ConverterFactory;
+import nyx.collections.metrics.Metrics;
+import nyx.collections.storage.ElasticByteStorage;
 import nyx.collections.storage.Storage;
 import nyx.collections.vm.GCDetector;
 import nyx.collections.vm.GCDetector.Callback;
+import nyx.collections.vm.Housekeeper;
 
 /**
  * This class represents a pool of objects and implements
  * {@link nyx.collections.storage.Storage} interface.
+ * <p>
+ * New elements are written behind: they wait in a bounded queue and are
+ * encoded and stored in batches on a shared {@link Housekeeper} thread,
+ * writers block while the queue is full. Elements waiting in the queue are
+ * served to readers right away. A batch may be encoded by several encoder
+ * threads, but only one relocation of a pool runs at a time, so the
+ * elements are stored in the order they are put. The pool starts no
+ * threads of its own unless it has more than one encoder.
+ * <p>
+ * A batch which cannot be stored is not dropped: its elements stay readable
+ * and are stored again with the next batches. The failure is rethrown by
+ * the next {@link #put}, {@link #syncStorage} or {@link #close} until they
+ * are stored.
+ * <p>
+ * Decoded elements are kept on the heap depending on the {@link Type} of the
+ * pool: weakly or softly referenced until GC collects them, or strongly
+ * referenced by a {@link BoundedCache} which evicts by size or weight.
  * 
  * @author varlou@gmail.com
  */
@@ -33,215 +72,658 @@ public class ObjectPool<K, E> implements Storage<K, E>, Callback<Void>, Serializ
 
 	public interface IntFn<T> { T run(); }
 
-	public enum Type { NONE, WEAK, SOFT }
+	public enum Type { NONE, WEAK, SOFT, BOUNDED }
 
-	private static final long serialVersionUID = 1188810172228586264L;
+	private static final long serialVersionUID = 6961393278945394436L;
 
+	/* number of elements waiting to be stored before writers block */
+	private static final int QUEUE_CAPACITY = 4096;
+	/* maximum number of elements stored at once */
+	private static final int BATCH = 256;
+	/* number of batches stored before the housekeeping thread is yielded */
+	private static final int STEP = 4;
+	/* minimum number of elements worth handing over to an encoder thread */
+	private static final int SLICE = 16;
+	/* number of key stripes of the versions of the on-heap tier */
+	private static final int VERSIONS = 64;
 
-	private Map<K, Reference<E>> objectPool = Acme.chashmap();
+	/* decoded elements of WEAK and SOFT pools */
+	private ConcurrentMap<K, Reference<E>> objectPool = new ConcurrentHashMap<>();
+	/* decodes in progress, by key */
+	private Map<K, FutureTask<E>> loading;
+	/* on-heap tier of BOUNDED pools */
+	private BoundedCache<K, E> cache;
+	/* bumped by key stripe when elements are written, so a decode racing a write is not kept */
+	private AtomicIntegerArray versions;
+	private PoolMetrics metrics;
+	/* the MBean of the metrics, null if not exposed */
+	private ObjectName metricsName;
 	private Storage<K, byte[]> offHeapStorage;
-	private Converter<E, byte[]> converter = ConverterFactory.get();
+	private Converter<E, byte[]> converter;
+	/* int keys are read straight from the storage without boxing */
+	private boolean intKeys;
 
 	private ReferenceQueue<E> rQueue;
-	private Lock rqLock;
-	private Condition notEmpty;
 	
-	/* asynchronous Storage#create */
-	private Queue<KVal<K,E>> storageQueue;
+	/* asynchronous Storage#put */
+	private BlockingQueue<KVal<K,E>> storageQueue;
+	/* elements in the queue by key, readable until they are stored */
+	private Map<K, KVal<K,E>> pending;
+	/* keeps the count of enqueued elements in the queue order */
+	private Lock putLock;
 	private Lock storageLock;
-	private Condition sqProcess;
-	private Condition sqEmpty;
-	private Thread objectRelocator;
+	private Condition sqStored;
+	/* number of enqueued and stored elements, the latter is written by the relocator and by clear() */
+	private volatile long enqueued;
+	private volatile long stored;
+	/* set while a relocation is scheduled or running */
+	private AtomicBoolean relocating;
+	/* held by a running relocation */
+	private Lock relocationLock;
+	/* elements of the batches which failed to be stored, guarded by relocationLock */
+	private List<KVal<K,E>> unstored;
+	/* the last failure to store, null once all the elements are stored */
+	private volatile RuntimeException failure;
+	/* number of threads encoding a batch, the relocator included */
+	private int encoders;
+	private ExecutorService encoderPool;
 	
 	private Type type;
 	private ValueFactory vf;
 	
-	/* clean-up worker */
-	private Thread cleaner;
-	private Thread gcTimer;
+	/* periodic draining of the reference queue if GC is not detected */
+	private ScheduledFuture<?> drainer;
 	
 	public ObjectPool(Storage<K, byte[]> offHeapStorage) {
 		this(Type.WEAK,offHeapStorage);
 	}
 	
 	public ObjectPool(Type type, Storage<K, byte[]> offHeapStorage) {
-		init(type, offHeapStorage);
+		this(type, offHeapStorage, 1);
+	}
+
+	/**
+	 * Creates pool which encodes new elements in a given number of threads.
+	 */
+	public ObjectPool(Type type, Storage<K, byte[]> offHeapStorage, int encoders) {
+		this(type, offHeapStorage, ObjectPool.<K, E> defaultConverter(offHeapStorage), encoders);
+	}
+
+	/**
+	 * Creates pool which keeps its values in a given storage in the format of
+	 * a given converter, e.g. a {@link CompressingConverter}.
+	 */
+	public ObjectPool(Type type, Storage<K, byte[]> offHeapStorage, Converter<E, byte[]> converter) {
+		this(type, offHeapStorage, converter, 1);
+	}
+
+	/**
+	 * @param encoders the number of threads encoding new elements, the
+	 *            converter must be thread-safe if it is greater than 1
+	 */
+	public ObjectPool(Type type, Storage<K, byte[]> offHeapStorage, Converter<E, byte[]> converter, int encoders) {
+		if (encoders < 1) throw new IllegalArgumentException();
+		init(type, offHeapStorage, converter, encoders, null);
+	}
+
+	/**
+	 * Creates {@link Type#BOUNDED} pool which keeps recently and frequently
+	 * used elements in a given cache.
+	 */
+	public ObjectPool(Storage<K, byte[]> offHeapStorage, BoundedCache<K, E> cache) {
+		this(offHeapStorage, ObjectPool.<K, E> defaultConverter(offHeapStorage), 1, cache);
 	}
 
-	private void init(Type type, Storage<K, byte[]> offHeapStorage) {
+	public ObjectPool(Storage<K, byte[]> offHeapStorage, Converter<E, byte[]> converter, int encoders,
+			BoundedCache<K, E> cache) {
+		if (encoders < 1 || cache == null) throw new IllegalArgumentException();
+		init(Type.BOUNDED, offHeapStorage, converter, encoders, cache);
+	}
+
+	private static <K, E> Converter<E, byte[]> defaultConverter(Storage<K, byte[]> offHeapStorage) {
+		return offHeapStorage instanceof ElasticByteStorage
+				? ConverterFactory.<E> get(((ElasticByteStorage<K>) offHeapStorage).classDictionary())
+				: ConverterFactory.<E> get();
+	}
+
+	private void init(Type type, Storage<K, byte[]> offHeapStorage, Converter<E, byte[]> converter, int encoders,
+			BoundedCache<K, E> cache) {
 		this.offHeapStorage = offHeapStorage;
+		this.converter = converter;
+		this.encoders = encoders;
+		this.intKeys = offHeapStorage instanceof ElasticByteStorage
+				&& ((ElasticByteStorage<K>) offHeapStorage).hasIntKeys();
 		this.rQueue = new ReferenceQueue<>();
-		this.rqLock = new ReentrantLock();
-		this.storageQueue = new ConcurrentLinkedQueue<>();
+		this.storageQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		this.pending = new ConcurrentHashMap<>();
+		this.loading = new ConcurrentHashMap<>();
+		this.putLock = new ReentrantLock();
 		this.storageLock = new ReentrantLock();
-		this.sqProcess = storageLock.newCondition();
-		this.sqEmpty = storageLock.newCondition();
-		this.notEmpty = rqLock.newCondition();
+		this.sqStored = storageLock.newCondition();
+		this.relocating = new AtomicBoolean();
+		this.relocationLock = new ReentrantLock();
+		this.unstored = new ArrayList<>();
 		this.vf = new ValueFactory();
+		this.versions = new AtomicIntegerArray(VERSIONS);
 		this.type = type;
-		try {
-			GCDetector.listen(this);
-		} catch (GCDetector.NotAvailable e) {
-			// obsolete JVM without GC detection capabilities
-			startGCTimer();
+		if (type == Type.BOUNDED)
+			this.cache = cache != null ? cache : new BoundedCache<K, E>(BoundedCache.DEFAULT_CAPACITY);
+		this.metrics = new PoolMetrics(this);
+		if (isReferenced()) {
+			try {
+				GCDetector.listen(this);
+			} catch (GCDetector.NotAvailable e) {
+				// obsolete JVM without GC detection capabilities
+				this.drainer = Housekeeper.schedule(new Drainer(this), 10, TimeUnit.SECONDS);
+			}
 		}
-		startCleaner();
-		startRelocator();		
+		startEncoders();
 	}
 
-	private void startGCTimer() {
-		this.gcTimer = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				while (!Thread.currentThread().isInterrupted()) {
-					try {
-						TimeUnit.SECONDS.sleep(10);
-						handle(null);
-					} catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
+	/** The relocating thread encodes a part of every batch itself. */
+	private void startEncoders() {
+		if (encoders == 1) return;
+		ThreadPoolExecutor tp = new ThreadPoolExecutor(encoders - 1, encoders - 1, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "nyx-encoder");
+						t.setDaemon(true);
+						return t;
 					}
-				}
-			}});
-		this.gcTimer.setDaemon(true);
-		this.gcTimer.start();
+				});
+		tp.allowCoreThreadTimeOut(true);
+		this.encoderPool = tp;
 	}
 
-	private void startRelocator() {
-		this.objectRelocator = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				while (!Thread.currentThread().isInterrupted()) {
-					storageLock.lock();
-					try {
-						while (storageQueue.isEmpty()) sqProcess.await();
-						KVal<K, E> kv;
-						while ((kv = storageQueue.poll())!=null)
-							ObjectPool.this.offHeapStorage.put(kv.key, converter.encode(kv.value));
-						sqEmpty.signalAll();
-					} catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
-					} finally { storageLock.unlock(); }
-				}
-			}
-		});
-		objectRelocator.setDaemon(true);
-		objectRelocator.start();
-	}
-
-	private void startCleaner() {
-		if (!isNone()) {
-			this.cleaner = new Thread(new Runnable() {
-				@Override
-				public void run() {
-					while (!Thread.currentThread().isInterrupted()) {
-						try {
-							rqLock.lock(); 
-							Value<K> qe;
-							while ((qe = (Value<K>) rQueue.poll()) == null) notEmpty.await();
-							do { objectPool.remove(qe.getKey()); } while ((qe = (Value<K>) rQueue.poll()) != null);
-						} catch (InterruptedException e) {
-							// restore interrupted status
-							Thread.currentThread().interrupt();
-						} finally { rqLock.unlock(); }
-					}
-				}
+	/**
+	 * Schedules storing of the queued elements unless it is already scheduled.
+	 * Storing waits for the encoders and, under the BLOCK policy, for off-heap
+	 * memory, so it is run apart from the other housekeeping.
+	 */
+	private void relocate() {
+		if (relocating.compareAndSet(false, true))
+			Housekeeper.executeBlocking(new Runnable() {
+				@Override public void run() { relocateStep(); }
 			});
-			cleaner.setDaemon(true);
-			cleaner.start();
-		}
 	}
 
-	private boolean isNone() {
-		return this.type.equals(Type.NONE);
+	/**
+	 * Stores a few batches and yields the thread to other pools, the next
+	 * step is scheduled if there are elements left.
+	 */
+	private void relocateStep() {
+		List<KVal<K, E>> batch = new ArrayList<>(BATCH);
+		relocationLock.lock();
+		try {
+			retry();
+			for (int i = 0; i < STEP && storageQueue.drainTo(batch, BATCH) > 0; i++) {
+				// a failed batch is kept, but waiting threads must not hang
+				if (!tryStore(batch)) unstored.addAll(batch);
+				storageLock.lock();
+				try {
+					stored += batch.size();
+					sqStored.signalAll();
+				} finally { storageLock.unlock(); }
+				batch.clear();
+			}
+		} finally { relocationLock.unlock(); }
+		relocating.set(false);
+		// elements enqueued after the last drain are not missed
+		if (!storageQueue.isEmpty()) relocate();
 	}
 
-	public <T> T syncStorage(IntFn<T> fn ) {
-		storageLock.lock();
+	/**
+	 * Stores a batch and drops its elements from the pending ones. The
+	 * failure is recorded and the elements stay pending if it fails.
+	 */
+	private boolean tryStore(List<KVal<K, E>> batch) {
 		try {
-			if (!storageQueue.isEmpty()) sqEmpty.await();
-			return fn.run();
+			store(batch);
+		} catch (RuntimeException e) {
+			failure = e;
+			return false;
 		} catch (InterruptedException e) {
-		} finally { storageLock.unlock(); }
-		return null;
+			Thread.currentThread().interrupt();
+			failure = new IllegalStateException("Interrupted while storing", e);
+			return false;
+		}
+		for (KVal<K, E> kv : batch) pending.remove(kv.key, kv);
+		return true;
 	}
-	
+
+	/** Stores the elements of the failed batches again. Must be called holding relocationLock. */
+	private void retry() {
+		if (unstored.isEmpty() || !tryStore(unstored)) return;
+		unstored.clear();
+		failure = null;
+	}
+
+	/** Rethrows the failure to store if the failed batches still cannot be stored. */
+	private void recover() {
+		if (failure == null) return;
+		relocationLock.lock();
+		try {
+			retry();
+			RuntimeException e = failure;
+			if (e != null) throw e;
+		} finally { relocationLock.unlock(); }
+	}
+
+	/**
+	 * Encodes a batch of elements and puts them to the storage at once if the
+	 * storage supports it. Elements which are already present are skipped.
+	 */
+	private void store(List<KVal<K, E>> batch) throws InterruptedException {
+		List<K> keys = new ArrayList<>(batch.size());
+		for (KVal<K, E> kv : batch) keys.add(kv.key);
+		List<byte[]> values = Arrays.asList(encode(batch));
+		if (offHeapStorage instanceof ElasticByteStorage) {
+			((ElasticByteStorage<K>) offHeapStorage).putAll(keys, values);
+			return;
+		}
+		for (int i = 0; i < keys.size(); i++) {
+			try {
+				offHeapStorage.put(keys.get(i), values.get(i));
+			} catch (IllegalArgumentException e) {
+				// already present
+			}
+		}
+	}
+
+	/** Encodes a batch splitting it between the encoder threads. */
+	private byte[][] encode(final List<KVal<K, E>> batch) throws InterruptedException {
+		final byte[][] values = new byte[batch.size()][];
+		int slices = Math.max(1, Math.min(encoders, batch.size() / SLICE));
+		int step = (batch.size() + slices - 1) / slices;
+		List<Future<?>> futures = new ArrayList<>(slices - 1);
+		for (int from = step; from < batch.size(); from += step) {
+			final int first = from, last = Math.min(from + step, batch.size());
+			futures.add(encoderPool.submit(new Runnable() {
+				@Override public void run() { encode(batch, values, first, last); }
+			}));
+		}
+		encode(batch, values, 0, Math.min(step, batch.size()));
+		try {
+			for (Future<?> future : futures) future.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+					: new RuntimeException(e.getCause());
+		}
+		return values;
+	}
+
+	private void encode(List<KVal<K, E>> batch, byte[][] values, int from, int to) {
+		for (int i = from; i < to; i++) values[i] = encode(batch.get(i).value);
+	}
+
+	private byte[] encode(E value) {
+		long started = System.nanoTime();
+		byte[] encoded = converter.encode(value);
+		metrics.encodes.since(started);
+		return encoded;
+	}
+
+	private E decode(byte[] value) {
+		long started = System.nanoTime();
+		E decoded = converter.decode(value);
+		metrics.decodes.since(started);
+		return decoded;
+	}
+
+	/** Drops the entries of the collected elements. */
+	private void drainReferences() {
+		metrics.drains.increment();
+		for (Value<K> qe; (qe = (Value<K>) rQueue.poll()) != null;)
+			if (objectPool.remove(qe.getKey(), qe)) metrics.collected.increment();
+	}
+
+	/** Tells if the elements are kept on the heap until GC collects them. */
+	private boolean isReferenced() {
+		return type == Type.WEAK || type == Type.SOFT;
+	}
+
+	/**
+	 * Runs a given function once the elements put before the call are in the
+	 * underlying storage. Elements put meanwhile are not waited for.
+	 */
+	public <T> T syncStorage(IntFn<T> fn ) {
+		flush();
+		return fn.run();
+	}
+
+	/**
+	 * Waits until the elements put before the call are stored.
+	 *
+	 * @throws RuntimeException the failure to store if some elements still
+	 *             cannot be stored
+	 */
+	private void flush() {
+		long target = enqueued;
+		if (stored < target) {
+			storageLock.lock();
+			try {
+				while (stored < target) sqStored.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally { storageLock.unlock(); }
+		}
+		recover();
+	}
+
+	/** Waits for a given element if it is not stored yet. */
+	private void flush(K key) {
+		if (pending.containsKey(key)) flush();
+	}
+
 	@Override
 	public E get(final K key) {
-		return syncStorage(new IntFn<E>() {
+		E res = cached(key);
+		if (res == null) {
+			// the element is removed from the queue only after it is stored
+			KVal<K, E> kv = pending.get(key);
+			if (kv != null) {
+				metrics.hits.increment();
+				return kv.value;
+			}
+			metrics.misses.increment();
+			res = loadOnce(key);
+		} else {
+			metrics.hits.increment();
+		}
+		return res;
+	}
+
+	/**
+	 * Decodes an element once for all concurrent misses on its key and keeps
+	 * it in the on-heap tier of the pool type. A value decoded while the
+	 * element is written may be stale, so it is dropped from the tier if the
+	 * version of its key has changed meanwhile.
+	 */
+	private E loadOnce(final K key) {
+		FutureTask<E> task = new FutureTask<>(new Callable<E>() {
 			@Override
-			public E run() {
-				E res = objectPool.containsKey(key) ? objectPool.get(key).get() : null;
-				if (res == null)
-					objectPool.put(key,
-							new WeakReference<>(res = converter
-									.decode(ObjectPool.this.offHeapStorage
-											.get(key))));
-				return res;
+			public E call() {
+				int stripe = stripe(key), version = versions.get(stripe);
+				E value = load(key);
+				if (value == null) return null;
+				if (cache != null) {
+					cache.put(key, value);
+					if (versions.get(stripe) != version) cache.remove(key);
+				} else if (isReferenced()) {
+					Reference<E> ref = vf.make(key, value, rQueue);
+					Reference<E> old = objectPool.putIfAbsent(key, ref);
+					E live = old != null ? old.get() : null;
+					// put meanwhile
+					if (live != null) return live;
+					if (old != null && !objectPool.replace(key, old, ref)) return value;
+					if (versions.get(stripe) != version) objectPool.remove(key, ref);
+				}
+				return value;
 			}
 		});
+		FutureTask<E> running = loading.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally { loading.remove(key, task); }
+			running = task;
+		}
+		boolean interrupted = false;
+		try {
+			for (;;) {
+				try {
+					return running.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+							: new RuntimeException(e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private E cached(K key) {
+		if (cache != null) return cache.get(key);
+		Reference<E> ref = objectPool.get(key);
+		return ref != null ? ref.get() : null;
+	}
+
+	/**
+	 * Drops an element from the on-heap tier. Decodes running meanwhile
+	 * neither keep their values in the tier nor share them with later misses.
+	 */
+	private void uncache(K key) {
+		versions.incrementAndGet(stripe(key));
+		loading.remove(key);
+		objectPool.remove(key);
+		if (cache != null) cache.remove(key);
+	}
+
+	private static int stripe(Object key) {
+		int h = key == null ? 0 : key.hashCode();
+		return (h ^ (h >>> 16)) & (VERSIONS - 1);
+	}
+
+	/**
+	 * Returns hit, miss and eviction counters of the on-heap tier since the
+	 * pool is created.
+	 */
+	public CacheStats cacheStats() {
+		long size = cache != null ? cache.size() : objectPool.size();
+		return new CacheStats(metrics.hits.sum(), metrics.misses.sum(),
+				cache != null ? cache.evictions() : metrics.collected.sum(),
+				size, cache != null ? cache.weight() : size);
+	}
+
+	/**
+	 * Decodes an element from the off-heap storage, in place if both the
+	 * storage and the converter support it.
+	 */
+	private E load(K key) {
+		if (offHeapStorage instanceof ElasticByteStorage && converter instanceof BufferConverter) {
+			long started = System.nanoTime();
+			E value = ((ElasticByteStorage<K>) offHeapStorage).get(key, (BufferConverter<E>) converter);
+			metrics.decodes.since(started);
+			return value;
+		}
+		return decode(offHeapStorage.get(key));
+	}
+
+	/**
+	 * Returns the live metrics of this pool and of its off-heap storage.
+	 */
+	public PoolMetrics metrics() {
+		return metrics;
+	}
+
+	/**
+	 * Registers the metrics of this pool as the MBean of a collection of a
+	 * given type, see {@link Metrics}. The MBean is unregistered when the pool
+	 * is closed or exposed again.
+	 */
+	public void expose(String type) {
+		Metrics.unregister(metricsName);
+		this.metricsName = Metrics.register(type, metrics);
+	}
+
+	/** Returns the number of elements waiting to be stored. */
+	int queued() {
+		return storageQueue.size();
+	}
+
+	/** Returns the off-heap storage if it reports its memory usage. */
+	ElasticByteStorage<?> elasticStorage() {
+		return offHeapStorage instanceof ElasticByteStorage ? (ElasticByteStorage<?>) offHeapStorage : null;
+	}
+
+	/** Keeps an element in the on-heap tier of the pool type. */
+	private void cache(K key, E value) {
+		if (isReferenced()) this.objectPool.put(key, vf.make(key, value, rQueue));
+		else if (cache != null) cache.put(key, value);
 	}
 
 	@Override
 	public E put(K key, E value) {
-		if (!isNone()) this.objectPool.put(key, vf.make(key, value, rQueue));
+		recover();
+		cache(key, value);
+		KVal<K, E> kv = new KVal<>(key, value);
+		pending.put(key, kv);
+		boolean interrupted = false;
+		putLock.lock();
 		try {
-			storageLock.lock();
-			storageQueue.add(new KVal<>(key,value));
-			sqProcess.signal();
-		} finally { storageLock.unlock(); }
+			// blocks while the queue is full
+			for (;;) {
+				try {
+					storageQueue.put(kv);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			enqueued++;
+		} finally { putLock.unlock(); }
+		if (interrupted) Thread.currentThread().interrupt();
+		relocate();
 		return value;
 	}
 
 	@Override
 	public E remove(final K key) {
-		return syncStorage(new IntFn<E>() {
-			@Override public E run() {
-				E res = converter.decode(ObjectPool.this.offHeapStorage.remove(key));
-				ObjectPool.this.objectPool.remove(key);
-				return res;
-			}
-		});
+		flush(key);
+		E res = decode(offHeapStorage.remove(key));
+		uncache(key);
+		return res;
 	}
 
 	/** This method is called after each GC */
 	@Override
 	public void handle(Void e) {
-		rqLock.lock();
-		try { notEmpty.signal(); } finally { rqLock.unlock(); }
+		drainReferences();
 	}
 
 	@Override
 	public E update(final K key, final E value) {
-		return syncStorage(new IntFn<E>() {
-			@Override public E run() {
-				objectPool.remove(key);
-				offHeapStorage.update(key, converter.encode(value));
-				return value;
-			}
-		});
+		flush(key);
+		uncache(key);
+		offHeapStorage.update(key, encode(value));
+		// drops the old value cached by a concurrent read meanwhile
+		uncache(key);
+		return value;
+	}
+
+	/**
+	 * Replaces the element with a given key or adds it if there is none. The
+	 * storage overwrites the old value in place when the new one fits, and
+	 * the old value is decoded only if it is not on the heap.
+	 *
+	 * @return the previous element or {@code null} if there was none
+	 */
+	public E replace(K key, E value) {
+		flush(key);
+		E previous = cached(key);
+		uncache(key);
+		byte[] old = offHeapStorage.update(key, encode(value));
+		// drops the old value cached by a concurrent read meanwhile
+		uncache(key);
+		cache(key, value);
+		return previous != null || old == null ? previous : decode(old);
+	}
+
+	/**
+	 * Removes the element with a given key without decoding it.
+	 *
+	 * @return {@code true} if there was such an element
+	 */
+	public boolean delete(K key) {
+		flush(key);
+		byte[] old = offHeapStorage.remove(key);
+		uncache(key);
+		return old != null;
+	}
+
+	/**
+	 * Checks if there is an element with a given key. Neither the element is
+	 * decoded nor the pending elements are waited for.
+	 */
+	public boolean containsKey(K key) {
+		if (pending.containsKey(key) || cached(key) != null) return true;
+		if (offHeapStorage instanceof ElasticByteStorage)
+			return ((ElasticByteStorage<K>) offHeapStorage).containsKey(key);
+		return keySet().contains(key);
 	}
 
 	/**
-	 * Removes all of the elements from underlying and internal storages.
-	 * This instance of ObjectPool can no longer be used after #clear() is called.
+	 * Removes all of the elements from underlying and internal storages and
+	 * releases their memory. The pool can still be used afterwards.
 	 */
 	@Override
 	public void clear() {
+		// no element is enqueued but not counted yet while the counters are reset
+		putLock.lock();
+		relocationLock.lock();
 		try {
-			objectRelocator.interrupt();
-			cleaner.interrupt();
-			if (this.gcTimer!=null) {
-				this.gcTimer.interrupt();
-				this.gcTimer.join();
-			}
-			if (objectRelocator.isAlive()) objectRelocator.join();
-			if (cleaner.isAlive()) cleaner.join();
+			// elements not yet relocated are discarded, so nobody waits for them
+			storageLock.lock();
+			try {
+				storageQueue.clear();
+				pending.clear();
+				unstored.clear();
+				failure = null;
+				stored = enqueued;
+				sqStored.signalAll();
+			} finally { storageLock.unlock(); }
 			objectPool.clear();
+			if (cache != null) cache.clear();
 			offHeapStorage.clear();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		} finally {
+			relocationLock.unlock();
+			putLock.unlock();
 		}
-//		init(type, offHeapStorage);
+	}
+
+	/**
+	 * Moves all pending elements to the underlying storage and closes it.
+	 * This instance of ObjectPool can no longer be used after #close() is called.
+	 */
+	@Override
+	public void close() {
+		flush();
+		stopWorkers();
+		Metrics.unregister(metricsName);
+		relocationLock.lock();
+		try {
+			objectPool.clear();
+			if (cache != null) cache.clear();
+			offHeapStorage.close();
+		} finally { relocationLock.unlock(); }
+	}
+
+	private void stopWorkers() {
+		if (encoderPool != null) encoderPool.shutdownNow();
+		if (drainer != null) drainer.cancel(false);
+	}
+
+	/**
+	 * Returns the element with a given int key, the pool must have integer
+	 * keys. The key is not boxed if the pool keeps no elements on the heap,
+	 * its storage is created by {@link ElasticByteStorage#withIntKeys()} and
+	 * no element is waiting to be stored, otherwise it is the same as
+	 * {@link #get(Object)}.
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(int key) {
+		if (type != Type.NONE || !intKeys || !pending.isEmpty()) return get((K) Integer.valueOf(key));
+		metrics.misses.increment();
+		ElasticByteStorage<K> storage = (ElasticByteStorage<K>) offHeapStorage;
+		if (!(converter instanceof BufferConverter)) return decode(storage.get(key));
+		long started = System.nanoTime();
+		E value = storage.get(key, (BufferConverter<E>) converter);
+		metrics.decodes.since(started);
+		return value;
 	}
 
 	@Override
@@ -260,23 +742,26 @@ public class ObjectPool<K, E> implements Storage<K, E>, Callback<Void>, Serializ
 		});
 	}
 
+	/**
+	 * Requests defragmentation of the underlying off-heap storage.
+	 */
 	@Override
 	public void purge() {
-		throw new UnsupportedOperationException();
+		offHeapStorage.purge();
 	}
 
 	private void writeObject(java.io.ObjectOutputStream out) throws IOException {
-		out.writeObject(new Object[] {offHeapStorage,type});
+		out.writeObject(new Object[] {offHeapStorage,type,converter,encoders,cache});
 	}
 
 	@SuppressWarnings("unchecked")
 	private void readObject(java.io.ObjectInputStream in)
 			throws ClassNotFoundException, IOException {
-		this.objectPool = Acme.chashmap();
+		this.objectPool = new ConcurrentHashMap<>();
 		this.rQueue = new ReferenceQueue<>();
-		this.converter = ConverterFactory.get();
 		Object[] obj = (Object[]) in.readObject();
-		init((Type) obj[1], (Storage<K, byte[]>) obj[0]);
+		init((Type) obj[1], (Storage<K, byte[]>) obj[0], (Converter<E, byte[]>) obj[2], (int) obj[3],
+				(BoundedCache<K, E>) obj[4]);
 	}
 
 	public class ValueFactory {
@@ -310,7 +795,7 @@ public class ObjectPool<K, E> implements Storage<K, E>, Callback<Void>, Serializ
 			@Override
 			public Boolean run() {
 				for (K key : offHeapStorage.keySet())
-					if (converter.decode(offHeapStorage.get(key)).equals(value))
+					if (decode(offHeapStorage.get(key)).equals(value))
 						return true;
 				return false;
 			}
@@ -319,4 +804,21 @@ public class ObjectPool<K, E> implements Storage<K, E>, Callback<Void>, Serializ
 
 	interface Value<K> { K getKey(); }
 
+	/** Drains the reference queue of a pool while the pool is reachable. */
+	private static class Drainer implements Runnable {
+		private final WeakReference<ObjectPool<?, ?>> pool;
+
+		Drainer(ObjectPool<?, ?> pool) {
+			this.pool = new WeakReference<ObjectPool<?, ?>>(pool);
+		}
+
+		@Override
+		public void run() {
+			ObjectPool<?, ?> p = pool.get();
+			// an exception cancels the periodic task of a collected pool
+			if (p == null) throw new IllegalStateException("Pool is collected");
+			p.drainReferences();
+		}
+	}
+
 }
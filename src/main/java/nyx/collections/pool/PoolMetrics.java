@@ -0,0 +1,108 @@
+package nyx.collections.pool;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import nyx.collections.metrics.CollectionMetricsMXBean;
+import nyx.collections.metrics.Histogram;
+import nyx.collections.storage.ElasticByteStorage;
+import nyx.collections.storage.MemoryStats;
+
+/**
+ * Live metrics of an {@link ObjectPool} and of its off-heap storage. The
+ * counters are updated without locks on the hot paths, the getters read
+ * them on demand, see {@link ObjectPool#metrics()}.
+ *
+ * @author varlou@gmail.com
+ */
+public final class PoolMetrics implements CollectionMetricsMXBean {
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	/* entries collected by GC and the drains of the reference queue */
+	final LongAdder collected = new LongAdder();
+	final LongAdder drains = new LongAdder();
+	final Histogram encodes = new Histogram();
+	final Histogram decodes = new Histogram();
+
+	/* null if the elements are kept in the storage directly */
+	private final ObjectPool<?, ?> pool;
+	private final ElasticByteStorage<?> storage;
+
+	PoolMetrics(ObjectPool<?, ?> pool) {
+		this.pool = pool;
+		this.storage = null;
+	}
+
+	private PoolMetrics(ElasticByteStorage<?> storage) {
+		this.pool = null;
+		this.storage = storage;
+	}
+
+	/**
+	 * Returns the metrics of a collection which keeps its elements in a
+	 * storage directly. It has neither a heap tier nor a write-behind queue,
+	 * so only the off-heap metrics are collected.
+	 */
+	public static PoolMetrics of(ElasticByteStorage<?> storage) {
+		return new PoolMetrics(storage);
+	}
+
+	/** Durations of single encodes in nanoseconds. */
+	public Histogram encodes() { return encodes; }
+	/** Durations of single decodes in nanoseconds. */
+	public Histogram decodes() { return decodes; }
+
+	@Override public long getCacheHits() { return hits.sum(); }
+	@Override public long getCacheMisses() { return misses.sum(); }
+	@Override public double getCacheHitRate() { return pool != null ? pool.cacheStats().getHitRate() : 0; }
+	@Override public long getCacheEvictions() { return pool != null ? pool.cacheStats().getEvictions() : 0; }
+	@Override public long getCacheSize() { return pool != null ? pool.cacheStats().getSize() : 0; }
+
+	@Override public long getEncodeCount() { return encodes.getCount(); }
+	@Override public double getEncodeMeanNanos() { return encodes.getMean(); }
+	@Override public long getEncodeP50Nanos() { return encodes.getPercentile(0.5); }
+	@Override public long getEncodeP99Nanos() { return encodes.getPercentile(0.99); }
+	@Override public long getEncodeMaxNanos() { return encodes.getMax(); }
+
+	@Override public long getDecodeCount() { return decodes.getCount(); }
+	@Override public double getDecodeMeanNanos() { return decodes.getMean(); }
+	@Override public long getDecodeP50Nanos() { return decodes.getPercentile(0.5); }
+	@Override public long getDecodeP99Nanos() { return decodes.getPercentile(0.99); }
+	@Override public long getDecodeMaxNanos() { return decodes.getMax(); }
+
+	@Override public int getWriteBehindQueueDepth() { return pool != null ? pool.queued() : 0; }
+
+	@Override public long getOffHeapUsedBytes() { MemoryStats ms = memory(); return ms != null ? ms.getUsedBytes() : 0; }
+	@Override public long getOffHeapReservedBytes() { MemoryStats ms = memory(); return ms != null ? ms.getReservedBytes() : 0; }
+	@Override public long getOffHeapFreeBytes() { MemoryStats ms = memory(); return ms != null ? ms.getFreeBytes() : 0; }
+	@Override public long getOffHeapWastedBytes() { MemoryStats ms = memory(); return ms != null ? ms.getWastedBytes() : 0; }
+
+	@Override public long getPurgeCount() { Histogram h = purges(); return h != null ? h.getCount() : 0; }
+	@Override public double getPurgeMeanNanos() { Histogram h = purges(); return h != null ? h.getMean() : 0; }
+	@Override public long getPurgeMaxNanos() { Histogram h = purges(); return h != null ? h.getMax() : 0; }
+
+	@Override public long getCleanerRuns() { return drains.sum(); }
+	@Override public long getCleanerCollected() { return collected.sum(); }
+
+	/** Returns the memory usage of the storage, {@code null} if it is unknown. */
+	private MemoryStats memory() {
+		ElasticByteStorage<?> es = elasticStorage();
+		return es != null ? es.stats() : null;
+	}
+
+	private ElasticByteStorage<?> elasticStorage() {
+		return pool != null ? pool.elasticStorage() : storage;
+	}
+
+	private Histogram purges() {
+		ElasticByteStorage<?> es = elasticStorage();
+		return es != null ? es.purges() : null;
+	}
+
+	@Override
+	public String toString() {
+		return "PoolMetrics[" + (pool != null ? pool.cacheStats() + ", " : "") + "encodes=" + encodes
+				+ ", decodes=" + decodes + ", queued=" + getWriteBehindQueueDepth() + ", memory=" + memory() + ", purges=" + purges()
+				+ ", cleanerRuns=" + drains.sum() + ", collected=" + collected.sum() + "]";
+	}
+}
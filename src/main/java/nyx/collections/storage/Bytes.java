@@ -0,0 +1,58 @@
+package nyx.collections.storage;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Copies bytes between arrays and shared chunks by absolute gets and puts, so
+ * the position of a chunk is never touched and no lock is needed. Bytes are
+ * moved eight at a time.
+ *
+ * @author varlou@gmail.com
+ */
+final class Bytes {
+
+	private static final VarHandle BIG_ENDIAN = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle LITTLE_ENDIAN = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private Bytes() {
+	}
+
+	private static VarHandle longs(ByteBuffer bb) {
+		return bb.order() == ByteOrder.BIG_ENDIAN ? BIG_ENDIAN : LITTLE_ENDIAN;
+	}
+
+	/** Copies a range of an array to a given offset of a buffer. */
+	static void put(ByteBuffer bb, int offset, byte[] src, int from, int length) {
+		VarHandle longs = longs(bb);
+		int i = 0;
+		for (; i + 8 <= length; i += 8)
+			bb.putLong(offset + i, (long) longs.get(src, from + i));
+		for (; i < length; i++)
+			bb.put(offset + i, src[from + i]);
+	}
+
+	/** Copies bytes starting at a given offset of a buffer to an array. */
+	static void get(ByteBuffer bb, int offset, byte[] dst, int to, int length) {
+		VarHandle longs = longs(bb);
+		int i = 0;
+		for (; i + 8 <= length; i += 8)
+			longs.set(dst, to + i, bb.getLong(offset + i));
+		for (; i < length; i++)
+			dst[to + i] = bb.get(offset + i);
+	}
+
+	/** Compares bytes starting at a given offset of a buffer with a range of an array. */
+	static boolean equals(ByteBuffer bb, int offset, byte[] bytes, int from, int length) {
+		VarHandle longs = longs(bb);
+		int i = 0;
+		for (; i + 8 <= length; i += 8)
+			if (bb.getLong(offset + i) != (long) longs.get(bytes, from + i)) return false;
+		for (; i < length; i++)
+			if (bb.get(offset + i) != bytes[from + i]) return false;
+		return true;
+	}
+
+}
@@ -0,0 +1,33 @@
+package nyx.collections.storage;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Source of memory chunks for {@link ElasticByteStorage}. The storage
+ * addresses its elements linearly and its chunks may double in size as it
+ * grows. A storage which takes chunks of the same size, such as the one
+ * created by {@link ElasticByteStorage#ElasticByteStorage(int, ChunkFactory)},
+ * has chunk {@code index} covering positions from {@code index * capacity}
+ * to {@code (index + 1) * capacity}.
+ *
+ * @author varlou@gmail.com
+ */
+public interface ChunkFactory extends Serializable {
+
+	/** Returns a buffer of a given capacity for the chunk with a given index. */
+	ByteBuffer allocate(int index, int capacity);
+
+	/** Releases a chunk previously returned by {@link #allocate(int, int)}. */
+	void release(int index, ByteBuffer chunk);
+
+	/**
+	 * Called by the storage with the account its direct memory is charged
+	 * to, see {@link OffHeapMemory}.
+	 */
+	default void attach(OffHeapMemory.Account account) { }
+
+	/** Releases resources of this factory once its storage is closed. */
+	default void close() { }
+
+}
@@ -0,0 +1,73 @@
+package nyx.collections.storage;
+
+import java.io.Serializable;
+
+/**
+ * Sizes and positions of the chunks of an {@link ElasticByteStorage}. The
+ * first chunk has the base size and every next one is twice as large until
+ * the maximum size is reached, all further chunks have the maximum size. A
+ * small storage stays small while a large one is made of a few large chunks,
+ * which keeps the number of chunks and the TLB pressure low.
+ * <p>
+ * If the maximum equals the base all chunks have the same size, chunk
+ * {@code index} covers positions from {@code index * base} to
+ * {@code (index + 1) * base}.
+ *
+ * @author varlou@gmail.com
+ */
+final class ChunkLayout implements Serializable {
+
+	private static final long serialVersionUID = 4961772530391857826L;
+
+	/** Size of the first chunk. */
+	final int base;
+	/** Size of the largest chunk, the base times a power of two. */
+	final int max;
+	/* number of chunks which grow, the index of the first chunk of the maximum size */
+	private final int doublings;
+	/* position of the first chunk of the maximum size */
+	private final long growth;
+
+	/**
+	 * @param base the size of the first chunk in bytes
+	 * @param max the maximum size of a chunk in bytes, rounded down to the
+	 *            base times a power of two
+	 * @throws IllegalArgumentException if {@code max < base}
+	 */
+	ChunkLayout(int base, int max) {
+		if (max < base) throw new IllegalArgumentException();
+		this.base = base;
+		this.doublings = 31 - Integer.numberOfLeadingZeros(max / base);
+		this.max = base << doublings;
+		this.growth = (long) base * ((1L << doublings) - 1);
+	}
+
+	/** Returns the index of the chunk which holds a given position. */
+	int index(long pos) {
+		if (pos >= growth) return doublings + (int) ((pos - growth) / max);
+		return 63 - Long.numberOfLeadingZeros(pos / base + 1);
+	}
+
+	/** Returns the first position of a given chunk. */
+	long start(int idx) {
+		if (idx >= doublings) return growth + (long) (idx - doublings) * max;
+		return (long) base * ((1L << idx) - 1);
+	}
+
+	/** Returns the size of a given chunk in bytes. */
+	int size(int idx) {
+		return base << Math.min(idx, doublings);
+	}
+
+	/** Returns the position right after the chunk which holds a given position. */
+	long end(long pos) {
+		int idx = index(pos);
+		return start(idx) + size(idx);
+	}
+
+	/** Returns the offset of a given position within its chunk. */
+	int offset(long pos) {
+		return (int) (pos - start(index(pos)));
+	}
+
+}
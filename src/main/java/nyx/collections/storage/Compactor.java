@@ -0,0 +1,49 @@
+package nyx.collections.storage;
+
+import nyx.collections.vm.Housekeeper;
+
+/**
+ * Runs incremental compaction of storages on the shared {@link Housekeeper}
+ * threads. Compaction of each storage is split into short steps which are
+ * interleaved with steps of other storages, so none of them is blocked for
+ * the whole duration of the compaction.
+ *
+ * @author varlou@gmail.com
+ */
+public class Compactor {
+
+	/** Storage which can be compacted step by step. */
+	public interface Compactable {
+		/**
+		 * Performs one bounded step of compaction.
+		 *
+		 * @return {@code true} if there is more work to be done
+		 */
+		boolean compactStep();
+	}
+
+	private Compactor() { }
+
+	/**
+	 * Submits compaction of a given storage. The caller is responsible for not
+	 * scheduling the same storage twice.
+	 *
+	 * @param storage the storage to compact
+	 * @param done called when compaction is finished
+	 */
+	public static void schedule(final Compactable storage, final Runnable done) {
+		Housekeeper.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean more = false;
+				try {
+					more = storage.compactStep();
+				} finally {
+					if (more) Housekeeper.execute(this);
+					else done.run();
+				}
+			}
+		});
+	}
+
+}
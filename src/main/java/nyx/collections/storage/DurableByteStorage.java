@@ -0,0 +1,361 @@
+package nyx.collections.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import nyx.collections.converter.ClassDictionary;
+import nyx.collections.converter.Converter;
+import nyx.collections.converter.ConverterFactory;
+import nyx.collections.vm.Housekeeper;
+
+/**
+ * Memory-mapped storage which survives restarts. All its files are kept in
+ * one directory:
+ * <ul>
+ * <li>{@code data} - element bytes in mapped segments, see
+ * {@link MappedByteStorage};</li>
+ * <li>{@code index} - snapshot of element locations taken by
+ * {@link #checkpoint()};</li>
+ * <li>{@code index.log} - element location changes made after the snapshot.
+ * Every record is protected by a checksum, a record damaged by a crash and
+ * everything after it is discarded on recovery.</li>
+ * </ul>
+ * Reopening a storage reads only the index and the log, so it takes time
+ * proportional to the number of elements, not to the size of the data.
+ * Location changes are logged before the old extent can be reused and
+ * values are never overwritten in place, so the storage survives a crash of
+ * the process. Data which has to survive a crash of the operating system
+ * must be forced to disk with {@link #flush()}.
+ * <p>
+ * A checkpoint is written in the background by the {@link Housekeeper}
+ * whenever the log grows bigger than twice the snapshot, so the log and the
+ * time to reopen the storage stay bounded.
+ *
+ * @author varlou@gmail.com
+ */
+public class DurableByteStorage<E> extends MappedByteStorage<E> {
+
+	private static final long serialVersionUID = 6785245063096290658L;
+
+	static final String DATA = "data";
+	static final String INDEX = "index";
+	static final String LOG = "index.log";
+
+	private static final int MAGIC = 0x4e797831; // "Nyx1"
+	/* keyHash, previous and new offsets, keyLength, valueLength, valueHash, crc */
+	private static final int RECORD = 4 + 8 + 8 + 4 + 4 + 4 + 8;
+	/* generation, segment size */
+	private static final int HEADER = 8 + 4;
+	/* the log is never checkpointed in the background before it has that many records */
+	private static final int MIN_RECORDS = 1 << 16;
+
+	private final transient Path dir;
+	private transient FileChannel log;
+	/* incremented by every checkpoint, tells which log belongs to the snapshot */
+	private transient long generation;
+	/* number of records in the log, guarded by the index lock */
+	private transient long records;
+	private transient volatile boolean checkpointing;
+	private transient volatile byte[] attachment;
+
+	/**
+	 * Opens a storage in a given directory, the directory is created if it
+	 * does not exist.
+	 */
+	public DurableByteStorage(Path dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT, ConverterFactory.<E> get());
+	}
+
+	/**
+	 * Opens a storage in a given directory, the directory is created if it
+	 * does not exist.
+	 *
+	 * @param segmentSize the size of a mapped segment of a new storage, the
+	 *            size of an existing storage is kept
+	 * @param keyConverter converts keys to the bytes kept in the records,
+	 *            {@code null} if the keys are non-negative integers
+	 */
+	public DurableByteStorage(Path dir, int segmentSize, Converter<E, byte[]> keyConverter) throws IOException {
+		super(prepare(dir).resolve(DATA), segmentSize(dir, segmentSize), keyConverter);
+		this.dir = dir;
+		recover();
+	}
+
+	/**
+	 * Opens a storage for non-negative integer keys in a given directory, see
+	 * {@link ElasticByteStorage#withIntKeys()}.
+	 */
+	public static DurableByteStorage<Integer> withIntKeys(Path dir) throws IOException {
+		return new DurableByteStorage<Integer>(dir, DEFAULT_SEGMENT, null);
+	}
+
+	private static Path prepare(Path dir) throws IOException {
+		return Files.createDirectories(dir);
+	}
+
+	private static int segmentSize(Path dir, int segmentSize) throws IOException {
+		Path index = dir.resolve(INDEX);
+		if (Files.exists(index)) {
+			try (DataInputStream in = new DataInputStream(Files.newInputStream(index))) {
+				if (in.readInt() != MAGIC) throw new IOException("Not a Nyx index: " + index);
+				return in.readInt();
+			}
+		}
+		// a storage which has never been checkpointed keeps it only in the log
+		Path log = dir.resolve(LOG);
+		if (!Files.exists(log) || Files.size(log) < HEADER) return segmentSize;
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(log))) {
+			in.readLong(); // generation
+			return in.readInt();
+		}
+	}
+
+	private void recover() throws IOException {
+		Path index = dir.resolve(INDEX);
+		if (Files.exists(index)) readSnapshot(index);
+		this.log = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long end = replay();
+		// discard the record damaged by a crash
+		log.truncate(end);
+		log.position(end);
+		if (end == 0) writeLogHeader();
+		restored();
+	}
+
+	private void readSnapshot(Path index) throws IOException {
+		try (CheckedInputStream cin = new CheckedInputStream(
+				new BufferedInputStream(Files.newInputStream(index)), new CRC32());
+				DataInputStream in = new DataInputStream(cin)) {
+			in.readInt(); // magic
+			in.readInt(); // segment size
+			if (in.readBoolean() != hasIntKeys()) throw new IOException("Different keys in Nyx index: " + index);
+			generation = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+				restore(in.readInt(), -1, in.readLong(), in.readInt(), in.readInt(), in.readInt());
+			int length = in.readInt();
+			if (length >= 0) {
+				attachment = new byte[length];
+				in.readFully(attachment);
+			}
+			long crc = cin.getChecksum().getValue();
+			if (in.readLong() != crc) throw new IOException("Corrupted Nyx index: " + index);
+		}
+	}
+
+	/**
+	 * Applies the log to the index and returns the end of its last valid
+	 * record. A log left by a checkpoint interrupted by a crash belongs to the
+	 * previous generation and is ignored, the snapshot already contains it.
+	 */
+	private long replay() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log)));
+		long end = 0;
+		try {
+			long logGeneration = in.readLong();
+			if (in.readInt() != chunkSize()) throw new IOException("Different segment size in Nyx log: " + dir.resolve(LOG));
+			if (logGeneration != generation) return 0;
+			end = HEADER;
+			for (;;) {
+				ByteBuffer record = ByteBuffer.allocate(RECORD);
+				in.readFully(record.array());
+				CRC32 check = new CRC32();
+				check.update(record.array(), 0, RECORD - 8);
+				if (record.getLong(RECORD - 8) != check.getValue()) break;
+				restore(record.getInt(), record.getLong(), record.getLong(), record.getInt(),
+						record.getInt(), record.getInt());
+				records++;
+				end += RECORD;
+			}
+		} catch (EOFException e) {
+			// the last record is incomplete
+		}
+		return end;
+	}
+
+	private void writeLogHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putLong(generation).putInt(chunkSize()).flip();
+		while (header.hasRemaining()) log.write(header);
+		records = 0;
+	}
+
+	/**
+	 * Logs every location change before the old extent can be reused and
+	 * schedules a checkpoint once the log outgrows the snapshot.
+	 */
+	@Override
+	protected void located(int keyHash, long previous, long offset, int keyLength, int valueLength, int valueHash) {
+		ByteBuffer record = ByteBuffer.allocate(RECORD);
+		record.putInt(keyHash).putLong(previous).putLong(offset)
+				.putInt(keyLength).putInt(valueLength).putInt(valueHash);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, RECORD - 8);
+		record.putLong(crc.getValue()).flip();
+		try {
+			while (record.hasRemaining()) log.write(record);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (++records > Math.max(MIN_RECORDS, 2L * size()) && !checkpointing) {
+			checkpointing = true;
+			// forcing the files to disk may take a while
+			Housekeeper.executeBlocking(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						checkpointIfOpen();
+					} catch (IOException e) {
+						// the log keeps growing until the next attempt
+					} finally {
+						checkpointing = false;
+					}
+				}
+			});
+		}
+	}
+
+	/** In-place writes could leave a half-written value after a crash. */
+	@Override
+	protected boolean updatesInPlace() {
+		return false;
+	}
+
+	/** The log does not cover the dictionary, so values carry their own descriptors. */
+	@Override
+	public ClassDictionary classDictionary() {
+		return null;
+	}
+
+	/** Sets application data stored along with the index at checkpoints. */
+	public void attach(byte[] attachment) {
+		this.attachment = attachment;
+	}
+
+	/** Returns application data restored from the index, may be {@code null}. */
+	public byte[] attachment() {
+		return attachment;
+	}
+
+	/**
+	 * Forces data segments and the log to disk.
+	 */
+	public void flush() throws IOException {
+		forEachChunk(new Consumer<ByteBuffer>() {
+			@Override public void accept(ByteBuffer chunk) { ((MappedByteBuffer) chunk).force(); }
+		});
+		log.force(false);
+	}
+
+	/**
+	 * Writes a snapshot of the index and truncates the log. Writers are blocked
+	 * while the snapshot is being written.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		withIndexLocked(new IndexTask() {
+			@Override public void run() throws IOException {
+				flush();
+				Path tmp = dir.resolve(INDEX + ".tmp");
+				try (CheckedOutputStream cout = new CheckedOutputStream(
+						new BufferedOutputStream(Files.newOutputStream(tmp)), new CRC32());
+						final DataOutputStream out = new DataOutputStream(cout)) {
+					out.writeInt(MAGIC);
+					out.writeInt(chunkSize());
+					out.writeBoolean(hasIntKeys());
+					out.writeLong(generation + 1);
+					out.writeInt(size());
+					forEachEntry(new EntryVisitor() {
+						@Override public void visit(int keyHash, long offset, int keyLength, int valueLength, int valueHash) throws IOException {
+							out.writeInt(keyHash);
+							out.writeLong(offset);
+							out.writeInt(keyLength);
+							out.writeInt(valueLength);
+							out.writeInt(valueHash);
+						}
+					});
+					byte[] attachment = DurableByteStorage.this.attachment;
+					out.writeInt(attachment != null ? attachment.length : -1);
+					if (attachment != null) out.write(attachment);
+					out.flush();
+					out.writeLong(cout.getChecksum().getValue());
+				}
+				try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+					channel.force(true);
+				}
+				Files.move(tmp, dir.resolve(INDEX), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+				generation++;
+				log.truncate(0);
+				log.position(0);
+				writeLogHeader();
+				log.force(false);
+			}
+		});
+	}
+
+	/* the background checkpoint may come after the storage is closed */
+	private synchronized void checkpointIfOpen() throws IOException {
+		if (log.isOpen()) checkpoint();
+	}
+
+	/**
+	 * Removes all elements from this storage and writes an empty snapshot. The
+	 * data file keeps its size, its space is reused by new elements.
+	 */
+	@Override
+	public void clear() {
+		super.clear();
+		try {
+			checkpoint();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes a checkpoint and releases all resources. The storage can be
+	 * reopened from the same directory afterwards.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			try {
+				checkpoint();
+				log.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		super.close();
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		throw new NotSerializableException(getClass().getName());
+	}
+
+	/** Checks if a given directory contains a storage. */
+	public static boolean exists(Path dir) {
+		return Files.exists(dir.resolve(INDEX)) || Files.exists(dir.resolve(LOG));
+	}
+
+}
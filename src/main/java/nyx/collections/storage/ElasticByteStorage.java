@@ -5,129 +5,883 @@ import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.AbstractSet;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
 
-import nyx.collections.Acme;
 import nyx.collections.Const;
+import nyx.collections.converter.BufferConverter;
+import nyx.collections.converter.ClassDictionary;
+import nyx.collections.converter.Converter;
+import nyx.collections.converter.ConverterFactory;
+import nyx.collections.metrics.Histogram;
+import nyx.collections.storage.OffHeapIndex.Table;
 
 /**
  * Elastic thread-safe storage for byte arrays. This is a base class which is
  * used by Nyx collection classes. Byte arrays are stored in direct
  * {@link java.nio.ByteBuffers} outside garbage-collected memory.
+ * <p>
+ * Every element is kept as a record of its key bytes followed by its value
+ * bytes. Records are found through an {@link OffHeapIndex} which lives
+ * off-heap as well, so the heap footprint of the storage does not depend on
+ * the number of elements.
+ * <p>
+ * Readers never block: they read the index optimistically and simply read
+ * again if it has been modified meanwhile. Chunks which become empty are
+ * deallocated only after all readers which could still see them have left.
+ * Chunks are accessed by absolute offsets only, so neither readers nor
+ * writers lock them.
+ * <p>
+ * While there is no free space to reuse, writers carve small records out of
+ * thread-local allocation buffers and take the allocator lock only once per
+ * buffer.
  *
  * @author varlou@gmail.com
  */
-public class ElasticByteStorage<E> implements Storage<E, byte[]>, Serializable {
+public class ElasticByteStorage<E> implements Storage<E, byte[]>, Compactor.Compactable, Serializable {
 
-    private static final long serialVersionUID = 1408552328267845863L;
+    private static final long serialVersionUID = -7119456137583384297L;
 
-    private transient List<ByteBuffer> dbbs = new ArrayList<>();
-    private long cursor = 0;
-    private int capacity = Const._1Kb * 4; // default chunk size is 4Kb
-    /* long array contains 3 elements - from, to and hashCode*/
-    private Map<E, long[]> elementsLocation = Acme.chashmap();
+    /* number of index slots examined by a single compaction step */
+    private static final int COMPACT_BATCH = 256;
+    /* number of optimistic attempts before a reader falls back to the read lock */
+    private static final int OPTIMISTIC_READS = 3;
+    /* key bytes of the records of a storage with int keys */
+    private static final byte[] NO_KEY = new byte[0];
+    /* copies of the values which span several chunks, one per thread */
+    private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<ByteBuffer>() {
+        @Override protected ByteBuffer initialValue() { return ByteBuffer.allocate(Const._1Kb); }
+    };
+    /* result of an index reader which has observed an inconsistent state */
+    private static final Object RETRY = new Object();
+    /* bounds of the size of a thread-local allocation buffer */
+    private static final int TLAB_MIN = Const._1Kb;
+    private static final int TLAB_MAX = Const._1Kb * 64;
 
     /**
-     * Creates instance with a default initial capacity (4Kb).
+     * Maximum size of a chunk (64Mb) a storage grows to by default. Chunks of
+     * 2Mb and more may be backed by transparent huge pages where the OS
+     * enables them for large allocations.
+     */
+    public static final int MAX_CHUNK = Const._1Mb * 64;
+
+    private transient volatile AtomicReferenceArray<ByteBuffer> dbbs;
+    /* read-only views of the chunks handed out to buffer converters */
+    private transient volatile AtomicReferenceArray<ByteBuffer> views;
+    /* number of bytes occupied by live elements in each chunk, guarded by allocator */
+    private transient int[] live;
+    /* number of chunk slots in use and number of allocated chunks, guarded by allocator */
+    private transient int slots;
+    private transient int chunks;
+    private transient long chunkBytes;
+    private int capacity = Const._1Kb * 4; // default size of the first chunk is 4Kb
+    private int maxChunk = MAX_CHUNK;
+    private transient ChunkLayout layout;
+    /* locations of the records, modified holding the write lock */
+    private transient OffHeapIndex index;
+    private transient StampedLock lock;
+    /* keeps track of the space released by remove and update operations */
+    private transient FreeListAllocator allocator;
+    /* thread-local allocation buffers, valid while their generation is current */
+    private transient ThreadLocal<Tlab> tlabs;
+    /* bytes of the thread-local allocation buffers not handed out yet */
+    private transient LongAdder tlabBytes;
+    /* incremented whenever all the space is released, guarded by allocator */
+    private transient volatile int generation;
+    private ChunkFactory chunkFactory = new DirectChunks();
+    private Converter<E, byte[]> keyConverter = ConverterFactory.get();
+    private ClassDictionary classDictionary = new ClassDictionary();
+
+    private transient EpochGuard epoch;
+    private transient ReentrantLock compactLock;
+    private transient AtomicBoolean compacting;
+    private transient volatile boolean compactRequested;
+    private transient Histogram purges;
+    /* next index slot examined by compaction, -1 if there is no compaction in progress */
+    private transient int scan;
+    /* direct memory charged to this storage */
+    private transient OffHeapMemory.Account account;
+
+    /**
+     * Creates instance with a default initial capacity (4Kb). Chunks double
+     * in size up to {@link #MAX_CHUNK} as the storage grows.
      */
     public ElasticByteStorage() {
+        init();
     }
 
     /**
-     * Creates instance with a given initial capacity in bytes.
+     * Creates instance with a given initial capacity in bytes. Chunks double
+     * in size up to {@link #MAX_CHUNK} as the storage grows.
      *
      * @param capacity the capacity of this storage in bytes
      * @throws IllegalArgumentException if {@code capacity < 4096}
      */
     public ElasticByteStorage(int capacity) {
-        if (capacity < Const._1Kb * 4) throw new IllegalArgumentException();
+        this(capacity, Math.max(capacity, MAX_CHUNK));
+    }
+
+    /**
+     * Creates instance with a given initial capacity and a given maximum size
+     * of a chunk in bytes. Chunks double in size until the maximum is reached.
+     *
+     * @param capacity the size of the first chunk in bytes
+     * @param maxChunk the maximum size of a chunk in bytes, rounded down to
+     *            {@code capacity} times a power of two
+     * @throws IllegalArgumentException if {@code capacity < 4096} or
+     *             {@code maxChunk < capacity}
+     */
+    public ElasticByteStorage(int capacity, int maxChunk) {
+        this(capacity, maxChunk, new DirectChunks(), ConverterFactory.<E> get());
+    }
+
+    /**
+     * Creates instance which takes its chunks of the same size from a given
+     * factory.
+     *
+     * @param capacity the size of a chunk in bytes
+     * @param chunkFactory the source of chunks
+     * @throws IllegalArgumentException if {@code capacity < 4096}
+     */
+    protected ElasticByteStorage(int capacity, ChunkFactory chunkFactory) {
+        this(capacity, chunkFactory, ConverterFactory.<E> get());
+    }
+
+    /**
+     * Creates instance which takes its chunks of the same size from a given
+     * factory.
+     *
+     * @param capacity the size of a chunk in bytes
+     * @param chunkFactory the source of chunks
+     * @param keyConverter converts keys to the bytes kept in the records,
+     *            {@code null} if the keys are non-negative integers, see
+     *            {@link #withIntKeys()}
+     * @throws IllegalArgumentException if {@code capacity < 4096}
+     */
+    protected ElasticByteStorage(int capacity, ChunkFactory chunkFactory, Converter<E, byte[]> keyConverter) {
+        this(capacity, capacity, chunkFactory, keyConverter);
+    }
+
+    /**
+     * Creates instance which takes its chunks from a given factory. The size
+     * of chunk {@code i} is {@code capacity << min(i, log2(maxChunk / capacity))}.
+     *
+     * @param capacity the size of the first chunk in bytes
+     * @param maxChunk the maximum size of a chunk in bytes
+     * @param chunkFactory the source of chunks
+     * @param keyConverter converts keys to the bytes kept in the records,
+     *            {@code null} if the keys are non-negative integers
+     * @throws IllegalArgumentException if {@code capacity < 4096} or
+     *             {@code maxChunk < capacity}
+     */
+    protected ElasticByteStorage(int capacity, int maxChunk, ChunkFactory chunkFactory, Converter<E, byte[]> keyConverter) {
+        if (capacity < Const._1Kb * 4 || maxChunk < capacity) throw new IllegalArgumentException();
         this.capacity = capacity;
+        this.maxChunk = maxChunk;
+        this.chunkFactory = chunkFactory;
+        this.keyConverter = keyConverter;
+        init();
+    }
+
+    /**
+     * Creates instance for non-negative integer keys such as positions of
+     * list elements. The key is used as the slot number of the index, so
+     * lookups involve neither hashing nor key encoding. The index grows up to
+     * the greatest key, so the keys are expected to be dense.
+     */
+    public static ElasticByteStorage<Integer> withIntKeys() {
+        return withIntKeys(Const._1Kb * 4, MAX_CHUNK);
+    }
+
+    /**
+     * Creates instance for non-negative integer keys, see {@link #withIntKeys()},
+     * with a given initial capacity and a given maximum size of a chunk.
+     *
+     * @throws IllegalArgumentException if {@code capacity < 4096} or
+     *             {@code maxChunk < capacity}
+     */
+    public static ElasticByteStorage<Integer> withIntKeys(int capacity, int maxChunk) {
+        return new ElasticByteStorage<Integer>(capacity, maxChunk, new DirectChunks(), null);
+    }
+
+    private void init() {
+        this.account = OffHeapMemory.open(this);
+        chunkFactory.attach(account);
+        this.dbbs = new AtomicReferenceArray<>(16);
+        this.views = new AtomicReferenceArray<>(16);
+        this.live = new int[16];
+        this.layout = new ChunkLayout(capacity, maxChunk);
+        this.allocator = new FreeListAllocator(layout);
+        this.tlabs = new ThreadLocal<Tlab>() {
+            @Override protected Tlab initialValue() { return new Tlab(); }
+        };
+        this.tlabBytes = new LongAdder();
+        this.purges = new Histogram();
+        this.lock = new StampedLock();
+        this.epoch = new EpochGuard();
+        this.compactLock = new ReentrantLock();
+        this.compacting = new AtomicBoolean();
+        this.scan = -1;
+        this.index = new OffHeapIndex(new OffHeapIndex.Keys() {
+            @Override public boolean matches(long offset, byte[] key) { return ElasticByteStorage.this.matches(offset, key); }
+        }, new OffHeapIndex.Retirement() {
+            @Override public void retire(final ByteBuffer[] pages) {
+                epoch.retire(new Runnable() {
+                    @Override public void run() { for (ByteBuffer page : pages) OffHeapMemory.free(account, page); }
+                });
+            }
+        }, keyConverter == null, account);
+    }
+
+    /** Returns the bytes of a key kept in its record. */
+    private byte[] key(E id) {
+        return keyConverter != null ? keyConverter.encode(id) : NO_KEY;
+    }
+
+    /** Returns the hash of a key, an int key is its own hash. */
+    private int hash(E id, byte[] key) {
+        return keyConverter != null ? OffHeapIndex.hash(key) : (Integer) id;
+    }
+
+    /** Checks a key of a new element before its record is written. */
+    private static void checkKey(byte[] key, int hash) {
+        if (key == NO_KEY && hash < 0) throw new IllegalArgumentException("Negative key: " + hash);
+    }
+
+    /**
+     * Returns class descriptors shared by the serialized values of this
+     * storage, see {@link ConverterFactory#get(ClassDictionary)}. The
+     * dictionary is serialized along with the storage.
+     *
+     * @return the dictionary or {@code null} if values have to carry their
+     *         own descriptors
+     */
+    public ClassDictionary classDictionary() {
+        return classDictionary;
+    }
+
+    /** Tells whether this storage is created by {@link #withIntKeys()}. */
+    public boolean hasIntKeys() {
+        return keyConverter == null;
     }
 
     @Override
     public byte[] put(E id, byte[] addme) {
-        if (elementsLocation.containsKey(id))
-            throw new IllegalArgumentException();
+        byte[] key = key(id);
+        if (!insert(key, hash(id, key), addme)) throw new IllegalArgumentException();
+        return addme;
+    }
+
+    /**
+     * Adds an element unless there is one with the same key. The key is
+     * encoded once and an existing element is found without writing a record.
+     *
+     * @return {@code true} if the element is added
+     */
+    public boolean putIfAbsent(E id, byte[] value) {
+        byte[] key = key(id);
+        int hash = hash(id, key);
+        return !indexed(key, hash) && insert(key, hash, value);
+    }
+
+    /**
+     * Writes a record and indexes it unless its key is indexed meanwhile, then
+     * the record is released.
+     *
+     * @return {@code true} if the record is indexed
+     */
+    private boolean insert(byte[] key, int hash, byte[] addme) {
+        int valueHash = Arrays.hashCode(addme);
+        checkKey(key, hash);
+        int length = key.length + addme.length;
+        long from = reserve(length, false);
+        write(from, key);
+        write(from + key.length, addme);
+        boolean added;
+        long stamp = lock.writeLock();
         try {
-            long[] location = incremenetCursor(addme);
-            long lCursor = location[0];
-            int commited = 0;
-            while (commited < addme.length) {
-                ByteBuffer cbuf = bufferForPosition(lCursor);
-                synchronized (cbuf) {
-                    cbuf.position(offsetForPosition(lCursor));
-                    int spaceLeft = capacity - cbuf.position();
-                    int size = Math.min(spaceLeft, addme.length - commited);
-                    cbuf.put(addme, commited, size);
-                    lCursor += size;
-                    commited += size;
-                }
+            added = index.find(index.table(), key, hash) < 0;
+            if (added) {
+                index.insert(hash, from, key.length, addme.length, valueHash);
+                located(hash, -1, from, key.length, addme.length, valueHash);
             }
-            elementsLocation.put(id, location);
-            return addme;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        } finally {
+            lock.unlockWrite(stamp);
         }
+        if (!added) release(from, length);
+        return added;
     }
 
-    private synchronized long[] incremenetCursor(byte[] addme) {
-        return new long[]{this.cursor, this.cursor += addme.length, Arrays.hashCode(addme)};
+    /**
+     * Puts a batch of elements. Space for all the records is reserved at once
+     * and the index is locked once. Elements whose keys are already present
+     * are skipped.
+     *
+     * @return the number of added elements
+     */
+    public int putAll(List<E> ids, List<byte[]> values) {
+        int n = ids.size();
+        byte[][] keys = new byte[n][];
+        int[] hashes = new int[n];
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            keys[i] = key(ids.get(i));
+            hashes[i] = hash(ids.get(i), keys[i]);
+            checkKey(keys[i], hashes[i]);
+            total += keys[i].length + values.get(i).length;
+        }
+        if (total > Integer.MAX_VALUE) {
+            // too big for a single extent
+            int added = 0;
+            for (int i = 0; i < n; i++)
+                added += putAll(ids.subList(i, i + 1), values.subList(i, i + 1));
+            return added;
+        }
+        long from = reserve((int) total, false);
+        long[] offsets = new long[n];
+        for (int i = 0, pos = 0; i < n; i++) {
+            offsets[i] = from + pos;
+            write(offsets[i], keys[i]);
+            write(offsets[i] + keys[i].length, values.get(i));
+            pos += keys[i].length + values.get(i).length;
+        }
+        boolean[] added = new boolean[n];
+        int count = 0;
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < n; i++) {
+                if (index.find(index.table(), keys[i], hashes[i]) >= 0) continue;
+                byte[] value = values.get(i);
+                int valueHash = Arrays.hashCode(value);
+                index.insert(hashes[i], offsets[i], keys[i].length, value.length, valueHash);
+                located(hashes[i], -1, offsets[i], keys[i].length, value.length, valueHash);
+                added[i] = true;
+                count++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        for (int i = 0; i < n; i++)
+            if (!added[i]) release(offsets[i], keys[i].length + values.get(i).length);
+        return count;
+    }
+
+    /**
+     * Reserves space for a given number of bytes either reusing a previously
+     * freed extent or appending it to the end of the storage.
+     *
+     * @param tail if {@code true} the free lists are bypassed
+     */
+    private long reserve(int length, boolean tail) {
+        if (!tail && length <= tlabSize() >> 2 && !allocator.mayReuse(length)) {
+            Tlab tlab = tlabs.get();
+            if (tlab.generation != generation || tlab.remaining < length) refill(tlab);
+            long from = tlab.cursor;
+            tlab.cursor += length;
+            tlab.remaining -= length;
+            tlabBytes.add(-length);
+            return from;
+        }
+        synchronized (allocator) {
+            long from = tail ? allocator.allocateTail(length) : allocator.allocate(length);
+            account(from, length, 1);
+            return from;
+        }
+    }
+
+    /** Size of a thread-local allocation buffer, a quarter of the first chunk. */
+    private int tlabSize() {
+        return Math.max(TLAB_MIN, Math.min(capacity >> 2, TLAB_MAX));
+    }
+
+    /**
+     * Returns the rest of a thread-local allocation buffer to the free lists
+     * and reserves a new one. The whole buffer counts as live, so its chunks
+     * are not released while the thread carves records out of it.
+     */
+    private void refill(Tlab tlab) {
+        int size = tlabSize();
+        synchronized (allocator) {
+            if (tlab.generation == generation && tlab.remaining > 0) {
+                allocator.free(tlab.cursor, tlab.remaining);
+                account(tlab.cursor, tlab.remaining, -1);
+                tlabBytes.add(-tlab.remaining);
+            }
+            tlab.cursor = allocator.allocate(size);
+            tlab.remaining = size;
+            tlab.generation = generation;
+            account(tlab.cursor, size, 1);
+            tlabBytes.add(size);
+        }
+    }
+
+    /** Thread-local allocation buffer, a bump pointer over a reserved extent. */
+    private static class Tlab {
+        long cursor;
+        int remaining;
+        int generation = -1;
+    }
+
+    /** Returns an extent to the free lists. */
+    private void release(long from, int length) {
+        synchronized (allocator) {
+            allocator.free(from, length);
+            account(from, length, -1);
+        }
+        epoch.reclaim();
+    }
+
+    /** Returns the tail of an extent to the free lists. */
+    private void shrink(long from, int length, int newLength) {
+        synchronized (allocator) {
+            allocator.shrink(from, length, newLength);
+            account(from + newLength, length - newLength, -1);
+        }
+        epoch.reclaim();
+    }
+
+    /**
+     * Updates the number of live bytes in the chunks covered by a given extent
+     * and releases chunks which become empty. Must be called holding the
+     * allocator lock.
+     */
+    private void account(long from, int length, int sign) {
+        long to = from + length;
+        int tail = chunkIndex(allocator.cursor());
+        for (long pos = from; pos < to; ) {
+            int idx = chunkIndex(pos);
+            int size = (int) Math.min(to - pos, layout.size(idx) - offsetForPosition(pos));
+            ensureSlot(idx);
+            live[idx] += sign * size;
+            // the chunk at the end of the storage is kept to avoid thrashing
+            if (live[idx] == 0 && idx < tail) releaseChunk(idx);
+            pos += size;
+        }
+    }
+
+    /** Must be called holding the allocator lock. */
+    private void ensureSlot(int idx) {
+        if (idx >= slots) slots = idx + 1;
+        if (idx < live.length) return;
+        int newLength = Math.max(live.length << 1, idx + 1);
+        AtomicReferenceArray<ByteBuffer> table = new AtomicReferenceArray<>(newLength);
+        AtomicReferenceArray<ByteBuffer> viewTable = new AtomicReferenceArray<>(newLength);
+        for (int i = 0; i < live.length; i++) {
+            table.set(i, dbbs.get(i));
+            viewTable.set(i, views.get(i));
+        }
+        this.live = Arrays.copyOf(live, newLength);
+        this.views = viewTable;
+        this.dbbs = table;
+    }
+
+    /**
+     * Unlinks the chunk and defers its deallocation until there are no readers
+     * which could access it. The free extents of the chunk are dropped, so no
+     * allocation brings it back. Must be called holding the allocator lock.
+     */
+    private void releaseChunk(final int idx) {
+        final ByteBuffer bb = dbbs.getAndSet(idx, null);
+        if (bb == null) return;
+        allocator.discard(layout.start(idx), layout.start(idx) + layout.size(idx));
+        views.set(idx, null);
+        chunks--;
+        chunkBytes -= bb.capacity();
+        epoch.retire(new Runnable() {
+            @Override public void run() { chunkFactory.release(idx, bb); }
+        });
+    }
+
+    private void write(long lCursor, byte[] addme) {
+        int commited = 0;
+        while (commited < addme.length) {
+            ByteBuffer cbuf = bufferForPosition(lCursor);
+            int offset = offsetForPosition(lCursor);
+            int size = Math.min(cbuf.capacity() - offset, addme.length - commited);
+            Bytes.put(cbuf, offset, addme, commited, size);
+            lCursor += size;
+            commited += size;
+        }
     }
 
     @Override
     public byte[] get(E id) {
-        if (!elementsLocation.containsKey(id)) return null;
-        long[] location = elementsLocation.get(id);
-        assert location.length == 3;
-        byte[] result = new byte[(int) (location[1] - location[0])];
+        byte[] key = key(id);
+        return value(key, hash(id, key));
+    }
+
+    /**
+     * Returns the value of an element with a given integer key, see
+     * {@link #get(Object)}. The key is not boxed if the storage is created by
+     * {@link #withIntKeys()}.
+     */
+    @SuppressWarnings("unchecked")
+    public byte[] get(int id) {
+        if (!hasIntKeys()) return get((E) Integer.valueOf(id));
+        return value(NO_KEY, id);
+    }
+
+    private byte[] value(final byte[] key, final int hash) {
+        return readIndex(new IndexReader<byte[]>() {
+            @Override public byte[] read(Table t, long stamp) {
+                int slot = index.find(t, key, hash);
+                if (slot < 0) return null;
+                long from = t.offset(slot) + t.keyLength(slot);
+                int length = t.valueLength(slot);
+                // do not trust the length read from a modified index
+                if (!lock.validate(stamp)) return retry();
+                byte[] value = new byte[length];
+                return ElasticByteStorage.this.read(from, value) ? value : ElasticByteStorage.<byte[]> retry();
+            }
+        });
+    }
+
+    /**
+     * Decodes the value of a given element straight from the storage without
+     * copying it to an intermediate array. Writers are blocked while the value
+     * is being decoded, so the converter must not access this storage.
+     *
+     * @return the decoded value or {@code null} if there is no such element
+     */
+    public <R> R get(E id, BufferConverter<R> converter) {
+        byte[] key = key(id);
+        return decode(key, hash(id, key), converter);
+    }
+
+    /**
+     * Decodes the value of an element with a given integer key, see
+     * {@link #get(Object, BufferConverter)}. The key is not boxed if the
+     * storage is created by {@link #withIntKeys()}.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R get(int id, BufferConverter<R> converter) {
+        if (!hasIntKeys()) return get((E) Integer.valueOf(id), converter);
+        return decode(NO_KEY, id, converter);
+    }
+
+    private <R> R decode(byte[] key, int hash, BufferConverter<R> converter) {
+        long stamp = lock.readLock();
+        try {
+            Table t = index.table();
+            int slot = index.find(t, key, hash);
+            if (slot < 0) return null;
+            long from = t.offset(slot) + t.keyLength(slot);
+            int length = t.valueLength(slot);
+            int offset = offsetForPosition(from);
+            int idx = chunkIndex(from);
+            if (length > 0 && offset + length <= layout.size(idx))
+                return converter.decode(views.get(idx), offset, length);
+            // the value spans several chunks
+            ByteBuffer scratch = SCRATCH.get();
+            if (scratch.capacity() < length) SCRATCH.set(scratch = ByteBuffer.allocate(length));
+            read(from, scratch.array(), length);
+            return converter.decode(scratch, 0, length);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Checks if there is an element with a given key.
+     */
+    public boolean containsKey(E id) {
+        byte[] key = key(id);
+        return indexed(key, hash(id, key));
+    }
+
+    private boolean indexed(final byte[] key, final int hash) {
+        return readIndex(new IndexReader<Boolean>() {
+            @Override public Boolean read(Table t, long stamp) { return index.find(t, key, hash) >= 0; }
+        });
+    }
+
+    /** Reads the index, see {@link ElasticByteStorage#readIndex}. */
+    private interface IndexReader<T> {
+        /**
+         * May observe an inconsistent state of the index unless the stamp is a
+         * read lock stamp. Returns {@link ElasticByteStorage#retry()} if the
+         * state is known to be inconsistent.
+         */
+        T read(Table t, long stamp);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T retry() {
+        return (T) RETRY;
+    }
+
+    /**
+     * Runs a given reader optimistically until it returns a result which is
+     * consistent with the index. Falls back to the read lock if the index is
+     * being modified all the time.
+     */
+    private <T> T readIndex(IndexReader<T> reader) {
+        long e = epoch.enter();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                boolean locked = attempt >= OPTIMISTIC_READS;
+                long stamp = locked ? lock.readLock() : lock.tryOptimisticRead();
+                try {
+                    if (stamp == 0) continue;
+                    T result = reader.read(index.table(), stamp);
+                    if (result != RETRY && lock.validate(stamp)) return result;
+                } catch (RuntimeException ex) {
+                    // the index has been modified while being read
+                    if (locked) throw ex;
+                } finally {
+                    if (locked) lock.unlockRead(stamp);
+                }
+            }
+        } finally {
+            epoch.exit(e);
+        }
+    }
+
+    /**
+     * Copies bytes starting at a given position. Returns {@code false} if one
+     * of the chunks has already been released.
+     */
+    private boolean read(long from, byte[] result) {
+        return read(from, result, result.length);
+    }
+
+    private boolean read(long from, byte[] result, int length) {
         int readed = 0;
-        while (readed < result.length) {
-            long pos = location[0] + readed;
-            ByteBuffer bb = bufferForPosition(pos);
+        while (readed < length) {
+            long pos = from + readed;
+            ByteBuffer bb = chunk(chunkIndex(pos));
+            if (bb == null) return false;
             int offset = offsetForPosition(pos);
-            synchronized (bb) {
-                bb.position(offset);
-                int size = Math.min(bb.remaining(), result.length - readed);
-                bb.get(result, readed, size);
-                readed += size;
-            }
+            int size = Math.min(bb.capacity() - offset, length - readed);
+            Bytes.get(bb, offset, result, readed, size);
+            readed += size;
         }
-        return result;
+        return true;
+    }
+
+    /** Compares bytes starting at a given position with a given array. */
+    private boolean matches(long from, byte[] bytes) {
+        int matched = 0;
+        while (matched < bytes.length) {
+            long pos = from + matched;
+            ByteBuffer bb = chunk(chunkIndex(pos));
+            if (bb == null) return false;
+            int offset = offsetForPosition(pos);
+            int size = Math.min(bb.capacity() - offset, bytes.length - matched);
+            if (!Bytes.equals(bb, offset, bytes, matched, size)) return false;
+            matched += size;
+        }
+        return true;
     }
 
     @Override
-    public synchronized void clear() {
-        this.elementsLocation.clear();
-        for (ByteBuffer byteBuffer : dbbs) deallocDirectByteBuffer(byteBuffer);
+    public void clear() {
+        releaseAll();
+    }
+
+    /**
+     * Releases all chunks and the index of this storage right away, unless
+     * readers are still running. The storage can no longer be used afterwards.
+     */
+    @Override
+    public void close() {
+        releaseAll();
+        long stamp = lock.writeLock();
+        try {
+            index.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        epoch.reclaim();
+        chunkFactory.close();
+        account.close();
+    }
+
+    private void releaseAll() {
+        compactLock.lock();
+        long stamp = lock.writeLock();
+        try {
+            synchronized (allocator) {
+                this.index.clear();
+                for (int i = 0; i < slots; i++) releaseChunk(i);
+                Arrays.fill(live, 0);
+                this.slots = 0;
+                this.allocator.reset();
+                this.tlabBytes.reset();
+                this.generation++;
+                this.scan = -1;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+            compactLock.unlock();
+        }
+        epoch.reclaim();
     }
 
-    private ByteBuffer getBuffer() {
-        return bufferForPosition(cursor);
+    private ByteBuffer chunk(int idx) {
+        AtomicReferenceArray<ByteBuffer> table = dbbs;
+        return idx < table.length() ? table.get(idx) : null;
     }
 
     private ByteBuffer bufferForPosition(long pos) {
-        int idx = (int) (pos / capacity);
-        ByteBuffer byteBuffer = dbbs.size() > idx ? dbbs.get(idx) : null;
-        if (byteBuffer == null)
-            dbbs.add(byteBuffer = makeNewBuffer());
-        return byteBuffer;
+        int idx = chunkIndex(pos);
+        ByteBuffer byteBuffer = chunk(idx);
+        return byteBuffer != null ? byteBuffer : makeChunk(idx);
     }
 
-    private ByteBuffer makeNewBuffer() {
-        return Acme.dbbuffer(capacity);
+    private ByteBuffer makeChunk(int idx) {
+        synchronized (allocator) {
+            ensureSlot(idx);
+            ByteBuffer byteBuffer = dbbs.get(idx);
+            if (byteBuffer == null) {
+                byteBuffer = chunkFactory.allocate(idx, layout.size(idx));
+                views.set(idx, byteBuffer.asReadOnlyBuffer());
+                dbbs.set(idx, byteBuffer);
+                chunks++;
+                chunkBytes += byteBuffer.capacity();
+            }
+            return byteBuffer;
+        }
     }
 
-    private int currentOffset() {
-        return offsetForPosition(this.cursor);
+    private int chunkIndex(long pos) {
+        return layout.index(pos);
     }
 
     private int offsetForPosition(long pos) {
-        return (int) (pos % capacity);
+        return layout.offset(pos);
+    }
+
+    /**
+     * Called holding the write lock of the index after every change of a
+     * record location, so the calls come in the order of the changes.
+     *
+     * @param keyHash the hash of the key bytes
+     * @param previous the old offset of the record, {@code -1} if the element
+     *            is new
+     * @param offset the new offset of the record, {@code -1} if the element
+     *            has been removed
+     */
+    protected void located(int keyHash, long previous, long offset, int keyLength, int valueLength, int valueHash) {
+    }
+
+    /**
+     * Tells whether a value which fits into the extent of the old one may be
+     * overwritten in place. Otherwise a new extent is always allocated.
+     */
+    protected boolean updatesInPlace() {
+        return true;
+    }
+
+    /**
+     * Applies a location change to the index of a storage which is being
+     * restored. The arguments are the ones passed to {@link #located}, the
+     * record is found by its old offset, so its bytes are not read. The
+     * storage must not be used until {@link #restored()} is called.
+     */
+    protected void restore(int keyHash, long previous, long offset, int keyLength, int valueLength, int valueHash) {
+        if (previous < 0) {
+            index.insert(keyHash, offset, keyLength, valueLength, valueHash);
+            return;
+        }
+        int slot = index.find(index.table(), keyHash, previous);
+        if (slot < 0) return;
+        if (offset < 0)
+            index.delete(slot);
+        else
+            index.update(slot, offset, keyLength, valueLength, valueHash);
+    }
+
+    /**
+     * Completes restoring of the storage. The chunks holding the records are
+     * allocated and the free space between them is returned to the free lists.
+     */
+    protected void restored() {
+        long stamp = lock.writeLock();
+        try {
+            Table t = index.table();
+            long[] offsets = new long[index.size()];
+            int[] lengths = new int[offsets.length];
+            int count = 0;
+            for (int i = 0; i < t.slots(); i++) {
+                if (t.offset(i) < 0) continue;
+                offsets[count] = t.offset(i);
+                lengths[count++] = t.keyLength(i) + t.valueLength(i);
+            }
+            synchronized (allocator) {
+                allocator.restore(offsets, lengths, count);
+                tlabBytes.reset();
+                generation++;
+                Arrays.fill(live, 0);
+                for (int i = 0; i < count; i++)
+                    account(offsets[i], lengths[i], 1);
+                for (int i = 0; i < slots; i++)
+                    if (live[i] > 0) makeChunk(i);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        sweep();
+    }
+
+    /** Task which runs while the index cannot be modified. */
+    protected interface IndexTask {
+        void run() throws IOException;
+    }
+
+    /** Receives entries of the index, see {@link #forEachEntry}. */
+    protected interface EntryVisitor {
+        void visit(int keyHash, long offset, int keyLength, int valueLength, int valueHash) throws IOException;
+    }
+
+    /**
+     * Runs a given task blocking modifications of the index. Readers are not
+     * blocked.
+     */
+    protected void withIndexLocked(IndexTask task) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            task.run();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Calls a given visitor for every entry of the index. Must be called from
+     * a task run by {@link #withIndexLocked}.
+     */
+    protected void forEachEntry(EntryVisitor visitor) throws IOException {
+        Table t = index.table();
+        for (int i = 0; i < t.slots(); i++)
+            if (t.offset(i) >= 0)
+                visitor.visit(t.keyHash(i), t.offset(i), t.keyLength(i), t.valueLength(i), t.valueHash(i));
+    }
+
+    /** Returns the size of the first chunk in bytes. */
+    protected int chunkSize() {
+        return capacity;
+    }
+
+    /**
+     * Calls a given function for every allocated chunk. Used by subclasses to
+     * flush the chunks.
+     */
+    protected void forEachChunk(Consumer<ByteBuffer> fn) {
+        for (int i = 0; i < slots; i++) {
+            ByteBuffer chunk = chunk(i);
+            if (chunk != null) fn.accept(chunk);
+        }
     }
 
     /**
@@ -135,7 +889,7 @@ public class ElasticByteStorage<E> implements Storage<E, byte[]>, Serializable {
      * @throws ReflectiveOperationException if no cleaner field found in current implementation of
      *                                      ByteBuffer (may happen in case of non-Sun/Oracle JDK)
      */
-    private void deallocDirectByteBuffer(ByteBuffer bb) {
+    static void deallocDirectByteBuffer(ByteBuffer bb) {
         if (!bb.isDirect())
             return;
         Field cleanerField;
@@ -156,69 +910,384 @@ public class ElasticByteStorage<E> implements Storage<E, byte[]>, Serializable {
     /**
      * Deletes given object from the storage.
      * <p>
-     * The memory occupied by the object is not actually freed, so this method
-     * only <b>marks the object for deletion</b>.
+     * The memory occupied by the object is returned to the free list and
+     * reused by subsequent {@link #put} and {@link #update} calls.
      *
      * @param id the id of the object to be removed
      */
     @Override
     public byte[] remove(E id) {
-        byte[] res = get(id);
-        this.elementsLocation.remove(id);
+        byte[] key = key(id);
+        int hash = hash(id, key);
+        long from;
+        int keyLength, valueLength;
+        long stamp = lock.writeLock();
+        try {
+            Table t = index.table();
+            int slot = index.find(t, key, hash);
+            if (slot < 0) return null;
+            from = t.offset(slot);
+            keyLength = t.keyLength(slot);
+            valueLength = t.valueLength(slot);
+            index.delete(slot);
+            located(hash, from, -1, 0, 0, 0);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        // the record is not reachable, but its extent is not released yet
+        byte[] res = new byte[valueLength];
+        read(from + keyLength, res);
+        release(from, keyLength + valueLength);
         return res;
     }
 
     @Override
     public int size() {
-        return this.elementsLocation.size();
+        return index.size();
     }
 
+    /**
+     * Returns a view of the keys. Its iterator decodes the keys one by one and
+     * is weakly consistent: it never fails because of concurrent
+     * modifications, but may miss or repeat keys moved by them. Keys removed
+     * through the iterator itself move no other key past it.
+     */
     @Override
     public Set<E> keySet() {
-        return Acme.umset(this.elementsLocation.keySet());
+        return new AbstractSet<E>() {
+            @Override public int size() { return ElasticByteStorage.this.size(); }
+            @Override public Iterator<E> iterator() { return new KeyIterator(); }
+            @SuppressWarnings("unchecked")
+            @Override public boolean contains(Object o) { return containsKey((E) o); }
+        };
     }
 
+    /**
+     * Iterates over the index slots reading the key bytes. The iteration
+     * starts right after an empty slot, so no run of colliding keys wraps
+     * around the start and removals only move keys which are not visited yet.
+     */
+    private class KeyIterator implements Iterator<E>, IndexReader<byte[]> {
+        private final int start;
+        /* number of slots examined before the next read */
+        private int examined;
+        /* position and slot of the key returned by the last read */
+        private int position;
+        private int found;
+        private byte[] next;
+        /* key returned by next() and its position, -1 if it cannot be removed */
+        private E last;
+        private int lastPosition = -1;
+
+        KeyIterator() {
+            this.start = readIndex(new IndexReader<Integer>() {
+                @Override public Integer read(Table t, long stamp) {
+                    if (hasIntKeys()) return 0;
+                    for (int i = 0; i < t.slots(); i++)
+                        if (t.offset(i) < 0) return (i + 1) & t.mask;
+                    return 0;
+                }
+            });
+            this.next = readIndex(this);
+        }
+
+        @Override
+        public byte[] read(Table t, long stamp) {
+            for (position = examined; position < t.slots(); position++) {
+                found = (start + position) & t.mask;
+                long from = t.offset(found);
+                if (from < 0) continue;
+                int length = t.keyLength(found);
+                if (!lock.validate(stamp)) return retry();
+                byte[] key = new byte[length];
+                return ElasticByteStorage.this.read(from, key) ? key : ElasticByteStorage.<byte[]> retry();
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E next() {
+            if (next == null) throw new NoSuchElementException();
+            E key = keyConverter != null ? keyConverter.decode(next) : (E) Integer.valueOf(found);
+            last = key;
+            lastPosition = position;
+            examined = position + 1;
+            next = readIndex(this);
+            return key;
+        }
+
+        /**
+         * Removes the last returned key. The following keys of its run may be
+         * moved back to its slot, so the slot is examined again.
+         */
+        @Override
+        public void remove() {
+            if (lastPosition < 0) throw new IllegalStateException();
+            ElasticByteStorage.this.remove(last);
+            examined = lastPosition;
+            lastPosition = -1;
+            next = readIndex(this);
+        }
+    }
+
+    /**
+     * Replaces the value of a given element. The new value is written in place
+     * when it fits into the extent of the old one, otherwise it is moved to a
+     * new extent and the old one is released.
+     */
     @Override
-    public byte[] update(E key, byte[] value) {
-        byte[] old = remove(key);
-        put(key, value);
+    public byte[] update(E id, byte[] value) {
+        byte[] key = key(id);
+        int hash = hash(id, key);
+        int valueHash = Arrays.hashCode(value);
+        if (updatesInPlace()) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = index.table();
+                int slot = index.find(t, key, hash);
+                if (slot >= 0 && value.length <= t.valueLength(slot)) {
+                    // readers of the old value will retry as the index is locked
+                    long from = t.offset(slot);
+                    int oldLength = t.valueLength(slot);
+                    byte[] old = new byte[oldLength];
+                    read(from + key.length, old);
+                    write(from + key.length, value);
+                    index.update(slot, from, key.length, value.length, valueHash);
+                    located(hash, from, from, key.length, value.length, valueHash);
+                    shrink(from, key.length + oldLength, key.length + value.length);
+                    return old;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+        checkKey(key, hash);
+        long from = reserve(key.length + value.length, false);
+        write(from, key);
+        write(from + key.length, value);
+        long previous = -1;
+        int oldLength = 0;
+        long stamp = lock.writeLock();
+        try {
+            Table t = index.table();
+            int slot = index.find(t, key, hash);
+            if (slot < 0) {
+                index.insert(hash, from, key.length, value.length, valueHash);
+            } else {
+                previous = t.offset(slot);
+                oldLength = t.valueLength(slot);
+                index.update(slot, from, key.length, value.length, valueHash);
+            }
+            located(hash, previous, from, key.length, value.length, valueHash);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (previous < 0) return null;
+        byte[] old = new byte[oldLength];
+        read(previous + key.length, old);
+        release(previous, key.length + oldLength);
         return old;
     }
 
     /**
-     * Removes all elements previously marked for deletion (by
-     * {@link #remove(Object)} method) from this storage.
+     * Returns current memory usage and fragmentation of this storage.
+     */
+    public MemoryStats stats() {
+        synchronized (allocator) {
+            return allocator.stats(chunkBytes, tlabBytes.sum());
+        }
+    }
+
+    /**
+     * Returns the direct memory charged to this storage, see
+     * {@link OffHeapMemory}.
+     */
+    public OffHeapMemory.Account account() {
+        return account;
+    }
+
+    /**
+     * Requests defragmentation of this storage and returns immediately.
      * <p>
-     * This is very basic implementation which needs to be improved in the new
-     * versions of Nyx Collections. It simply copies all remaining elements into
-     * new {@link ByteBuffer} and destroys old ones.
+     * Space of the removed elements is reused by the free-list allocator, so
+     * this method is only needed to fight fragmentation. Elements are moved
+     * away from sparsely used chunks in small steps by the background
+     * {@link Compactor}, concurrent readers and writers are not blocked. A
+     * chunk is deallocated as soon as it is empty.
      */
     @Override
-    public synchronized void purge() {
-        // Basic implementation - copies all remaining elements into new
-        // byte buffers and removes old ones. Doubles
-        ElasticByteStorage<E> copy = new ElasticByteStorage<E>(this.capacity);
-        for (Entry<E, long[]> entry : elementsLocation.entrySet()) {
-            copy.put(entry.getKey(), get(entry.getKey()));
+    public void purge() {
+        compactRequested = true;
+        if (compacting.compareAndSet(false, true)) {
+            final long started = System.nanoTime();
+            Compactor.schedule(this, new Runnable() {
+                @Override public void run() {
+                    purges.since(started);
+                    compacting.set(false);
+                    if (compactRequested) purge();
+                }
+            });
         }
-        // deallocate off-heap memory
-        for (ByteBuffer oldBuffer : this.dbbs)
-            deallocDirectByteBuffer(oldBuffer);
-        // switch to the newly created Storage instance.
-        this.dbbs = copy.dbbs;
-        this.elementsLocation = copy.elementsLocation;
-        this.cursor = copy.cursor;
     }
 
-    private void writeObject(java.io.ObjectOutputStream out) throws IOException {
-        out.writeObject(new Object[]{this.capacity, this.elementsLocation, this.cursor, this.dbbs.size()});
-        for (ByteBuffer byteBuffer : dbbs) {
-            byte[] toWrite = new byte[byteBuffer.limit()];
-            byteBuffer.position(0);
-            byteBuffer.get(toWrite);
-            out.writeObject(toWrite);
+    /**
+     * Returns the durations of the completed purges in nanoseconds, from the
+     * request to the end of the background compaction.
+     */
+    public Histogram purges() {
+        return purges;
+    }
+
+    /**
+     * Defragments this storage in the calling thread.
+     */
+    public void compact() {
+        while (compactStep()) ;
+    }
+
+    /**
+     * Examines a batch of index slots and moves the records located in sparse
+     * chunks to the end of the storage.
+     */
+    @Override
+    public boolean compactStep() {
+        compactLock.lock();
+        try {
+            if (scan < 0) {
+                compactRequested = false;
+                scan = 0;
+            }
+            Batch batch = readIndex(new Batch(scan));
+            for (int i = 0; i < batch.count; i++)
+                if (isSparse(batch.offsets[i], batch.keyLengths[i] + batch.valueLengths[i]))
+                    relocate(batch.keyHashes[i], batch.offsets[i], batch.keyLengths[i], batch.valueLengths[i]);
+            scan += COMPACT_BATCH;
+            if (scan < batch.slots) return true;
+            scan = -1;
+            sweep();
+            return false;
+        } finally {
+            compactLock.unlock();
+            epoch.reclaim();
+        }
+    }
+
+    /** Records of a range of index slots. */
+    private static class Batch implements IndexReader<Batch> {
+        final int first;
+        final int[] keyHashes = new int[COMPACT_BATCH];
+        final long[] offsets = new long[COMPACT_BATCH];
+        final int[] keyLengths = new int[COMPACT_BATCH];
+        final int[] valueLengths = new int[COMPACT_BATCH];
+        int count;
+        int slots;
+
+        Batch(int first) {
+            this.first = first;
+        }
+
+        @Override
+        public Batch read(Table t, long stamp) {
+            count = 0;
+            slots = t.slots();
+            for (int i = first; i < first + COMPACT_BATCH && i < slots; i++) {
+                if (t.offset(i) < 0) continue;
+                keyHashes[count] = t.keyHash(i);
+                offsets[count] = t.offset(i);
+                keyLengths[count] = t.keyLength(i);
+                valueLengths[count++] = t.valueLength(i);
+            }
+            return this;
+        }
+    }
+
+    /** Checks if a record occupies a chunk which is less than half full. */
+    private boolean isSparse(long from, int length) {
+        if (length == 0) return false;
+        int first = chunkIndex(from), last = chunkIndex(from + length - 1);
+        if (length >= layout.size(last)) return false;
+        synchronized (allocator) {
+            int tail = chunkIndex(allocator.cursor());
+            return last < tail && (live[first] < layout.size(first) / 2 || live[last] < layout.size(last) / 2);
+        }
+    }
+
+    private void relocate(int keyHash, long offset, int keyLength, int valueLength) {
+        int length = keyLength + valueLength;
+        byte[] data = new byte[length];
+        long e = epoch.enter();
+        try {
+            if (!read(offset, data)) return;
+        } finally {
+            epoch.exit(e);
+        }
+        long from = reserve(length, true);
+        write(from, data);
+        boolean moved = false;
+        long stamp = lock.writeLock();
+        try {
+            // the copy is stale if the record was updated or removed concurrently
+            Table t = index.table();
+            int slot = index.find(t, keyHash, offset);
+            moved = slot >= 0 && t.keyLength(slot) == keyLength && t.valueLength(slot) == valueLength
+                    && matches(offset, data);
+            if (moved) {
+                index.update(slot, from, keyLength, valueLength, t.valueHash(slot));
+                located(keyHash, offset, from, keyLength, valueLength, t.valueHash(slot));
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        release(moved ? offset : from, length);
+    }
+
+    /** Releases empty chunks left behind by the end of the storage. */
+    private void sweep() {
+        synchronized (allocator) {
+            int tail = chunkIndex(allocator.cursor());
+            for (int i = 0; i < tail && i < slots; i++)
+                if (live[i] == 0) releaseChunk(i);
+        }
+    }
+
+    private void writeObject(final java.io.ObjectOutputStream out) throws IOException {
+        compactLock.lock();
+        try {
+            withIndexLocked(new IndexTask() {
+                @Override public void run() throws IOException {
+                    int size;
+                    synchronized (allocator) { size = slots; }
+                    out.writeObject(new Object[]{capacity, keyConverter, chunkFactory, size, index.size(), classDictionary, maxChunk});
+                    forEachEntry(new EntryVisitor() {
+                        @Override public void visit(int keyHash, long offset, int keyLength, int valueLength, int valueHash) throws IOException {
+                            out.writeInt(keyHash);
+                            out.writeLong(offset);
+                            out.writeInt(keyLength);
+                            out.writeInt(valueLength);
+                            out.writeInt(valueHash);
+                        }
+                    });
+                    for (int i = 0; i < size; i++) {
+                        ByteBuffer byteBuffer = chunk(i);
+                        byte[] toWrite = null;
+                        if (byteBuffer != null) {
+                            toWrite = new byte[byteBuffer.limit()];
+                            Bytes.get(byteBuffer, 0, toWrite, 0, toWrite.length);
+                        }
+                        out.writeObject(toWrite);
+                    }
+                }
+            });
+            out.flush();
+        } finally {
+            compactLock.unlock();
         }
-        out.flush();
     }
 
     @SuppressWarnings("unchecked")
@@ -226,30 +1295,50 @@ public class ElasticByteStorage<E> implements Storage<E, byte[]>, Serializable {
             throws ClassNotFoundException, IOException {
         Object[] fields = (Object[]) in.readObject();
         this.capacity = (int) fields[0];
-        this.elementsLocation = (Map<E, long[]>) fields[1];
-        this.cursor = (long) fields[2];
+        this.keyConverter = (Converter<E, byte[]>) fields[1];
+        this.chunkFactory = (ChunkFactory) fields[2];
         int size = (int) fields[3];
-        this.dbbs = Acme.alist(size);
+        int count = (int) fields[4];
+        this.classDictionary = (ClassDictionary) fields[5];
+        this.maxChunk = (int) fields[6];
+        init();
+        for (int i = 0; i < count; i++)
+            restore(in.readInt(), -1, in.readLong(), in.readInt(), in.readInt(), in.readInt());
         for (int i = 0; i < size; i++) {
             byte[] toRead = (byte[]) in.readObject();
-            ByteBuffer byteBuffer = Acme.dbbuffer(this.capacity);
-            byteBuffer.put(toRead);
-            this.dbbs.add(byteBuffer);
+            if (toRead == null) continue;
+            Bytes.put(makeChunk(i), 0, toRead, 0, toRead.length);
         }
+        restored();
+    }
+
+    /** Chunks allocated in direct {@link ByteBuffer}s within the {@link OffHeapMemory} budget. */
+    static class DirectChunks implements ChunkFactory {
+        private static final long serialVersionUID = -3270453815150802337L;
+        private transient OffHeapMemory.Account account;
+        @Override public void attach(OffHeapMemory.Account account) { this.account = account; }
+        @Override public ByteBuffer allocate(int index, int capacity) { return OffHeapMemory.allocate(account, capacity); }
+        @Override public void release(int index, ByteBuffer chunk) { OffHeapMemory.free(account, chunk); }
     }
 
     /**
      * Binary comparison
      */
     @Override
-    public boolean contains(byte[] value) {
-        // check hashCodes first - than fetch
-        int hashCode = Arrays.hashCode(value);
-        for (Entry<E, long[]> entry : elementsLocation.entrySet())
-            if (entry.getValue()[2] == hashCode
-                    && Arrays.equals(value, get(entry.getKey())))
-                return true;
-        return false;
+    public boolean contains(final byte[] value) {
+        // check hashCodes first - than compare bytes in place
+        final int hashCode = Arrays.hashCode(value);
+        return readIndex(new IndexReader<Boolean>() {
+            @Override public Boolean read(Table t, long stamp) {
+                for (int i = 0; i < t.slots(); i++) {
+                    long from = t.offset(i);
+                    if (from >= 0 && t.valueHash(i) == hashCode && t.valueLength(i) == value.length
+                            && matches(from + t.keyLength(i), value))
+                        return true;
+                }
+                return false;
+            }
+        });
     }
 
 }
@@ -0,0 +1,80 @@
+package nyx.collections.storage;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Epoch-based reclamation of off-heap memory.
+ * <p>
+ * Readers wrap every access to a shared resource with {@link #enter()} and
+ * {@link #exit(long)} and never block. Writers which unlink a resource hand
+ * over its release with {@link #retire(Runnable)}; the release is executed by
+ * {@link #reclaim()} once all readers which could still see the resource have
+ * left.
+ *
+ * @author varlou@gmail.com
+ */
+class EpochGuard {
+
+	private volatile long epoch = 0;
+	private final LongAdder[] active = { new LongAdder(), new LongAdder() };
+	private final Queue<Retired> retired = new ConcurrentLinkedQueue<>();
+	private final ReentrantLock reclaimLock = new ReentrantLock();
+
+	/** Marks the beginning of a read section. */
+	long enter() {
+		for (;;) {
+			long e = epoch;
+			LongAdder counter = active[(int) (e & 1)];
+			counter.increment();
+			if (epoch == e) return e;
+			// epoch has been advanced concurrently - register in the new one
+			counter.decrement();
+		}
+	}
+
+	/** Marks the end of a read section started by {@link #enter()}. */
+	void exit(long e) {
+		active[(int) (e & 1)].decrement();
+	}
+
+	/** Schedules release of a resource which is no longer reachable by new readers. */
+	void retire(Runnable release) {
+		retired.add(new Retired(epoch, release));
+	}
+
+	/**
+	 * Releases resources whose grace period has elapsed. Never waits for
+	 * readers, all pending releases are postponed to the next call instead.
+	 */
+	void reclaim() {
+		if (!reclaimLock.tryLock()) return;
+		try {
+			for (int round = 0; round < 2; round++) {
+				long e = epoch;
+				// readers of the previous epoch are still around
+				if (active[(int) ((e - 1) & 1)].sum() != 0) return;
+				Retired r;
+				while ((r = retired.peek()) != null && r.epoch < e) {
+					retired.poll();
+					r.release.run();
+				}
+				if (retired.isEmpty()) return;
+				epoch = e + 1;
+			}
+		} finally {
+			reclaimLock.unlock();
+		}
+	}
+
+	private static class Retired {
+		final long epoch;
+		final Runnable release;
+		Retired(long epoch, Runnable release) {
+			this.epoch = epoch;
+			this.release = release;
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package nyx.collections.storage;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Size-classed free-list allocator for a linear address space.
+ * <p>
+ * Freed extents are kept in bins by size class (power of two), so a request of
+ * {@code n} bytes is served either from the first bin which is guaranteed to
+ * fit it or by a short first-fit scan of its own bin. Only when no suitable
+ * extent is found the address space grows by moving the cursor forward.
+ * Remainders smaller than {@link #MIN_EXTENT} are not tracked and accounted as
+ * wasted bytes.
+ * <p>
+ * A freed extent is merged with the free extents right before and after it
+ * within the same chunk, so fragmentation does not grow with the number of
+ * removals. Free extents are also indexed by their positions; bins are
+ * cleaned lazily, an entry which no longer matches the index is dropped when
+ * it is met and the bins are rebuilt once most of their entries are stale.
+ * <p>
+ * Extents which fit into a chunk never straddle two chunks, so they can be
+ * read in one piece. Free extents are split at the chunk boundaries and an
+ * extent appended to the end starts a new chunk rather than crossing into
+ * it, the skipped bytes become free.
+ *
+ * @author varlou@gmail.com
+ */
+class FreeListAllocator implements Serializable {
+
+	private static final long serialVersionUID = -2412862745624307342L;
+
+	/** Smallest extent worth keeping in a free list. */
+	static final int MIN_EXTENT = 8;
+	/** Maximum number of extents examined in a bin which may not fit. */
+	private static final int SCAN_DEPTH = 8;
+	private static final int BINS = 32;
+
+	private final Bin[] bins = new Bin[BINS];
+	/* free extents by their positions, the bins may hold stale entries */
+	private final TreeMap<Long, Integer> extents = new TreeMap<>();
+	private final ChunkLayout layout;
+	/* number of entries in the bins including the stale ones */
+	private int binEntries = 0;
+	/* bit i is set if bin i is not empty, read without the lock by mayReuse */
+	private volatile int nonEmpty = 0;
+	private long cursor = 0;
+	private long usedBytes = 0;
+	private long freeBytes = 0;
+	private long wastedBytes = 0;
+
+	FreeListAllocator(ChunkLayout layout) {
+		this.layout = layout;
+		for (int i = 0; i < BINS; i++) bins[i] = new Bin();
+	}
+
+	/**
+	 * Reserves an extent of a given length.
+	 *
+	 * @return the starting position of the reserved extent
+	 */
+	synchronized long allocate(int length) {
+		usedBytes += length;
+		if (length == 0) return cursor;
+		int fl = floorLog2(length);
+		// first-fit scan of the bin which may contain suitable extent
+		Bin bin = bins[fl];
+		for (int i = bin.size - 1, j = 0; i >= 0 && j < SCAN_DEPTH; i--) {
+			if (!isFree(bin, i)) {
+				// the last entry moved in has been examined already
+				drop(bin, i, fl);
+				continue;
+			}
+			if (bin.lengths[i] >= length) return split(bin, i, length);
+			j++;
+		}
+		// any extent from the upper bins fits
+		for (int b = fl + 1; b < BINS; b++)
+			for (Bin upper = bins[b]; upper.size > 0; drop(upper, upper.size - 1, b))
+				if (isFree(upper, upper.size - 1)) return split(upper, upper.size - 1, length);
+		return append(length);
+	}
+
+	/**
+	 * Reserves an extent at the end of the address space bypassing the free
+	 * lists. Used by compaction to move elements away from sparse chunks.
+	 */
+	synchronized long allocateTail(int length) {
+		usedBytes += length;
+		return append(length);
+	}
+
+	/** Moves the cursor skipping to the next chunk if the extent would straddle. */
+	private long append(int length) {
+		long from = cursor, end = layout.end(from);
+		if (from + length > end && length <= layout.size(layout.index(end))) {
+			release(from, (int) (end - from));
+			from = end;
+		}
+		cursor = from + length;
+		return from;
+	}
+
+	/** Returns an extent previously reserved by {@link #allocate(int)}. */
+	synchronized void free(long from, int length) {
+		usedBytes -= length;
+		release(from, length);
+	}
+
+	/**
+	 * Shrinks an extent reserved by {@link #allocate(int)} returning its tail
+	 * back to the free list.
+	 */
+	synchronized void shrink(long from, int length, int newLength) {
+		usedBytes -= length - newLength;
+		release(from + newLength, length - newLength);
+	}
+
+	/**
+	 * Forgets the free extents of a released chunk, so they are not handed
+	 * out again and the chunk is not allocated anew. The chunk must hold no
+	 * live extents and lie before the cursor, its bytes are either free or
+	 * wasted.
+	 *
+	 * @param from the first position of the chunk
+	 * @param to the position right after the chunk
+	 */
+	synchronized void discard(long from, long to) {
+		SortedMap<Long, Integer> range = extents.subMap(from, to);
+		long free = 0;
+		for (int length : range.values()) free += length;
+		range.clear();
+		freeBytes -= free;
+		wastedBytes -= to - from - free;
+		trim();
+	}
+
+	/**
+	 * Rebuilds the allocator state from the live extents. The cursor is set
+	 * past the last extent and the gaps between the extents become free.
+	 *
+	 * @param offsets starting positions of the live extents, sorted in place
+	 * @param lengths lengths of the live extents
+	 * @param count number of the live extents
+	 */
+	synchronized void restore(long[] offsets, int[] lengths, int count) {
+		reset();
+		sort(offsets, lengths, 0, count - 1);
+		for (int i = 0; i < count; i++) {
+			for (long gap; (gap = offsets[i] - cursor) > 0; cursor += gap) {
+				gap = Math.min(gap, Integer.MAX_VALUE);
+				release(cursor, (int) gap);
+			}
+			usedBytes += lengths[i];
+			cursor = Math.max(cursor, offsets[i] + lengths[i]);
+		}
+	}
+
+	/** Sorts extents by their offsets keeping the arrays in sync. */
+	private static void sort(long[] offsets, int[] lengths, int lo, int hi) {
+		while (lo < hi) {
+			long pivot = offsets[(lo + hi) >>> 1];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (offsets[i] < pivot) i++;
+				while (offsets[j] > pivot) j--;
+				if (i <= j) {
+					long o = offsets[i]; offsets[i] = offsets[j]; offsets[j] = o;
+					int l = lengths[i]; lengths[i] = lengths[j]; lengths[j] = l;
+					i++;
+					j--;
+				}
+			}
+			// recurse into the smaller part to bound the stack depth
+			if (j - lo < hi - i) {
+				sort(offsets, lengths, lo, j);
+				lo = i;
+			} else {
+				sort(offsets, lengths, i, hi);
+				hi = j;
+			}
+		}
+	}
+
+	synchronized void reset() {
+		for (Bin bin : bins) bin.clear();
+		extents.clear();
+		nonEmpty = binEntries = 0;
+		cursor = usedBytes = freeBytes = wastedBytes = 0;
+	}
+
+	synchronized long cursor() { return cursor; }
+
+	/**
+	 * Tells if an extent of a given length may be served from the free lists.
+	 * The answer is a hint: it is given without the lock and may be stale.
+	 */
+	boolean mayReuse(int length) {
+		return length > 0 && nonEmpty >>> floorLog2(length) != 0;
+	}
+
+	/**
+	 * Takes a consistent snapshot of the allocator state.
+	 *
+	 * @param pendingBytes bytes which are reserved but not handed out to the
+	 *            elements yet
+	 */
+	synchronized MemoryStats stats(long reservedBytes, long pendingBytes) {
+		int largest = 0;
+		for (int length : extents.values()) largest = Math.max(largest, length);
+		return new MemoryStats(reservedBytes, usedBytes - pendingBytes, freeBytes, wastedBytes, extents.size(), largest);
+	}
+
+	private long split(Bin bin, int idx, int length) {
+		long from = bin.offsets[idx];
+		int extent = bin.lengths[idx];
+		drop(bin, idx, floorLog2(extent));
+		extents.remove(from);
+		freeBytes -= extent;
+		release(from + length, extent - length);
+		return from;
+	}
+
+	private void release(long from, int length) {
+		for (long end; length > 0; from = end) {
+			end = Math.min(layout.end(from), from + length);
+			length -= (int) (end - from);
+			push(from, (int) (end - from));
+		}
+	}
+
+	/** Adds an extent which lies within one chunk merging it with its free neighbours. */
+	private void push(long from, int length) {
+		long end = from + length;
+		Map.Entry<Long, Integer> prev = layout.offset(from) > 0 ? extents.lowerEntry(from) : null;
+		if (prev != null && prev.getKey() + prev.getValue() == from) {
+			extents.remove(prev.getKey());
+			freeBytes -= prev.getValue();
+			from = prev.getKey();
+			length += prev.getValue();
+		}
+		Integer next = end < layout.end(from) ? extents.remove(end) : null;
+		if (next != null) {
+			freeBytes -= next;
+			length += next;
+		}
+		if (length < MIN_EXTENT) {
+			wastedBytes += length;
+			return;
+		}
+		extents.put(from, length);
+		freeBytes += length;
+		bin(from, length);
+		trim();
+	}
+
+	private void bin(long from, int length) {
+		int b = floorLog2(length);
+		bins[b].push(from, length);
+		nonEmpty |= 1 << b;
+		binEntries++;
+	}
+
+	/** Tells if a bin entry is still a free extent, it is stale once merged or discarded. */
+	private boolean isFree(Bin bin, int idx) {
+		Integer length = extents.get(bin.offsets[idx]);
+		return length != null && length == bin.lengths[idx];
+	}
+
+	private void drop(Bin bin, int idx, int b) {
+		bin.remove(idx);
+		binEntries--;
+		if (bin.size == 0) nonEmpty &= ~(1 << b);
+	}
+
+	/** Rebuilds the bins from the index once most of their entries are stale. */
+	private void trim() {
+		if (binEntries <= (extents.size() << 1) + BINS) return;
+		for (Bin bin : bins) bin.clear();
+		nonEmpty = binEntries = 0;
+		for (Map.Entry<Long, Integer> e : extents.entrySet()) bin(e.getKey(), e.getValue());
+	}
+
+	private static int floorLog2(int length) {
+		return 31 - Integer.numberOfLeadingZeros(length);
+	}
+
+	/** Growable stack of (offset, length) pairs kept in primitive arrays. */
+	private static class Bin implements Serializable {
+		private static final long serialVersionUID = 6140587414869815186L;
+		long[] offsets = new long[4];
+		int[] lengths = new int[4];
+		int size = 0;
+
+		void push(long offset, int length) {
+			if (size == offsets.length) {
+				offsets = Arrays.copyOf(offsets, size << 1);
+				lengths = Arrays.copyOf(lengths, size << 1);
+			}
+			offsets[size] = offset;
+			lengths[size++] = length;
+		}
+
+		/** Removes an element moving the last one into its place. */
+		void remove(int idx) {
+			offsets[idx] = offsets[--size];
+			lengths[idx] = lengths[size];
+		}
+
+		void clear() { size = 0; }
+	}
+}
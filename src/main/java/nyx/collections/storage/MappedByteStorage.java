@@ -0,0 +1,126 @@
+package nyx.collections.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import nyx.collections.Const;
+import nyx.collections.converter.Converter;
+
+/**
+ * Storage for byte arrays backed by a memory-mapped file. It uses the same
+ * chunked addressing as {@link ElasticByteStorage}, but each chunk is a
+ * segment of the file mapped with {@link FileChannel#map}, so cold data can
+ * be paged out by the operating system instead of occupying process memory.
+ * <p>
+ * A storage created without a file uses a temporary one which is deleted
+ * when the storage is closed or the JVM exits. A deserialized instance always writes its data into a
+ * new temporary file.
+ *
+ * @author varlou@gmail.com
+ */
+public class MappedByteStorage<E> extends ElasticByteStorage<E> {
+
+	private static final long serialVersionUID = -4426419087512303811L;
+
+	/** Default size of a mapped segment (16Mb). */
+	public static final int DEFAULT_SEGMENT = Const._1Mb * 16;
+
+	/**
+	 * Creates a storage in a temporary file with the default segment size.
+	 */
+	public MappedByteStorage() {
+		this(null, DEFAULT_SEGMENT);
+	}
+
+	/**
+	 * Creates a storage in a given file with the default segment size.
+	 *
+	 * @param file the file to keep elements in, its content is overwritten
+	 */
+	public MappedByteStorage(Path file) {
+		this(file, DEFAULT_SEGMENT);
+	}
+
+	/**
+	 * Creates a storage in a given file.
+	 *
+	 * @param file the file to keep elements in, its content is overwritten;
+	 *            temporary file is used if {@code null}
+	 * @param segmentSize the size of a mapped segment in bytes
+	 * @throws IllegalArgumentException if {@code segmentSize < 4096}
+	 */
+	public MappedByteStorage(Path file, int segmentSize) {
+		super(segmentSize, new MappedChunks(file));
+	}
+
+	/**
+	 * Creates a storage in a given file.
+	 *
+	 * @param keyConverter converts keys to the bytes kept in the records
+	 */
+	protected MappedByteStorage(Path file, int segmentSize, Converter<E, byte[]> keyConverter) {
+		super(segmentSize, new MappedChunks(file), keyConverter);
+	}
+
+	/** Chunks mapped from consecutive segments of a file. */
+	static class MappedChunks implements ChunkFactory {
+
+		private static final long serialVersionUID = 2920683004858880016L;
+
+		private transient Path file;
+		private transient FileChannel channel;
+		/* the file is created by this factory and deleted on close */
+		private transient boolean temporary;
+
+		MappedChunks(Path file) {
+			this.file = file;
+		}
+
+		private synchronized FileChannel channel() throws IOException {
+			if (channel == null) {
+				if (file == null) {
+					file = Files.createTempFile("nyx", ".dat");
+					file.toFile().deleteOnExit();
+					temporary = true;
+				}
+				channel = FileChannel.open(file, StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+			return channel;
+		}
+
+		@Override
+		public ByteBuffer allocate(int index, int capacity) {
+			try {
+				return channel().map(MapMode.READ_WRITE, (long) index * capacity, capacity);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/** Unmaps the segment, its data remains in the file. */
+		@Override
+		public void release(int index, ByteBuffer chunk) {
+			deallocDirectByteBuffer(chunk);
+		}
+
+		@Override
+		public synchronized void close() {
+			try {
+				if (channel != null) channel.close();
+				if (temporary) Files.deleteIfExists(file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				channel = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+package nyx.collections.storage;
+
+/**
+ * Snapshot of memory usage and fragmentation of a byte storage.
+ *
+ * @author varlou@gmail.com
+ */
+public class MemoryStats {
+
+	private final long reservedBytes;
+	private final long usedBytes;
+	private final long freeBytes;
+	private final long wastedBytes;
+	private final int freeExtents;
+	private final int largestFreeExtent;
+
+	public MemoryStats(long reservedBytes, long usedBytes, long freeBytes,
+			long wastedBytes, int freeExtents, int largestFreeExtent) {
+		this.reservedBytes = reservedBytes;
+		this.usedBytes = usedBytes;
+		this.freeBytes = freeBytes;
+		this.wastedBytes = wastedBytes;
+		this.freeExtents = freeExtents;
+		this.largestFreeExtent = largestFreeExtent;
+	}
+
+	/** Total number of bytes allocated for the storage chunks. */
+	public long getReservedBytes() { return reservedBytes; }
+	/** Number of bytes occupied by live elements. */
+	public long getUsedBytes() { return usedBytes; }
+	/** Number of bytes kept in the free lists and available for reuse. */
+	public long getFreeBytes() { return freeBytes; }
+	/** Number of bytes lost in remainders too small to be reused. */
+	public long getWastedBytes() { return wastedBytes; }
+	public int getFreeExtents() { return freeExtents; }
+	public int getLargestFreeExtent() { return largestFreeExtent; }
+
+	/**
+	 * Returns external fragmentation ratio of the free space, a value between
+	 * {@code 0} (all free bytes are in one extent) and {@code 1}.
+	 */
+	public double getFragmentation() {
+		return freeBytes == 0 ? 0 : 1 - (double) largestFreeExtent / freeBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "MemoryStats[reserved=" + reservedBytes + ", used=" + usedBytes
+				+ ", free=" + freeBytes + ", wasted=" + wastedBytes
+				+ ", freeExtents=" + freeExtents + ", fragmentation="
+				+ String.format("%.3f", getFragmentation()) + "]";
+	}
+}
@@ -0,0 +1,229 @@
+package nyx.collections.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash index kept in direct {@link ByteBuffer}s. Every slot
+ * takes 24 bytes and describes one record of the storage:
+ *
+ * <pre>
+ * 0  int  hash of the key bytes
+ * 4  int  hash of the value bytes
+ * 8  long offset of the record + 1, zero marks an empty slot
+ * 16 int  length of the key
+ * 20 int  length of the value
+ * </pre>
+ *
+ * Collisions are resolved by linear probing and removed slots are filled by
+ * shifting the following entries back, so there are no tombstones. The
+ * slots are split into pages of 64K, so the index is not limited by the
+ * maximum size of a single buffer.
+ * <p>
+ * A direct index is addressed by non-negative int keys: the key is the
+ * slot number and is kept as the key hash, so lookups neither hash nor
+ * compare key bytes and the records have no key bytes at all.
+ * <p>
+ * The index is not thread-safe. Modifications must be exclusive, but
+ * optimistic readers are allowed: they may observe an inconsistent state
+ * (including exceptions) and must validate their results.
+ *
+ * @author varlou@gmail.com
+ */
+class OffHeapIndex {
+
+	/** Compares key bytes stored at a given position with a given key. */
+	interface Keys {
+		boolean matches(long offset, byte[] key);
+	}
+
+	/** Receives tables which are replaced by bigger ones. */
+	interface Retirement {
+		void retire(ByteBuffer[] pages);
+	}
+
+	static final int SLOT = 24;
+	private static final int KEY_HASH = 0;
+	private static final int VALUE_HASH = 4;
+	private static final int OFFSET = 8;
+	private static final int KEY_LENGTH = 16;
+	private static final int VALUE_LENGTH = 20;
+
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_SLOTS = 1 << PAGE_BITS;
+	private static final int MIN_SLOTS = 16;
+	private static final int MAX_SLOTS = 1 << 30;
+
+	private final Keys keys;
+	private final Retirement retirement;
+	private final boolean direct;
+	private final OffHeapMemory.Account account;
+	private volatile Table table;
+	private volatile int size;
+
+	OffHeapIndex(Keys keys, Retirement retirement, boolean direct, OffHeapMemory.Account account) {
+		this.keys = keys;
+		this.retirement = retirement;
+		this.direct = direct;
+		this.account = account;
+		this.table = new Table(MIN_SLOTS, account);
+	}
+
+	/** Spreads the hash of key bytes. */
+	static int hash(byte[] key) {
+		int h = Arrays.hashCode(key) * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	Table table() { return table; }
+	int size() { return size; }
+
+	/**
+	 * Finds the slot of a given key.
+	 *
+	 * @return the slot number or {@code -1} if there is no such key
+	 */
+	int find(Table t, byte[] key, int hash) {
+		if (direct) return hash >= 0 && hash <= t.mask && t.offset(hash) >= 0 ? hash : -1;
+		for (int i = hash & t.mask, n = 0; n <= t.mask; i = (i + 1) & t.mask, n++) {
+			long offset = t.offset(i);
+			if (offset < 0) return -1;
+			if (t.keyHash(i) == hash && t.keyLength(i) == key.length && keys.matches(offset, key))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the slot of the record at a given offset. Unlike
+	 * {@link #find(Table, byte[], int)} it does not read the key bytes, so it
+	 * works even when the record has been overwritten since.
+	 *
+	 * @return the slot number or {@code -1} if there is no such record
+	 */
+	int find(Table t, int hash, long offset) {
+		if (direct) return hash >= 0 && hash <= t.mask && t.offset(hash) == offset ? hash : -1;
+		for (int i = hash & t.mask, n = 0; n <= t.mask; i = (i + 1) & t.mask, n++) {
+			long o = t.offset(i);
+			if (o < 0) return -1;
+			if (o == offset && t.keyHash(i) == hash) return i;
+		}
+		return -1;
+	}
+
+	/** Adds an entry for a key which is not in the index yet. */
+	void insert(int keyHash, long offset, int keyLength, int valueLength, int valueHash) {
+		if (direct) {
+			if (keyHash < 0 || keyHash >= MAX_SLOTS) throw new IllegalArgumentException();
+			if (keyHash > t().mask) grow(Math.max(t().slots() << 1, Integer.highestOneBit(keyHash) << 1));
+		} else if (size + 1 > (t().mask + 1L) * 3 / 4) {
+			grow(t().slots() << 1);
+		}
+		Table t = t();
+		int i = keyHash & t.mask;
+		while (t.offset(i) >= 0) i = (i + 1) & t.mask;
+		t.set(i, keyHash, offset, keyLength, valueLength, valueHash);
+		size++;
+	}
+
+	/** Changes the record of an existing entry. */
+	void update(int slot, long offset, int keyLength, int valueLength, int valueHash) {
+		Table t = t();
+		t.set(slot, t.keyHash(slot), offset, keyLength, valueLength, valueHash);
+	}
+
+	/** Removes an entry shifting the following entries of the run back. */
+	void delete(int slot) {
+		Table t = t();
+		int hole = slot;
+		for (int j = (hole + 1) & t.mask; !direct && t.offset(j) >= 0; j = (j + 1) & t.mask) {
+			int home = t.keyHash(j) & t.mask;
+			// entry j can fill the hole if the hole is between its home and j
+			if (((j - home) & t.mask) >= ((j - hole) & t.mask)) {
+				t.copy(j, hole);
+				hole = j;
+			}
+		}
+		t.clear(hole);
+		size--;
+	}
+
+	/** Removes all entries and shrinks the index. */
+	void clear() {
+		Table old = t();
+		this.table = new Table(MIN_SLOTS, account);
+		this.size = 0;
+		retirement.retire(old.pages);
+	}
+
+	/** Releases the index, it can no longer be used afterwards. */
+	void close() {
+		Table old = t();
+		this.table = null;
+		this.size = 0;
+		retirement.retire(old.pages);
+	}
+
+	/** Returns the number of bytes occupied by the index. */
+	long footprint() {
+		return (t().mask + 1L) * SLOT;
+	}
+
+	private Table t() { return table; }
+
+	private void grow(int slots) {
+		Table old = t();
+		Table t = new Table(slots, account);
+		for (int i = 0; i <= old.mask; i++) {
+			if (old.offset(i) < 0) continue;
+			int j = old.keyHash(i) & t.mask;
+			while (t.offset(j) >= 0) j = (j + 1) & t.mask;
+			t.set(j, old.keyHash(i), old.offset(i), old.keyLength(i), old.valueLength(i), old.valueHash(i));
+		}
+		this.table = t;
+		retirement.retire(old.pages);
+	}
+
+	/** Immutable view of the slots, replaced as a whole when the index grows. */
+	static class Table {
+		final ByteBuffer[] pages;
+		final int mask;
+
+		Table(int slots, OffHeapMemory.Account account) {
+			int pageSlots = Math.min(slots, PAGE_SLOTS);
+			this.pages = new ByteBuffer[slots / pageSlots];
+			for (int i = 0; i < pages.length; i++) pages[i] = OffHeapMemory.allocate(account, pageSlots * SLOT);
+			this.mask = slots - 1;
+		}
+
+		int slots() { return mask + 1; }
+
+		private ByteBuffer page(int slot) { return pages[slot >>> PAGE_BITS]; }
+		private int base(int slot) { return (slot & (PAGE_SLOTS - 1)) * SLOT; }
+
+		/** Returns the offset of the record or {@code -1} if the slot is empty. */
+		long offset(int slot) { return page(slot).getLong(base(slot) + OFFSET) - 1; }
+		int keyHash(int slot) { return page(slot).getInt(base(slot) + KEY_HASH); }
+		int valueHash(int slot) { return page(slot).getInt(base(slot) + VALUE_HASH); }
+		int keyLength(int slot) { return page(slot).getInt(base(slot) + KEY_LENGTH); }
+		int valueLength(int slot) { return page(slot).getInt(base(slot) + VALUE_LENGTH); }
+
+		private void set(int slot, int keyHash, long offset, int keyLength, int valueLength, int valueHash) {
+			ByteBuffer page = page(slot);
+			int base = base(slot);
+			page.putInt(base + KEY_HASH, keyHash);
+			page.putInt(base + VALUE_HASH, valueHash);
+			page.putInt(base + KEY_LENGTH, keyLength);
+			page.putInt(base + VALUE_LENGTH, valueLength);
+			page.putLong(base + OFFSET, offset + 1);
+		}
+
+		private void copy(int from, int to) {
+			set(to, keyHash(from), offset(from), keyLength(from), valueLength(from), valueHash(from));
+		}
+
+		private void clear(int slot) {
+			page(slot).putLong(base(slot) + OFFSET, 0);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package nyx.collections.storage;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import nyx.collections.Acme;
+
+/**
+ * Process-wide allocator of the direct memory taken by the storages, both for
+ * the chunks and the indexes. Every storage is charged through its own
+ * {@link Account} and the total is kept within a budget. When an allocation
+ * would exceed the budget the {@link Policy} decides what happens, so a
+ * runaway collection does not bring the JVM to an {@link OutOfMemoryError}.
+ * <p>
+ * The budget and the policy are set by the {@code nyx.offheap.budget} (bytes)
+ * and {@code nyx.offheap.policy} system properties or at runtime. The budget
+ * defaults to the direct memory limit of the JVM, i.e.
+ * {@code -XX:MaxDirectMemorySize} or the maximum heap size if it is not set,
+ * and the policy to {@link Policy#FAIL}.
+ *
+ * @author varlou@gmail.com
+ */
+public final class OffHeapMemory {
+
+	/** What an allocation does when the budget is exhausted. */
+	public enum Policy {
+		/** Throws {@link Exhausted} right away. */
+		FAIL,
+		/**
+		 * Waits until other storages free enough memory, at most
+		 * {@code nyx.offheap.timeout} milliseconds (10 seconds by default).
+		 */
+		BLOCK,
+		/** Takes the memory from a temporary memory-mapped file instead. */
+		SPILL
+	}
+
+	private static final long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Long.getLong("nyx.offheap.timeout", 10000));
+
+	private static volatile long budget = Long.getLong("nyx.offheap.budget", directMemoryLimit());
+	private static volatile Policy policy = Policy.valueOf(System.getProperty("nyx.offheap.policy", "FAIL"));
+
+	private static final AtomicLong reserved = new AtomicLong();
+	private static final AtomicLong spilled = new AtomicLong();
+	/* buffers mapped to the spill files */
+	private static final Set<ByteBuffer> spills = Collections.synchronizedSet(
+			Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+
+	/* open accounts, so their owners can be measured and expunged once collected */
+	private static final Set<Account> accounts = Acme.chashset();
+	private static final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+	/* blocked allocations wait for frees */
+	private static final Lock lock = new ReentrantLock();
+	private static final Condition freed = lock.newCondition();
+	private static final AtomicInteger waiters = new AtomicInteger();
+
+	private OffHeapMemory() { }
+
+	/**
+	 * Returns the limit of the direct memory of the JVM. It is the maximum
+	 * heap size unless {@code -XX:MaxDirectMemorySize} is set, which can only
+	 * be read on HotSpot.
+	 */
+	private static long directMemoryLimit() {
+		try {
+			HotSpotDiagnosticMXBean vm = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+			long limit = vm != null ? Long.parseLong(vm.getVMOption("MaxDirectMemorySize").getValue()) : 0;
+			if (limit > 0) return limit;
+		} catch (RuntimeException | LinkageError e) {
+			// not a HotSpot JVM
+		}
+		return Runtime.getRuntime().maxMemory();
+	}
+
+	/** Returns the maximum number of bytes the storages may allocate. */
+	public static long budget() { return budget; }
+
+	/**
+	 * Changes the budget. Memory which is already allocated over a smaller
+	 * budget is kept until it is freed.
+	 */
+	public static void budget(long bytes) {
+		if (bytes < 0) throw new IllegalArgumentException();
+		budget = bytes;
+		signalFreed();
+	}
+
+	public static Policy policy() { return policy; }
+
+	public static void policy(Policy p) {
+		if (p == null) throw new NullPointerException();
+		policy = p;
+	}
+
+	/** Returns the number of direct bytes currently allocated by the storages. */
+	public static long reserved() { return reserved.get(); }
+
+	/** Returns the number of bytes currently spilled to the mapped files. */
+	public static long spilled() { return spilled.get(); }
+
+	/**
+	 * Takes a snapshot of the memory usage of all open storages. The usage
+	 * of the storages is collected one by one, so the totals are not
+	 * consistent if the storages are modified meanwhile.
+	 */
+	public static OffHeapStats stats() {
+		expunge();
+		long used = 0, free = 0, wasted = 0;
+		int count = 0;
+		for (Account account : accounts) {
+			ElasticByteStorage<?> storage = account.owner.get();
+			if (storage == null) continue;
+			MemoryStats ms = storage.stats();
+			used += ms.getUsedBytes();
+			free += ms.getFreeBytes();
+			wasted += ms.getWastedBytes();
+			count++;
+		}
+		return new OffHeapStats(budget, policy, reserved.get(), spilled.get(), used, free, wasted, count);
+	}
+
+	/** Opens an account of a storage. */
+	static Account open(ElasticByteStorage<?> owner) {
+		expunge();
+		Account account = new Account(owner);
+		accounts.add(account);
+		return account;
+	}
+
+	/**
+	 * Allocates a buffer charged to a given account. The buffer is direct if
+	 * the budget allows it, otherwise it is up to the policy.
+	 */
+	static ByteBuffer allocate(Account account, int capacity) {
+		if (!reserve(capacity)) {
+			// memory of collected storages is returned first
+			expunge();
+			if (!reserve(capacity)) {
+				Policy p = policy;
+				if (p == Policy.SPILL) return spill(account, capacity);
+				if (p == Policy.FAIL || !await(capacity)) throw new Exhausted(capacity);
+			}
+		}
+		try {
+			ByteBuffer bb = Acme.dbbuffer(capacity);
+			account.reserved.addAndGet(capacity);
+			return bb;
+		} catch (OutOfMemoryError e) {
+			release(capacity);
+			throw e;
+		}
+	}
+
+	/**
+	 * Deallocates a buffer returned by {@link #allocate(Account, int)} right
+	 * away and returns its bytes to the budget. The buffer must not be used
+	 * afterwards.
+	 */
+	static void free(Account account, ByteBuffer bb) {
+		ElasticByteStorage.deallocDirectByteBuffer(bb);
+		if (spilled.get() > 0 && spills.remove(bb)) {
+			spilled.addAndGet(-bb.capacity());
+			account.spilled.addAndGet(-bb.capacity());
+			return;
+		}
+		account.reserved.addAndGet(-bb.capacity());
+		release(bb.capacity());
+	}
+
+	private static boolean reserve(int capacity) {
+		for (long r; (r = reserved.get()) + capacity <= budget;)
+			if (reserved.compareAndSet(r, r + capacity)) return true;
+		return false;
+	}
+
+	private static void release(long bytes) {
+		reserved.addAndGet(-bytes);
+		signalFreed();
+	}
+
+	private static void signalFreed() {
+		if (waiters.get() == 0) return;
+		lock.lock();
+		try { freed.signalAll(); } finally { lock.unlock(); }
+	}
+
+	/** Waits until the budget allows an allocation and reserves it. */
+	private static boolean await(int capacity) {
+		long nanos = TIMEOUT;
+		waiters.incrementAndGet();
+		lock.lock();
+		try {
+			while (!reserve(capacity)) {
+				if (nanos <= 0) return false;
+				nanos = freed.awaitNanos(nanos);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lock.unlock();
+			waiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Maps a temporary file which is deleted right away, its pages are
+	 * written out by the OS under memory pressure.
+	 */
+	private static ByteBuffer spill(Account account, int capacity) {
+		try {
+			Path file = Files.createTempFile("nyx-spill", ".bin");
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+				ByteBuffer bb = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+				spills.add(bb);
+				spilled.addAndGet(capacity);
+				account.spilled.addAndGet(capacity);
+				return bb;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Returns the memory charged to the storages which were collected unclosed. */
+	private static void expunge() {
+		for (Object ref; (ref = collected.poll()) != null;) {
+			Account account = ((Owner) ref).account;
+			if (accounts.remove(account)) {
+				release(account.reserved.getAndSet(0));
+				spilled.addAndGet(-account.spilled.getAndSet(0));
+			}
+		}
+	}
+
+	/**
+	 * Direct memory of a single storage, kept until the storage is closed or
+	 * collected.
+	 */
+	public static class Account {
+		private final Owner owner;
+		private final AtomicLong reserved = new AtomicLong();
+		private final AtomicLong spilled = new AtomicLong();
+
+		private Account(ElasticByteStorage<?> owner) {
+			this.owner = new Owner(owner, this);
+		}
+
+		/** Number of direct bytes allocated by the storage. */
+		public long getReservedBytes() { return reserved.get(); }
+		/** Number of bytes the storage has spilled to the mapped files. */
+		public long getSpilledBytes() { return spilled.get(); }
+
+		/** Stops measuring the storage, its memory must be freed already. */
+		void close() {
+			accounts.remove(this);
+			owner.clear();
+		}
+	}
+
+	private static class Owner extends WeakReference<ElasticByteStorage<?>> {
+		final Account account;
+
+		Owner(ElasticByteStorage<?> storage, Account account) {
+			super(storage, collected);
+			this.account = account;
+		}
+	}
+
+	/** Thrown when an allocation would exceed the off-heap budget. */
+	public static class Exhausted extends RuntimeException {
+		private static final long serialVersionUID = -5829402817519153312L;
+
+		Exhausted(int capacity) {
+			super("Off-heap budget of " + budget + " bytes exhausted, " + reserved.get()
+					+ " bytes reserved, " + capacity + " requested");
+		}
+	}
+
+}
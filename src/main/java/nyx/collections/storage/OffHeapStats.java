@@ -0,0 +1,53 @@
+package nyx.collections.storage;
+
+/**
+ * Snapshot of the off-heap memory of all open storages, see
+ * {@link OffHeapMemory#stats()}.
+ *
+ * @author varlou@gmail.com
+ */
+public class OffHeapStats {
+
+	private final long budget;
+	private final OffHeapMemory.Policy policy;
+	private final long reservedBytes;
+	private final long spilledBytes;
+	private final long usedBytes;
+	private final long freeBytes;
+	private final long wastedBytes;
+	private final int storages;
+
+	public OffHeapStats(long budget, OffHeapMemory.Policy policy, long reservedBytes, long spilledBytes,
+			long usedBytes, long freeBytes, long wastedBytes, int storages) {
+		this.budget = budget;
+		this.policy = policy;
+		this.reservedBytes = reservedBytes;
+		this.spilledBytes = spilledBytes;
+		this.usedBytes = usedBytes;
+		this.freeBytes = freeBytes;
+		this.wastedBytes = wastedBytes;
+		this.storages = storages;
+	}
+
+	public long getBudget() { return budget; }
+	public OffHeapMemory.Policy getPolicy() { return policy; }
+	/** Number of direct bytes allocated for the chunks and the indexes. */
+	public long getReservedBytes() { return reservedBytes; }
+	/** Number of bytes spilled to the mapped files. */
+	public long getSpilledBytes() { return spilledBytes; }
+	/** Number of bytes occupied by live elements. */
+	public long getUsedBytes() { return usedBytes; }
+	/** Number of bytes in the free lists and in remainders too small to be reused. */
+	public long getFragmentedBytes() { return freeBytes + wastedBytes; }
+	public long getFreeBytes() { return freeBytes; }
+	public long getWastedBytes() { return wastedBytes; }
+	/** Number of open storages. */
+	public int getStorages() { return storages; }
+
+	@Override
+	public String toString() {
+		return "OffHeapStats[budget=" + budget + ", policy=" + policy + ", reserved=" + reservedBytes
+				+ ", spilled=" + spilledBytes + ", used=" + usedBytes + ", fragmented="
+				+ getFragmentedBytes() + ", storages=" + storages + "]";
+	}
+}
@@ -0,0 +1,493 @@
+package nyx.collections.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import nyx.collections.Const;
+import nyx.collections.converter.BufferConverter;
+import nyx.collections.converter.Converter;
+
+/**
+ * B+tree of keys which keeps both its nodes and the encoded keys off-heap in
+ * an {@link ElasticByteStorage}, so its heap footprint does not depend on the
+ * number of keys. Every key gets an id, which is the id of its entry, e.g. the
+ * key of its value in another storage. Nodes take ids from the same sequence
+ * and have a fixed size, so they are always overwritten in place:
+ *
+ * <pre>
+ * 0   int  number of entries of a leaf, of children of an inner node
+ * 4   int  1 for a leaf, 0 for an inner node
+ * 8   int  previous leaf, -1 if there is none
+ * 12  int  next leaf, -1 if there is none
+ * 16  int  ids of the entries of a leaf, of the children of an inner node
+ * 272 int  ids of the separator keys of an inner node
+ * </pre>
+ *
+ * Separator {@code i} of an inner node is a copy of the least key child
+ * {@code i + 1} had when it was split off, so it stays valid when the entry
+ * of that key is removed. Leaves are linked in both directions, so ordered
+ * scans read the keys leaf by leaf and never touch the values.
+ * <p>
+ * Nodes are not merged when they shrink, a node is dropped only once it is
+ * empty. Lookups decode a logarithmic number of keys and are ordered by a
+ * given comparator or by the natural ordering of the keys.
+ * <p>
+ * The tree is not thread-safe. Modifications must be exclusive, while any
+ * number of readers may search it concurrently.
+ *
+ * @author varlou@gmail.com
+ */
+public class OffHeapTree<K> implements AutoCloseable {
+
+	/** Maximum number of entries of a leaf and of children of an inner node. */
+	public static final int ORDER = 64;
+
+	private static final int COUNT = 0;
+	private static final int LEAF = 4;
+	private static final int PREV = 8;
+	private static final int NEXT = 12;
+	private static final int IDS = 16;
+	private static final int SEPARATORS = IDS + ORDER * 4;
+	private static final int NODE = SEPARATORS + ORDER * 4;
+	/* nodes split in halves, so a tree this deep would hold more than 2^31 keys */
+	private static final int MAX_DEPTH = 32;
+	private static final int NONE = -1;
+	private static final NodeConverter NODES = new NodeConverter();
+
+	private final Comparator<? super K> comparator;
+	private final Converter<K, byte[]> converter;
+	private final ElasticByteStorage<Integer> storage;
+	private int root;
+	private int size;
+	private int modCount;
+	// ids are reused, so the storage keys stay dense
+	private int nextId;
+	private int[] freeIds = new int[16];
+	private int freeCount;
+	// nodes from the root down to a leaf and the children taken, used by writers
+	private final Node[] path = new Node[MAX_DEPTH];
+	private final int[] slots = new int[MAX_DEPTH];
+
+	/**
+	 * @param comparator the order of the keys, {@code null} for the natural
+	 *            ordering
+	 * @param converter encodes the keys
+	 * @param maxChunk the maximum size of an off-heap chunk in bytes, see
+	 *            {@link ElasticByteStorage#ElasticByteStorage(int, int)}
+	 */
+	public OffHeapTree(Comparator<? super K> comparator, Converter<K, byte[]> converter, int maxChunk) {
+		this.comparator = comparator;
+		this.converter = converter;
+		this.storage = ElasticByteStorage.withIntKeys(Const._1Kb * 4, maxChunk);
+		this.root = newLeaf();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Returns the number of modifications, cursors are valid while it does not change. */
+	public int modifications() {
+		return modCount;
+	}
+
+	/**
+	 * Finds the entry of a given key.
+	 *
+	 * @return the id of the entry or {@code -1} if there is no such key
+	 */
+	public int find(K key) {
+		Node leaf = leaf(key);
+		int i = search(leaf, key);
+		return i >= 0 ? leaf.ids[i] : NONE;
+	}
+
+	/** Decodes the key of a given entry. */
+	@SuppressWarnings("unchecked")
+	public K key(int id) {
+		if (converter instanceof BufferConverter) return storage.get(id, (BufferConverter<K>) converter);
+		return converter.decode(storage.get(id));
+	}
+
+	/**
+	 * Adds a key unless it is in the tree already.
+	 *
+	 * @return the id of the new entry or {@code -id - 1} where {@code id} is
+	 *         the id of the existing one
+	 */
+	public int insert(K key) {
+		int d = descend(key);
+		Node leaf = path[d];
+		int i = search(leaf, key);
+		if (i >= 0) return -leaf.ids[i] - 1;
+		int id = newId();
+		storage.put(id, converter.encode(key));
+		insertAt(leaf.ids, leaf.count++, -i - 1, id);
+		size++;
+		modCount++;
+		if (leaf.count <= ORDER) write(leaf);
+		else split(d);
+		return id;
+	}
+
+	/**
+	 * Removes a key.
+	 *
+	 * @return the id of the removed entry or {@code -1} if there is no such key
+	 */
+	public int delete(K key) {
+		int d = descend(key);
+		Node leaf = path[d];
+		int i = search(leaf, key);
+		if (i < 0) return NONE;
+		int id = leaf.ids[i];
+		removeAt(leaf.ids, leaf.count--, i);
+		free(id);
+		size--;
+		modCount++;
+		if (leaf.count > 0 || d == 0) write(leaf);
+		else drop(d);
+		collapse();
+		return id;
+	}
+
+	/** Returns a cursor at the least entry or {@code null} if the tree is empty. */
+	public Cursor first() {
+		Node node = read(root);
+		while (!node.leaf) node = read(node.ids[0]);
+		return node.count > 0 ? new Cursor(node, 0) : null;
+	}
+
+	/** Returns a cursor at the greatest entry or {@code null} if the tree is empty. */
+	public Cursor last() {
+		Node node = read(root);
+		while (!node.leaf) node = read(node.ids[node.count - 1]);
+		return node.count > 0 ? new Cursor(node, node.count - 1) : null;
+	}
+
+	/**
+	 * Returns a cursor at the least entry greater than (or equal to, if
+	 * {@code inclusive}) a given key or {@code null} if there is none.
+	 */
+	public Cursor ceiling(K key, boolean inclusive) {
+		Node leaf = leaf(key);
+		int i = search(leaf, key);
+		i = i >= 0 ? (inclusive ? i : i + 1) : -i - 1;
+		Cursor cursor = new Cursor(leaf, i - 1);
+		return cursor.next() ? cursor : null;
+	}
+
+	/**
+	 * Returns a cursor at the greatest entry less than (or equal to, if
+	 * {@code inclusive}) a given key or {@code null} if there is none.
+	 */
+	public Cursor floor(K key, boolean inclusive) {
+		Node leaf = leaf(key);
+		int i = search(leaf, key);
+		i = i >= 0 ? (inclusive ? i : i - 1) : -i - 2;
+		Cursor cursor = new Cursor(leaf, i + 1);
+		return cursor.previous() ? cursor : null;
+	}
+
+	/** Removes all keys and releases their memory. */
+	public void clear() {
+		storage.clear();
+		size = nextId = freeCount = 0;
+		modCount++;
+		root = newLeaf();
+	}
+
+	/** Returns memory usage and fragmentation of the nodes and the keys. */
+	public MemoryStats stats() {
+		return storage.stats();
+	}
+
+	/** Releases the memory of this tree, it can no longer be used afterwards. */
+	@Override
+	public void close() {
+		storage.close();
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(K a, K b) {
+		return comparator != null ? comparator.compare(a, b) : ((Comparable<? super K>) a).compareTo(b);
+	}
+
+	/** Finds a key among the entries of a leaf, see {@link Arrays#binarySearch}. */
+	private int search(Node leaf, K key) {
+		int lo = 0, hi = leaf.count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compare(key(leaf.ids[mid]), key);
+			if (c < 0) lo = mid + 1;
+			else if (c > 0) hi = mid - 1;
+			else return mid;
+		}
+		return -(lo + 1);
+	}
+
+	/** Returns the index of the child of an inner node which may hold a key. */
+	private int child(Node inner, K key) {
+		int lo = 0, hi = inner.count - 2;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(key(inner.separators[mid]), key) <= 0) lo = mid + 1;
+			else hi = mid - 1;
+		}
+		// the number of separators not greater than the key
+		return lo;
+	}
+
+	/** Returns the leaf which may hold a key. */
+	private Node leaf(K key) {
+		Node node = read(root);
+		while (!node.leaf) node = read(node.ids[child(node, key)]);
+		return node;
+	}
+
+	/**
+	 * Fills the path down to the leaf which may hold a key.
+	 *
+	 * @return the depth of the leaf
+	 */
+	private int descend(K key) {
+		Node node = read(root);
+		int d = 0;
+		while (!node.leaf) {
+			int i = child(node, key);
+			path[d] = node;
+			slots[d++] = i;
+			node = read(node.ids[i]);
+		}
+		path[d] = node;
+		return d;
+	}
+
+	/** Splits an overflown node of the path in halves. */
+	private void split(int d) {
+		Node node = path[d];
+		Node right = new Node(newId(), node.leaf);
+		int half = node.count / 2;
+		right.count = node.count - half;
+		System.arraycopy(node.ids, half, right.ids, 0, right.count);
+		int separator;
+		if (node.leaf) {
+			right.prev = node.id;
+			right.next = node.next;
+			if (node.next != NONE) {
+				Node next = read(node.next);
+				next.prev = right.id;
+				write(next);
+			}
+			node.next = right.id;
+			separator = newId();
+			storage.put(separator, storage.get(right.ids[0]));
+		} else {
+			// the separator of the first child of the right node moves up
+			separator = node.separators[half - 1];
+			System.arraycopy(node.separators, half, right.separators, 0, right.count - 1);
+		}
+		node.count = half;
+		write(node);
+		write(right);
+		if (d == 0) {
+			Node top = new Node(newId(), false);
+			top.count = 2;
+			top.ids[0] = node.id;
+			top.ids[1] = right.id;
+			top.separators[0] = separator;
+			write(top);
+			root = top.id;
+			return;
+		}
+		Node parent = path[d - 1];
+		int i = slots[d - 1];
+		insertAt(parent.ids, parent.count, i + 1, right.id);
+		insertAt(parent.separators, parent.count - 1, i, separator);
+		parent.count++;
+		if (parent.count <= ORDER) write(parent);
+		else split(d - 1);
+	}
+
+	/** Removes an empty node of the path from its parent. */
+	private void drop(int d) {
+		Node node = path[d];
+		if (node.leaf) {
+			if (node.prev != NONE) {
+				Node prev = read(node.prev);
+				prev.next = node.next;
+				write(prev);
+			}
+			if (node.next != NONE) {
+				Node next = read(node.next);
+				next.prev = node.prev;
+				write(next);
+			}
+		}
+		free(node.id);
+		Node parent = path[d - 1];
+		int i = slots[d - 1];
+		removeAt(parent.ids, parent.count, i);
+		if (parent.count > 1) {
+			// the first child has no separator, the next one loses its own
+			int s = Math.max(i - 1, 0);
+			free(parent.separators[s]);
+			removeAt(parent.separators, parent.count - 1, s);
+		}
+		parent.count--;
+		if (parent.count > 0) {
+			write(parent);
+		} else if (d > 1) {
+			drop(d - 1);
+		} else {
+			free(parent.id);
+			root = newLeaf();
+		}
+	}
+
+	/** Replaces a root with a single child by the child. */
+	private void collapse() {
+		for (Node top = read(root); !top.leaf && top.count == 1; top = read(root)) {
+			root = top.ids[0];
+			free(top.id);
+		}
+	}
+
+	private int newLeaf() {
+		Node leaf = new Node(newId(), true);
+		write(leaf);
+		return leaf.id;
+	}
+
+	private int newId() {
+		return freeCount > 0 ? freeIds[--freeCount] : nextId++;
+	}
+
+	/** Removes a node or a key from the storage and releases its id. */
+	private void free(int id) {
+		storage.remove(id);
+		if (freeCount == freeIds.length)
+			freeIds = Arrays.copyOf(freeIds, freeCount << 1);
+		freeIds[freeCount++] = id;
+	}
+
+	private Node read(int id) {
+		Node node = storage.get(id, NODES);
+		node.id = id;
+		return node;
+	}
+
+	private void write(Node node) {
+		storage.update(node.id, NODES.encode(node));
+	}
+
+	private static void insertAt(int[] a, int count, int i, int value) {
+		System.arraycopy(a, i, a, i + 1, count - i);
+		a[i] = value;
+	}
+
+	private static void removeAt(int[] a, int count, int i) {
+		System.arraycopy(a, i + 1, a, i, count - i - 1);
+	}
+
+	/**
+	 * Position of an entry in the key order. It is valid until the tree is
+	 * modified, see {@link OffHeapTree#modifications()}.
+	 */
+	public final class Cursor {
+		private Node leaf;
+		private int index;
+		/* key of the entry once it is decoded */
+		private K key;
+		private boolean decoded;
+
+		private Cursor(Node leaf, int index) {
+			this.leaf = leaf;
+			this.index = index;
+		}
+
+		/** Returns the id of the entry. */
+		public int id() {
+			return leaf.ids[index];
+		}
+
+		/** Decodes the key of the entry, at most once per position. */
+		public K key() {
+			if (!decoded) {
+				key = OffHeapTree.this.key(id());
+				decoded = true;
+			}
+			return key;
+		}
+
+		/** Moves to the next entry, returns {@code false} if there is none. */
+		public boolean next() {
+			decoded = false;
+			if (++index < leaf.count) return true;
+			if (leaf.next == NONE) return false;
+			leaf = read(leaf.next);
+			index = 0;
+			return true;
+		}
+
+		/** Moves to the previous entry, returns {@code false} if there is none. */
+		public boolean previous() {
+			decoded = false;
+			if (--index >= 0) return true;
+			if (leaf.prev == NONE) return false;
+			leaf = read(leaf.prev);
+			index = leaf.count - 1;
+			return true;
+		}
+	}
+
+	/* node decoded on the heap while it is searched or modified, one spare entry for splits */
+	private static final class Node {
+		int id;
+		boolean leaf;
+		int count;
+		int prev = NONE;
+		int next = NONE;
+		final int[] ids = new int[ORDER + 1];
+		final int[] separators = new int[ORDER];
+
+		Node(int id, boolean leaf) {
+			this.id = id;
+			this.leaf = leaf;
+		}
+	}
+
+	/* decodes the nodes straight from the chunks of the storage */
+	private static final class NodeConverter implements BufferConverter<Node> {
+
+		@Override
+		public byte[] encode(Node node) {
+			ByteBuffer bb = ByteBuffer.allocate(NODE);
+			bb.putInt(COUNT, node.count);
+			bb.putInt(LEAF, node.leaf ? 1 : 0);
+			bb.putInt(PREV, node.prev);
+			bb.putInt(NEXT, node.next);
+			for (int i = 0; i < node.count; i++) bb.putInt(IDS + i * 4, node.ids[i]);
+			for (int i = 0; i < node.count - 1 && !node.leaf; i++) bb.putInt(SEPARATORS + i * 4, node.separators[i]);
+			return bb.array();
+		}
+
+		@Override
+		public Node decode(byte[] bytes) {
+			return decode(ByteBuffer.wrap(bytes), 0, bytes.length);
+		}
+
+		@Override
+		public Node decode(ByteBuffer bb, int offset, int length) {
+			Node node = new Node(NONE, bb.getInt(offset + LEAF) == 1);
+			node.count = bb.getInt(offset + COUNT);
+			node.prev = bb.getInt(offset + PREV);
+			node.next = bb.getInt(offset + NEXT);
+			for (int i = 0; i < node.count; i++) node.ids[i] = bb.getInt(offset + IDS + i * 4);
+			for (int i = 0; i < node.count - 1 && !node.leaf; i++) node.separators[i] = bb.getInt(offset + SEPARATORS + i * 4);
+			return node;
+		}
+	}
+
+}
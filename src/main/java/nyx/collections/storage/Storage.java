@@ -7,7 +7,7 @@ import java.util.Set;
  * 
  * @author varlou@gmail.com
  */
-public interface Storage<K, V> {
+public interface Storage<K, V> extends AutoCloseable {
 
 	V put(K key, V value);
 	V update(K key, V value);
@@ -17,5 +17,8 @@ public interface Storage<K, V> {
 	void clear();
 	int size();
 	Set<K> keySet();
+	/** Reclaims the space of removed elements. May run asynchronously. */
 	void purge();
+	/** Releases resources held by this storage. */
+	@Override void close();
 }
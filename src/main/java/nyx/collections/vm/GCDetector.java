@@ -5,9 +5,6 @@ import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import javax.management.Notification;
 import javax.management.NotificationEmitter;
@@ -26,15 +23,12 @@ public class GCDetector implements NotificationListener {
 
 	private static boolean notAvailable = false;
 	private Set<WeakReference<Callback<?>>> handlers = Acme.chashset();
-	private ThreadPoolExecutor tp;
 	private static final GCDetector inst = new GCDetector();
 	
 	
 	private GCDetector() { 
 		try {
 			init();
-			tp = new ThreadPoolExecutor(1, 4, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-			tp.allowCoreThreadTimeOut(true);
 		} catch (NotAvailable e) { notAvailable = true; } 
 	}
 	
@@ -62,7 +56,7 @@ public class GCDetector implements NotificationListener {
 				final Callback<?> callback = it.next().get();
 				// non-blocking call to subscribes
 				if (callback != null)
-					tp.execute(new Runnable() { @Override public void run() { callback.handle(null); } });
+					Housekeeper.execute(new Runnable() { @Override public void run() { callback.handle(null); } });
 				else
 					it.remove();
 			}
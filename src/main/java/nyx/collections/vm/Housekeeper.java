@@ -0,0 +1,85 @@
+package nyx.collections.vm;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs background work of all collections: storing of written-behind
+ * elements, draining of reference queues and compaction. A few shared
+ * daemon threads are started on demand and stop when idle, so an idle
+ * collection costs no thread at all.
+ * <p>
+ * Tasks must not block waiting for each other. Long running work is split
+ * into steps, each step submitting the next one. Work which may block, such
+ * as storing elements which waits for the encoders and for off-heap memory,
+ * is run by {@link #executeBlocking} on threads of its own, so it never
+ * holds up the compaction or the draining it may be waiting for.
+ * <p>
+ * The number of threads of each kind is set by the
+ * {@code nyx.housekeeper.threads} system property and defaults to half of
+ * the processors, at most four.
+ *
+ * @author varlou@gmail.com
+ */
+public final class Housekeeper {
+
+	/** Maximum number of housekeeping threads. */
+	public static final int THREADS = Integer.getInteger("nyx.housekeeper.threads",
+			Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+	private static final ScheduledThreadPoolExecutor tp = new ScheduledThreadPoolExecutor(THREADS,
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "nyx-housekeeper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private static final ThreadPoolExecutor blocking = new ThreadPoolExecutor(THREADS, THREADS, 60,
+			TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "nyx-housekeeper-blocking");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	static {
+		tp.setKeepAliveTime(60, TimeUnit.SECONDS);
+		tp.allowCoreThreadTimeOut(true);
+		tp.setRemoveOnCancelPolicy(true);
+		blocking.allowCoreThreadTimeOut(true);
+	}
+
+	private Housekeeper() { }
+
+	/** Runs a task as soon as a thread is available. */
+	public static void execute(Runnable task) {
+		tp.execute(task);
+	}
+
+	/**
+	 * Runs a task which may block as soon as a thread is available. Such
+	 * tasks wait only for each other, never for the tasks run by
+	 * {@link #execute}.
+	 */
+	public static void executeBlocking(Runnable task) {
+		blocking.execute(task);
+	}
+
+	/**
+	 * Runs a task periodically until it is cancelled. The task should not
+	 * keep its owner reachable, otherwise the owner is never collected.
+	 */
+	public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		return tp.scheduleWithFixedDelay(task, delay, delay, unit);
+	}
+
+}
@@ -0,0 +1,71 @@
+package nyx.collections.vm;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Safety net for collections which are not closed. Once such a collection
+ * becomes unreachable its leak is logged and its resource is closed, so the
+ * off-heap memory is returned to the budget. The resource must not refer
+ * to its collection, otherwise the collection is never collected.
+ *
+ * @author varlou@gmail.com
+ */
+public final class LeakGuard {
+
+	private static final Logger LOG = Logger.getLogger(LeakGuard.class.getName());
+
+	private static final Cleaner cleaner = Cleaner.create(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "nyx-leak-guard");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final State state;
+	private final Cleaner.Cleanable cleanable;
+
+	private LeakGuard(Object owner, AutoCloseable resource) {
+		this.state = new State(owner.getClass().getName(), resource);
+		this.cleanable = cleaner.register(owner, state);
+	}
+
+	/** Starts watching a collection which holds a given resource. */
+	public static LeakGuard watch(Object owner, AutoCloseable resource) {
+		return new LeakGuard(owner, resource);
+	}
+
+	/** Tells that the collection is closed properly. */
+	public void close() {
+		state.closed = true;
+		cleanable.clean();
+	}
+
+	/* must not refer to the owner */
+	private static class State implements Runnable {
+		private final String owner;
+		private final AutoCloseable resource;
+		volatile boolean closed;
+
+		State(String owner, AutoCloseable resource) {
+			this.owner = owner;
+			this.resource = resource;
+		}
+
+		@Override
+		public void run() {
+			if (closed) return;
+			LOG.warning(owner + " was not closed, its resources are released by the leak guard");
+			try {
+				resource.close();
+			} catch (Exception e) {
+				LOG.log(Level.WARNING, "Failed to release " + owner, e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package nyx.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class NyxConcurrentMapTest {
+
+	private static final BiFunction<Integer, Integer, Integer> SUM = new BiFunction<Integer, Integer, Integer>() {
+		@Override public Integer apply(Integer a, Integer b) { return a + b; }
+	};
+
+	@Test
+	public void testAtomicOperations() {
+		ConcurrentMap<String, Integer> map = new NyxConcurrentMap<>();
+		assertEquals(null, map.putIfAbsent("a", 1));
+		assertEquals(Integer.valueOf(1), map.putIfAbsent("a", 2));
+		assertEquals(Integer.valueOf(1), map.replace("a", 3));
+		assertEquals(null, map.replace("b", 3));
+		assertTrue(map.replace("a", 3, 4));
+		assertEquals(Integer.valueOf(4), map.get("a"));
+		assertTrue(map.remove("a", 4));
+		assertEquals(0, map.size());
+		((NyxConcurrentMap<String, Integer>) map).close();
+	}
+
+	/** All the writers merge into the same keys, no increment may be lost. */
+	@Test
+	public void testConcurrentMerge() throws InterruptedException {
+		final NyxConcurrentMap<Integer, Integer> map = new NyxConcurrentMap<>(16, 4);
+		final int keys = 64, rounds = 200;
+		Thread[] writers = new Thread[8];
+		for (int t = 0; t < writers.length; t++) {
+			writers[t] = new Thread(new Runnable() {
+				@Override public void run() {
+					for (int r = 0; r < rounds; r++)
+						for (int k = 0; k < keys; k++) map.merge(k, 1, SUM);
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers) writer.join();
+		assertEquals(keys, map.size());
+		for (int k = 0; k < keys; k++) assertEquals(Integer.valueOf(writers.length * rounds), map.get(k));
+		map.close();
+	}
+
+	/** Racing writers compute a missing value once, readers never block. */
+	@Test
+	public void testConcurrentComputeIfAbsent() throws InterruptedException {
+		final NyxConcurrentMap<Integer, String> map = new NyxConcurrentMap<>();
+		final AtomicInteger computed = new AtomicInteger();
+		final AtomicInteger misread = new AtomicInteger();
+		final Function<Integer, String> fn = new Function<Integer, String>() {
+			@Override public String apply(Integer k) {
+				computed.incrementAndGet();
+				return "v" + k;
+			}
+		};
+		final int keys = 1000;
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final boolean reader = t % 2 == 0;
+			threads[t] = new Thread(new Runnable() {
+				@Override public void run() {
+					for (int k = 0; k < keys; k++) {
+						if (!reader) {
+							map.computeIfAbsent(k, fn);
+							continue;
+						}
+						String v = map.get(k);
+						if (v != null && !v.equals("v" + k)) misread.incrementAndGet();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) thread.join();
+		assertEquals(keys, computed.get());
+		assertEquals(0, misread.get());
+		assertEquals(keys, map.size());
+		map.close();
+	}
+
+	/**
+	 * Prints put throughput of a growing number of writers of distinct keys.
+	 * Run manually on a multi-core box: the writers share the write-behind
+	 * queue and the index lock, so the throughput is not expected to scale.
+	 */
+	@Ignore
+	@Test
+	public void testWriteScaling() throws Exception {
+		final int perThread = 200_000;
+		for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads <<= 1) {
+			final NyxConcurrentMap<Integer, String> map = new NyxConcurrentMap<>(16, threads);
+			Thread[] writers = new Thread[threads];
+			long started = System.nanoTime();
+			for (int t = 0; t < threads; t++) {
+				final int from = t * perThread;
+				writers[t] = new Thread(new Runnable() {
+					@Override public void run() {
+						for (int i = from; i < from + perThread; i++) map.put(i, "value" + i);
+					}
+				});
+				writers[t].start();
+			}
+			for (Thread writer : writers) writer.join();
+			long puts = System.nanoTime() - started;
+			assertEquals(threads * perThread, map.size());
+			System.out.printf("%2d threads: %,12d puts/s%n", threads, threads * perThread * 1_000_000_000L / puts);
+			map.close();
+		}
+	}
+
+}
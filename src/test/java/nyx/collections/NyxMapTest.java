@@ -7,6 +7,8 @@ import static org.junit.Assert.assertTrue;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import org.junit.Test;
 
@@ -129,4 +131,55 @@ public class NyxMapTest {
 		assertTrue(map.entrySet().size()==map.size());
 	}
 
+	/** Values which fit into the old ones are overwritten in place. */
+	@Test
+	public void testOverwrite() {
+		NyxMap<Integer, String> map = new NyxMap<>();
+		for (int i = 0; i < 1000; i++)
+			assertEquals(null, map.put(i, "value " + i));
+		assertEquals(1000, map.size());
+		long reserved = map.metrics().getOffHeapReservedBytes();
+		for (int i = 0; i < 1000; i++)
+			assertEquals("value " + i, map.put(i, "v " + i));
+		assertEquals(reserved, map.metrics().getOffHeapReservedBytes());
+		for (int i = 0; i < 1000; i++)
+			assertEquals("v " + i, map.get(i));
+		map.close();
+	}
+
+	@Test
+	public void testAtomicOperations() {
+		BiFunction<Integer, Integer, Integer> sum = new BiFunction<Integer, Integer, Integer>() {
+			@Override public Integer apply(Integer a, Integer b) { return a + b; }
+		};
+		BiFunction<String, Integer, Integer> increment = new BiFunction<String, Integer, Integer>() {
+			@Override public Integer apply(String k, Integer v) { return v + 1; }
+		};
+		BiFunction<String, Integer, Integer> drop = new BiFunction<String, Integer, Integer>() {
+			@Override public Integer apply(String k, Integer v) { return null; }
+		};
+		Function<String, Integer> length = new Function<String, Integer>() {
+			@Override public Integer apply(String k) { return k.length(); }
+		};
+		NyxMap<String, Integer> map = new NyxMap<>();
+		assertEquals(null, map.putIfAbsent("a", 1));
+		assertEquals(Integer.valueOf(1), map.putIfAbsent("a", 2));
+		assertEquals(Integer.valueOf(3), map.merge("a", 2, sum));
+		assertEquals(Integer.valueOf(5), map.merge("b", 5, sum));
+		assertEquals(Integer.valueOf(4), map.compute("a", increment));
+		assertEquals(Integer.valueOf(3), map.computeIfAbsent("ccc", length));
+		assertEquals(Integer.valueOf(3), map.computeIfAbsent("ccc", length));
+		assertEquals(null, map.computeIfPresent("d", increment));
+		assertEquals(null, map.computeIfPresent("b", drop));
+		assertFalse(map.containsKey("b"));
+		assertTrue(map.replace("ccc", 3, 9));
+		assertFalse(map.replace("ccc", 3, 10));
+		assertEquals(Integer.valueOf(9), map.replace("ccc", 11));
+		assertFalse(map.remove("a", 5));
+		assertTrue(map.remove("a", 4));
+		assertEquals(1, map.size());
+		assertEquals(Integer.valueOf(11), map.get("ccc"));
+		map.close();
+	}
+
 }
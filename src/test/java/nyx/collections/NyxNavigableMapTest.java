@@ -0,0 +1,144 @@
+package nyx.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class NyxNavigableMapTest {
+
+	@Test
+	public void testPutGetRemove() {
+		NyxNavigableMap<String, String> map = new NyxNavigableMap<>();
+		assertEquals(null, map.put("b", "1"));
+		assertEquals("1", map.put("b", "2"));
+		map.put("a", "3");
+		assertEquals(2, map.size());
+		assertEquals("2", map.get("b"));
+		assertTrue(map.containsKey("a"));
+		assertEquals("a", map.firstKey());
+		assertEquals("3", map.remove("a"));
+		assertFalse(map.containsKey("a"));
+		assertEquals(null, map.remove("a"));
+		assertEquals(1, map.size());
+		map.close();
+	}
+
+	/** Random modifications split and drop nodes, the order must match TreeMap. */
+	@Test
+	public void testAgainstTreeMap() {
+		NyxNavigableMap<Integer, String> map = new NyxNavigableMap<>();
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		Random random = new Random(7);
+		for (int i = 0; i < 20000; i++) {
+			int key = random.nextInt(5000);
+			if (random.nextInt(3) == 0) assertEquals(expected.remove(key), map.remove(key));
+			else assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i));
+		}
+		assertEquals(expected.size(), map.size());
+		assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(map.keySet()));
+		assertEquals(expected, map);
+		for (int i = 0; i < 1000; i++) {
+			int key = random.nextInt(5200) - 100;
+			assertEquals(expected.floorKey(key), map.floorKey(key));
+			assertEquals(expected.lowerKey(key), map.lowerKey(key));
+			assertEquals(expected.ceilingEntry(key), map.ceilingEntry(key));
+			assertEquals(expected.higherEntry(key), map.higherEntry(key));
+		}
+		// empties the tree down to a single leaf
+		for (Integer key : new ArrayList<>(expected.keySet())) assertEquals(expected.remove(key), map.remove(key));
+		assertTrue(map.isEmpty());
+		assertEquals(null, map.firstEntry());
+		map.put(1, "one");
+		assertEquals("one", map.get(1));
+		map.close();
+	}
+
+	@Test
+	public void testRangeViews() {
+		NyxNavigableMap<Integer, Integer> map = new NyxNavigableMap<>();
+		TreeMap<Integer, Integer> expected = new TreeMap<>();
+		for (int i = 0; i < 1000; i += 2) {
+			map.put(i, i * 10);
+			expected.put(i, i * 10);
+		}
+		assertEquals(expected.subMap(100, true, 200, false), map.subMap(100, true, 200, false));
+		assertEquals(new ArrayList<>(expected.subMap(101, 201).keySet()), new ArrayList<>(map.subMap(101, 201).keySet()));
+		assertEquals(new ArrayList<>(expected.headMap(11, true).values()), new ArrayList<>(map.headMap(11, true).values()));
+		assertEquals(new ArrayList<>(expected.tailMap(990).entrySet()), new ArrayList<>(map.tailMap(990).entrySet()));
+		NavigableMap<Integer, Integer> descending = map.descendingMap().subMap(500, true, 480, false);
+		assertEquals(new ArrayList<>(expected.descendingMap().subMap(500, true, 480, false).keySet()),
+				new ArrayList<>(descending.keySet()));
+		assertEquals(Integer.valueOf(500), descending.firstKey());
+		assertEquals(Integer.valueOf(498), descending.higherKey(500));
+		assertEquals(Integer.valueOf(490), descending.ceilingKey(491));
+		assertEquals(10, descending.size());
+		List<Integer> reversed = new ArrayList<>(map.navigableKeySet());
+		Collections.reverse(reversed);
+		assertEquals(reversed, new ArrayList<>(map.descendingKeySet()));
+		try {
+			map.subMap(100, 200).put(300, 0);
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			// out of the range
+		}
+		map.subMap(100, 200).clear();
+		expected.subMap(100, 200).clear();
+		assertEquals(expected, map);
+		assertEquals(Integer.valueOf(0), map.pollFirstEntry().getKey());
+		assertEquals(Integer.valueOf(998), map.pollLastEntry().getKey());
+		assertEquals(Integer.valueOf(2), map.firstKey());
+		map.close();
+	}
+
+	/** Iterators go on after the last returned key when the map is modified. */
+	@Test
+	public void testWeaklyConsistentIterator() {
+		NyxNavigableMap<Integer, String> map = new NyxNavigableMap<>();
+		for (int i = 0; i < 500; i++) map.put(i, "v" + i);
+		int count = 0;
+		for (Iterator<Map.Entry<Integer, String>> it = map.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Integer, String> e = it.next();
+			assertEquals("v" + e.getKey(), e.getValue());
+			if (e.getKey() % 2 == 0) it.remove();
+			// keys added behind the iterator are not returned
+			map.put(-e.getKey() - 1, "x");
+			count++;
+		}
+		assertEquals(500, count);
+		assertEquals(Integer.valueOf(-500), map.firstKey());
+		assertEquals(Integer.valueOf(499), map.lastKey());
+		assertEquals(750, map.size());
+		map.close();
+	}
+
+	/** The next entry removed after the iterator passed its leaf is not returned. */
+	@Test
+	public void testRemoveNextWhileIterating() {
+		NyxNavigableMap<Integer, String> map = new NyxNavigableMap<>();
+		for (int i = 1; i <= 3; i++) map.put(i, "v" + i);
+		Iterator<Map.Entry<Integer, String>> it = map.entrySet().iterator();
+		assertEquals(Integer.valueOf(1), it.next().getKey());
+		map.remove(2);
+		Map.Entry<Integer, String> e = it.next();
+		assertEquals(Integer.valueOf(3), e.getKey());
+		assertEquals("v3", e.getValue());
+		map.remove(1);
+		map.put(4, "v4");
+		assertTrue(it.hasNext());
+		map.remove(4);
+		assertFalse(it.hasNext());
+		map.close();
+	}
+
+}
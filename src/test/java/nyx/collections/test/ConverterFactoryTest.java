@@ -0,0 +1,172 @@
+package nyx.collections.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import nyx.collections.converter.BinaryConverter;
+import nyx.collections.converter.BufferConverter;
+import nyx.collections.converter.CompressingConverter;
+import nyx.collections.converter.CompressionStats;
+import nyx.collections.converter.Converter;
+import nyx.collections.converter.ConverterFactory;
+import nyx.collections.converter.FieldConverter;
+import nyx.collections.converter.SerialConverter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConverterFactoryTest {
+
+	public static class Point implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int x;
+		long y;
+		double z;
+		String name;
+		int[] tags;
+		Object payload;
+		transient int cache = -1;
+
+		public Point(int x, String name) {
+			this.x = x;
+			this.y = -x;
+			this.z = x / 2.0;
+			this.name = name;
+			this.tags = new int[] { x, x + 1 };
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			Point p = (Point) obj;
+			return x == p.x && y == p.y && z == p.z && String.valueOf(name).equals(String.valueOf(p.name))
+					&& Arrays.equals(tags, p.tags) && String.valueOf(payload).equals(String.valueOf(p.payload));
+		}
+
+		@Override
+		public int hashCode() {
+			return x;
+		}
+	}
+
+	public static class Point3D extends Point {
+		private static final long serialVersionUID = 1L;
+
+		public Point3D(int x) {
+			super(x, "3d");
+		}
+	}
+
+	/**
+	 * Verifies that type-specialized converters restore elements from arrays
+	 * and from buffers, <b>{@code null}</b> included.
+	 */
+	@Test
+	public void testRoundTrip() {
+		assertRoundTrip(Integer.class, 42, Integer.MIN_VALUE, null);
+		assertRoundTrip(Long.class, 42L, Long.MAX_VALUE, null);
+		assertRoundTrip(Double.class, Math.PI, null);
+		assertRoundTrip(Boolean.class, true, false, null);
+		assertRoundTrip(Character.class, 'x', null);
+		assertRoundTrip(String.class, "", "ascii", "\u00e9t\u00e9 \u4e2d\u6587 \ud83d\ude00", null);
+		assertRoundTrip(byte[].class, new byte[] { 1, -1 }, new byte[0], null);
+		assertRoundTrip(int[].class, new int[] { 1, -1, Integer.MAX_VALUE }, null);
+		assertRoundTrip(long[].class, new long[] { 1, -1, Long.MIN_VALUE }, null);
+		// bigger than the buffer kept by the thread
+		assertRoundTrip(int[].class, new int[BinaryConverter.MAX_KEPT], new int[] { 1 }, null);
+		Point p = new Point(7, null);
+		p.payload = new Date(0);
+		assertRoundTrip(Point.class, new Point(5, "five"), p, new Point3D(3), null);
+		assertRoundTrip(Object.class, 1, "one", 1L, new int[] { 1 }, new Point(1, "1"), new ArrayList<>(), null);
+	}
+
+	/**
+	 * Verifies that type-specialized converters are more compact than Java
+	 * serialization.
+	 */
+	@Test
+	public void testCompact() {
+		SerialConverter<Object> serial = new SerialConverter<>();
+		Assert.assertEquals(4, ConverterFactory.forClass(Integer.class).encode(1).length);
+		Assert.assertEquals(5, ConverterFactory.get().encode(1).length);
+		Assert.assertEquals(3, ConverterFactory.forClass(String.class).encode("abc").length);
+		Point p = new Point(5, "five");
+		Assert.assertTrue(FieldConverter.supports(Point.class));
+		Assert.assertFalse(FieldConverter.supports(Date.class));
+		Assert.assertTrue(ConverterFactory.forClass(Point.class).encode(p).length * 4 < serial.encode(p).length);
+	}
+
+	@Test
+	public void testForTypes() {
+		Converter<String, byte[]> to = ConverterFactory.forTypes(String.class, byte[].class);
+		Converter<byte[], String> from = ConverterFactory.forTypes(byte[].class, String.class);
+		Assert.assertEquals("abc", from.encode(to.encode("abc")));
+		Assert.assertEquals("abc", to.decode(from.decode("abc")));
+		try {
+			ConverterFactory.forTypes(String.class, Integer.class);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * Verifies that compressed elements are restored before and after the
+	 * dictionary is trained, and by a deserialized copy of the converter.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testCompressed() throws Exception {
+		CompressingConverter<Object> converter = ConverterFactory.compressed(ConverterFactory.get(), 64);
+		List<byte[]> encoded = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) encoded.add(converter.encode(value(i)));
+		Assert.assertEquals(5, converter.encode("abc").length);
+		for (int i = 0; i < 1000; i++) {
+			byte[] data = encoded.get(i);
+			Assert.assertEquals(value(i), converter.decode(data));
+			ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 1);
+			buffer.position(1);
+			buffer.put(data);
+			Assert.assertEquals(value(i), converter.decode(buffer, 1, data.length));
+		}
+		CompressionStats stats = converter.stats();
+		Assert.assertEquals(1001, stats.getElements());
+		Assert.assertEquals(1000, stats.getCompressedElements());
+		Assert.assertTrue(stats.toString(), stats.getRatio() < 0.5);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new ObjectOutputStream(baos).writeObject(converter);
+		Converter<Object, byte[]> copy = (Converter<Object, byte[]>) new ObjectInputStream(
+				new ByteArrayInputStream(baos.toByteArray())).readObject();
+		Assert.assertEquals(value(0), copy.decode(encoded.get(0)));
+		Assert.assertEquals(value(999), copy.decode(encoded.get(999)));
+	}
+
+	private static String value(int i) {
+		return "element #" + i + " of a collection with highly compressible serialized content";
+	}
+
+	@SafeVarargs
+	private static <E> void assertRoundTrip(Class<E> cls, E... values) {
+		Converter<E, byte[]> converter = ConverterFactory.forClass(cls);
+		for (E value : values) {
+			byte[] data = converter.encode(value);
+			assertDeepEquals(value, converter.decode(data));
+			ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 10);
+			buffer.position(3);
+			buffer.put(data);
+			assertDeepEquals(value, ((BufferConverter<E>) converter).decode(buffer, 3, data.length));
+		}
+	}
+
+	private static void assertDeepEquals(Object expected, Object actual) {
+		Assert.assertTrue(expected + " != " + actual, Arrays.deepEquals(new Object[] { expected }, new Object[] { actual }));
+	}
+
+}
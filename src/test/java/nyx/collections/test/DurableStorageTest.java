@@ -0,0 +1,134 @@
+package nyx.collections.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import nyx.collections.NyxList;
+import nyx.collections.NyxMap;
+import nyx.collections.converter.ConverterFactory;
+import nyx.collections.storage.DurableByteStorage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DurableStorageTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReopen() throws Exception {
+		Path dir = folder.newFolder().toPath();
+		DurableByteStorage<Integer> ds = new DurableByteStorage<>(dir);
+		byte[] addme = new byte[1000];
+		for (int i = 0; i < 100; i++) {
+			Arrays.fill(addme, (byte) i);
+			ds.put(i, addme);
+		}
+		for (int i = 0; i < 50; i++)
+			ds.remove(i);
+		ds.update(99, new byte[] { 1, 2, 3 });
+		ds.close();
+
+		ds = new DurableByteStorage<>(dir);
+		assertEquals(50, ds.size());
+		for (int i = 50; i < 99; i++) {
+			Arrays.fill(addme, (byte) i);
+			assertArrayEquals(addme, ds.get(i));
+		}
+		assertArrayEquals(new byte[] { 1, 2, 3 }, ds.get(99));
+		// space of removed elements is reused after reopening
+		long reserved = ds.stats().getReservedBytes();
+		for (int i = 0; i < 50; i++)
+			ds.put(i, addme);
+		assertEquals(reserved, ds.stats().getReservedBytes());
+		ds.close();
+	}
+
+	@Test
+	public void testRecoverFromLog() throws Exception {
+		Path dir = folder.newFolder().toPath();
+		DurableByteStorage<String> ds = new DurableByteStorage<>(dir);
+		ds.put("a", new byte[] { 1 });
+		ds.checkpoint();
+		ds.put("b", new byte[] { 2 });
+		ds.update("a", new byte[] { 3, 3 });
+		ds.remove("b");
+		ds.put("c", new byte[] { 4 });
+		ds.flush();
+		// simulate a crash in the middle of a log record
+		Files.write(dir.resolve("index.log"), new byte[] { 0, 0, 0, 40, 1, 2 }, StandardOpenOption.APPEND);
+
+		DurableByteStorage<String> recovered = new DurableByteStorage<>(dir);
+		assertEquals(2, recovered.size());
+		assertArrayEquals(new byte[] { 3, 3 }, recovered.get("a"));
+		assertArrayEquals(new byte[] { 4 }, recovered.get("c"));
+		assertNull(recovered.get("b"));
+		recovered.put("d", new byte[] { 5 });
+		recovered.close();
+		assertArrayEquals(new byte[] { 5 }, new DurableByteStorage<String>(dir).get("d"));
+	}
+
+	@Test
+	public void testSegmentSizeFromLog() throws Exception {
+		Path dir = folder.newFolder().toPath();
+		DurableByteStorage<String> ds = new DurableByteStorage<>(dir, 8192, ConverterFactory.<String> get());
+		ds.put("a", new byte[10000]);
+		ds.flush();
+		// never checkpointed, the segment size is known only from the log
+		DurableByteStorage<String> recovered = new DurableByteStorage<>(dir);
+		assertArrayEquals(new byte[10000], recovered.get("a"));
+		recovered.close();
+	}
+
+	@Test(timeout = 60000)
+	public void testCheckpointInBackground() throws Exception {
+		Path dir = folder.newFolder().toPath();
+		Path log = dir.resolve("index.log");
+		DurableByteStorage<Integer> ds = new DurableByteStorage<>(dir);
+		ds.put(0, new byte[] { 0 });
+		long start = Files.size(log);
+		ds.update(0, new byte[] { 0 });
+		long record = Files.size(log) - start;
+		for (int i = 0; i < 100000; i++)
+			ds.update(0, new byte[] { (byte) i });
+		// the log is truncated by a checkpoint nobody asked for
+		while (Files.size(log) >= 100000L * record)
+			Thread.sleep(10);
+		assertTrue(Files.exists(dir.resolve("index")));
+		ds.close();
+	}
+
+	@Test
+	public void testCollections() throws Exception {
+		Path mapDir = folder.newFolder().toPath();
+		Path listDir = folder.newFolder().toPath();
+		Map<String, String> map = NyxMap.open(mapDir);
+		List<String> list = NyxList.open(listDir);
+		for (int i = 0; i < 1000; i++) {
+			map.put("key" + i, "value" + i);
+			list.add("value" + i);
+		}
+		((NyxMap<String, String>) map).close();
+		((NyxList<String>) list).close();
+
+		map = NyxMap.open(mapDir);
+		list = NyxList.open(listDir);
+		assertEquals(1000, map.size());
+		assertEquals(1000, list.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("value" + i, map.get("key" + i));
+			assertEquals("value" + i, list.get(i));
+		}
+		((NyxMap<String, String>) map).close();
+		((NyxList<String>) list).close();
+	}
+
+}
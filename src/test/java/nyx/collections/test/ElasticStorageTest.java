@@ -1,8 +1,17 @@
 package nyx.collections.test;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import nyx.collections.Const;
+import nyx.collections.converter.BufferConverter;
+import nyx.collections.converter.SerialConverter;
 import nyx.collections.storage.ElasticByteStorage;
+import nyx.collections.storage.MemoryStats;
+import nyx.collections.storage.OffHeapMemory;
 
 import org.junit.*;
 
@@ -21,6 +30,25 @@ public class ElasticStorageTest {
 		es.clear();
 	}
 
+	@Test
+	public void testIntKeys() {
+		ElasticByteStorage<Integer> direct = ElasticByteStorage.withIntKeys();
+		ElasticByteStorage<Integer> hashed = new ElasticByteStorage<>();
+		for (int i = 0; i < 1000; i++) {
+			direct.put(i, new byte[] { (byte) i });
+			hashed.put(i, new byte[] { (byte) i });
+		}
+		// int keys are read without boxing, other storages box them
+		for (int i = 0; i < 1000; i++) {
+			assertArrayEquals(new byte[] { (byte) i }, direct.get(i));
+			assertArrayEquals(new byte[] { (byte) i }, hashed.get(i));
+		}
+		assertNull(direct.get(1000));
+		assertNull(hashed.get(-1));
+		direct.clear();
+		hashed.clear();
+	}
+
 	@Test
 	public void testAppendBig() {
 		ElasticByteStorage<Integer> es = new ElasticByteStorage<>();
@@ -111,6 +139,310 @@ public class ElasticStorageTest {
 		es.clear();
 	}
 
+	@Test
+	public void testReuseRemoved() throws Exception {
+		ElasticByteStorage<Integer> es = new ElasticByteStorage<>();
+		byte[] addme = new byte[1000];
+		for (int i = 0; i < 20; i++) {
+			Arrays.fill(addme, (byte) i);
+			es.put(i, addme);
+		}
+		long reserved = es.stats().getReservedBytes();
+		long used = es.stats().getUsedBytes();
+		// the ends of the chunks skipped by elements which would straddle them
+		long skipped = es.stats().getFreeBytes();
+		// every chunk keeps some elements, so none is released
+		for (int i = 0; i < 20; i += 2)
+			es.remove(i);
+		assertEquals(skipped + used / 2, es.stats().getFreeBytes());
+		for (int i = 20; i < 30; i++) {
+			Arrays.fill(addme, (byte) i);
+			es.put(i, addme);
+		}
+		// removed extents are reused - no new chunks allocated
+		assertEquals(reserved, es.stats().getReservedBytes());
+		assertEquals(skipped, es.stats().getFreeBytes());
+		for (int i = 1; i < 30; i += i < 20 ? 2 : 1) {
+			Arrays.fill(addme, (byte) i);
+			assertArrayEquals(addme, es.get(i));
+		}
+		es.clear();
+	}
+
+	@Test
+	public void testCoalesceAndReleaseChunks() throws Exception {
+		// chunks of the same size, an element takes a quarter of a chunk
+		ElasticByteStorage<Integer> es = new ElasticByteStorage<>(Const._1Kb * 4, Const._1Kb * 4);
+		for (int i = 0; i < 40; i++)
+			es.put(i, new byte[1000]);
+		MemoryStats before = es.stats();
+		long record = before.getUsedBytes() / 40;
+		// neighbours are merged into one extent
+		es.remove(1);
+		es.remove(2);
+		assertEquals(before.getFreeExtents() + 1, es.stats().getFreeExtents());
+		assertEquals(2 * record, es.stats().getLargestFreeExtent());
+		es.remove(0);
+		assertEquals(before.getFreeExtents() + 1, es.stats().getFreeExtents());
+		assertEquals(3 * record, es.stats().getLargestFreeExtent());
+		// the empty chunk is released together with its free extents
+		es.remove(3);
+		assertEquals(before.getReservedBytes() - Const._1Kb * 4, es.stats().getReservedBytes());
+		assertEquals(before.getFreeBytes() - (Const._1Kb * 4 - 4 * record), es.stats().getFreeBytes());
+		for (int i = 40; i < 44; i++)
+			es.put(i, new byte[1000]);
+		assertEquals(before.getReservedBytes(), es.stats().getReservedBytes());
+		for (int i = 4; i < 44; i++)
+			assertEquals(1000, es.get(i).length);
+		es.clear();
+	}
+
+	@Test
+	public void testUpdateInPlace() throws Exception {
+		ElasticByteStorage<Integer> es = new ElasticByteStorage<>();
+		for (int i = 0; i < 20; i++)
+			es.put(i, new byte[1000]);
+		long reserved = es.stats().getReservedBytes();
+		long used = es.stats().getUsedBytes();
+		long skipped = es.stats().getFreeBytes();
+		byte[] smaller = new byte[600];
+		Arrays.fill(smaller, (byte) 7);
+		for (int i = 0; i < 20; i++)
+			assertEquals(1000, es.update(i, smaller).length);
+		assertEquals(reserved, es.stats().getReservedBytes());
+		assertEquals(used - 20 * 400, es.stats().getUsedBytes());
+		assertEquals(skipped + 20 * 400, es.stats().getFreeBytes());
+		for (int i = 0; i < 20; i++)
+			assertArrayEquals(smaller, es.get(i));
+		es.clear();
+	}
+
+	@Test
+	public void testIndex() throws Exception {
+		ElasticByteStorage<Integer> es = new ElasticByteStorage<>();
+		for (int i = 0; i < 100000; i++)
+			es.put(i, new byte[] { (byte) i, (byte) (i >> 8), (byte) (i >> 16) });
+		// removal shifts the colliding entries back
+		for (int i = 0; i < 100000; i += 2)
+			es.remove(i);
+		assertEquals(50000, es.size());
+		for (int i = 0; i < 100000; i++) {
+			byte[] value = es.get(i);
+			if (i % 2 == 0) assertNull(value);
+			else assertArrayEquals(new byte[] { (byte) i, (byte) (i >> 8), (byte) (i >> 16) }, value);
+		}
+		Set<Integer> keys = new HashSet<>(es.keySet());
+		assertEquals(50000, keys.size());
+		assertTrue(keys.contains(99999));
+		assertTrue(es.keySet().contains(1));
+		assertFalse(es.keySet().contains(2));
+		assertTrue(es.contains(new byte[] { 1, 0, 0 }));
+		assertFalse(es.contains(new byte[] { 2, 0, 0 }));
+		es.clear();
+		assertEquals(0, es.size());
+		assertNull(es.get(1));
+	}
+
+	@Test
+	public void testDecodeInPlace() throws Exception {
+		ElasticByteStorage<Integer> es = ElasticByteStorage.withIntKeys();
+		SerialConverter<String> converter = new SerialConverter<>();
+		char[] big = new char[10000];
+		Arrays.fill(big, 'x');
+		es.put(0, converter.encode("small"));
+		// spans several chunks
+		es.put(1, converter.encode(new String(big)));
+		assertEquals("small", es.get(0, converter));
+		assertEquals(new String(big), es.get(1, converter));
+		assertNull(es.get(2, converter));
+		es.clear();
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		// chunks of the same size, compaction releases whole chunks
+		ElasticByteStorage<Integer> es = new ElasticByteStorage<>(Const._1Kb * 4, Const._1Kb * 4);
+		byte[] addme = new byte[1000];
+		for (int i = 0; i < 200; i++) {
+			Arrays.fill(addme, (byte) i);
+			es.put(i, addme);
+		}
+		long reserved = es.stats().getReservedBytes();
+		for (int i = 0; i < 200; i++)
+			if (i % 4 != 0) es.remove(i);
+		es.compact();
+		assertTrue(es.stats().getReservedBytes() < reserved / 2);
+		for (int i = 0; i < 200; i += 4) {
+			Arrays.fill(addme, (byte) i);
+			assertArrayEquals(addme, es.get(i));
+		}
+		es.clear();
+		assertEquals(0, es.stats().getReservedBytes());
+	}
+
+	@Test
+	public void testConcurrentCompaction() throws Exception {
+		final ElasticByteStorage<Integer> es = new ElasticByteStorage<>();
+		for (int i = 0; i < 2000; i++)
+			es.put(i, new byte[] { (byte) i, (byte) (i >> 8), 1, 2, 3, 4, 5, 6, 7, 8 });
+		for (int i = 0; i < 2000; i++)
+			if (i % 3 != 0) es.remove(i);
+		final AtomicBoolean failed = new AtomicBoolean();
+		Thread reader = new Thread(new Runnable() {
+			@Override public void run() {
+				for (int n = 0; n < 50; n++)
+					for (int i = 0; i < 2000; i += 3) {
+						byte[] value = es.get(i);
+						if (value[0] != (byte) i || value[1] != (byte) (i >> 8)) failed.set(true);
+					}
+			}
+		});
+		reader.start();
+		es.compact();
+		reader.join();
+		assertFalse(failed.get());
+		es.clear();
+	}
+
+	/**
+	 * Writers carve records out of their own allocation buffers, the records
+	 * must not overlap.
+	 */
+	@Test
+	public void testConcurrentWriters() throws Exception {
+		final ElasticByteStorage<Integer> es = new ElasticByteStorage<>();
+		runWriters(es, 8, 5000);
+		assertEquals(8 * 5000, es.size());
+		for (int i = 0; i < 8 * 5000; i++) {
+			byte[] value = es.get(i);
+			assertEquals(i, ((value[0] & 0xff) << 16) | ((value[1] & 0xff) << 8) | (value[2] & 0xff));
+		}
+		for (int i = 0; i < 8 * 5000; i++) es.remove(i);
+		assertEquals(0, es.stats().getUsedBytes());
+		es.clear();
+	}
+
+	/**
+	 * Prints put and get throughput of a growing number of threads. Run
+	 * manually on a multi-core box: the throughput should scale with the
+	 * number of cores.
+	 */
+	@Ignore
+	@Test
+	public void testScaling() throws Exception {
+		int perThread = 200_000;
+		for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads <<= 1) {
+			final ElasticByteStorage<Integer> es = new ElasticByteStorage<>(Const._1Mb);
+			long started = System.nanoTime();
+			runWriters(es, threads, perThread);
+			long puts = System.nanoTime() - started;
+			final int count = threads * perThread;
+			started = System.nanoTime();
+			Thread[] readers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				readers[t] = new Thread(new Runnable() {
+					@Override public void run() {
+						for (int i = 0; i < count; i++) es.get(i);
+					}
+				});
+				readers[t].start();
+			}
+			for (Thread reader : readers) reader.join();
+			long gets = System.nanoTime() - started;
+			System.out.printf("%2d threads: %,12d puts/s %,12d gets/s%n", threads,
+					count * 1_000_000_000L / puts, (long) count * threads * 1_000_000_000L / gets);
+			es.close();
+		}
+	}
+
+	/**
+	 * Chunks double in size up to the maximum. Elements which fit into a chunk
+	 * never straddle two chunks, so they are decoded in place.
+	 */
+	@Test
+	public void testChunkGrowth() throws Exception {
+		ElasticByteStorage<Integer> es = new ElasticByteStorage<>(Const._1Kb * 4, Const._1Kb * 64);
+		byte[] addme = new byte[1000];
+		for (int i = 0; i < 1000; i++) {
+			Arrays.fill(addme, (byte) i);
+			es.put(i, addme);
+		}
+		MemoryStats stats = es.stats();
+		assertTrue(stats.getReservedBytes() >= stats.getUsedBytes());
+		assertTrue(stats.getReservedBytes() < stats.getUsedBytes() + Const._1Kb * 128);
+		BufferConverter<Byte> inPlace = new BufferConverter<Byte>() {
+			@Override public Byte decode(ByteBuffer buffer, int offset, int length) {
+				assertTrue(buffer.isDirect());
+				return buffer.get(offset + length - 1);
+			}
+			@Override public byte[] encode(Byte e) { throw new UnsupportedOperationException(); }
+			@Override public Byte decode(byte[] data) { throw new UnsupportedOperationException(); }
+		};
+		for (int i = 0; i < 1000; i++)
+			assertEquals((byte) i, (byte) es.get(i, inPlace));
+		@SuppressWarnings("unchecked")
+		ElasticByteStorage<Integer> copy = (ElasticByteStorage<Integer>) NyxListTest.deserialize(NyxListTest.serialize(es));
+		for (int i = 0; i < 1000; i++) {
+			Arrays.fill(addme, (byte) i);
+			assertArrayEquals(addme, copy.get(i));
+		}
+		copy.close();
+		es.close();
+	}
+
+	/**
+	 * Allocations over the off-heap budget fail or spill to a mapped file
+	 * depending on the policy, the memory is accounted per storage.
+	 */
+	@Test
+	public void testBudget() {
+		long budget = OffHeapMemory.budget();
+		OffHeapMemory.Policy policy = OffHeapMemory.policy();
+		ElasticByteStorage<Integer> es = new ElasticByteStorage<>();
+		try {
+			OffHeapMemory.budget(OffHeapMemory.reserved() + Const._1Kb * 64);
+			byte[] addme = new byte[Const._1Kb];
+			try {
+				for (int i = 0; i < 1000; i++) es.put(i, addme);
+				fail();
+			} catch (OffHeapMemory.Exhausted e) {
+				// expected
+			}
+			assertTrue(es.account().getReservedBytes() <= Const._1Kb * 64);
+			OffHeapMemory.policy(OffHeapMemory.Policy.SPILL);
+			for (int i = 0; i < 1000; i++) {
+				Arrays.fill(addme, (byte) i);
+				es.put(1000 + i, addme);
+			}
+			assertTrue(es.account().getSpilledBytes() > 0);
+			assertEquals(OffHeapMemory.spilled(), OffHeapMemory.stats().getSpilledBytes());
+			for (int i = 0; i < 1000; i++)
+				assertEquals((byte) i, es.get(1000 + i)[Const._1Kb - 1]);
+		} finally {
+			OffHeapMemory.budget(budget);
+			OffHeapMemory.policy(policy);
+			es.close();
+		}
+		assertEquals(0, es.account().getReservedBytes());
+		assertEquals(0, es.account().getSpilledBytes());
+	}
+
+	/** Each of the threads puts its own range of keys. */
+	private static void runWriters(final ElasticByteStorage<Integer> es, int threads, final int perThread) throws InterruptedException {
+		Thread[] writers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int first = t * perThread;
+			writers[t] = new Thread(new Runnable() {
+				@Override public void run() {
+					for (int i = first; i < first + perThread; i++)
+						es.put(i, new byte[] { (byte) (i >> 16), (byte) (i >> 8), (byte) i, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers) writer.join();
+	}
+
 	public static class Range<T extends Comparable<T>> {
 		T from;
 		T to;
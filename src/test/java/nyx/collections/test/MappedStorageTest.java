@@ -0,0 +1,92 @@
+package nyx.collections.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import nyx.collections.Const;
+import nyx.collections.NyxList;
+import nyx.collections.NyxMap;
+import nyx.collections.pool.ObjectPool.Type;
+import nyx.collections.storage.MappedByteStorage;
+
+import org.junit.Test;
+
+public class MappedStorageTest {
+
+	@Test
+	public void testRetrieve() throws Exception {
+		Path file = Files.createTempFile("nyx", ".test");
+		file.toFile().deleteOnExit();
+		MappedByteStorage<Integer> ms = new MappedByteStorage<>(file, Const._1Kb * 64);
+		byte[] addme = new byte[100 * 1024];
+		for (int i = 0; i < 20; i++) {
+			Arrays.fill(addme, (byte) i);
+			ms.put(i, addme);
+		}
+		assertTrue(Files.size(file) >= 20 * addme.length);
+		for (int i = 0; i < 20; i++) {
+			Arrays.fill(addme, (byte) i);
+			assertArrayEquals(addme, ms.get(i));
+		}
+		ms.clear();
+	}
+
+	@Test
+	public void testTemporaryFileDeleted() throws Exception {
+		Path tmp = Paths.get(System.getProperty("java.io.tmpdir"));
+		long before = countTemporary(tmp);
+		MappedByteStorage<Integer> ms = new MappedByteStorage<>();
+		ms.put(0, new byte[] { 1 });
+		assertEquals(before + 1, countTemporary(tmp));
+		ms.close();
+		assertEquals(before, countTemporary(tmp));
+	}
+
+	private static long countTemporary(Path dir) throws Exception {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "nyx*.dat")) {
+			long count = 0;
+			for (Iterator<Path> it = files.iterator(); it.hasNext(); it.next())
+				count++;
+			return count;
+		}
+	}
+
+	@Test
+	public void testSerialization() throws Exception {
+		MappedByteStorage<Integer> ms = new MappedByteStorage<>();
+		for (int i = 0; i < 20; i++)
+			ms.put(i, new byte[] { (byte) i });
+		@SuppressWarnings("unchecked")
+		MappedByteStorage<Integer> ms2 = (MappedByteStorage<Integer>) NyxListTest
+				.deserialize(NyxListTest.serialize(ms));
+		ms.clear();
+		for (int i = 0; i < 20; i++)
+			assertArrayEquals(new byte[] { (byte) i }, ms2.get(i));
+		ms2.clear();
+	}
+
+	@Test
+	public void testCollections() {
+		List<String> list = new NyxList<>(new MappedByteStorage<Integer>(), Type.WEAK);
+		Map<String, String> map = new NyxMap<>(new MappedByteStorage<String>());
+		for (int i = 0; i < 1000; i++) {
+			list.add("test" + i);
+			map.put("test" + i, "value" + i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("test" + i, list.get(i));
+			assertEquals("value" + i, map.get("test" + i));
+		}
+		list.clear();
+		map.clear();
+	}
+
+}
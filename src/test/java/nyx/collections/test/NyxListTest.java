@@ -12,11 +12,13 @@ import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import nyx.collections.Const;
 import nyx.collections.NyxList;
 import nyx.collections.pool.ObjectPool.Type;
+import nyx.collections.storage.OffHeapMemory;
 
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -164,6 +166,74 @@ public class NyxListTest {
 		Assert.assertTrue(notFound.isEmpty());
 	}
 
+	@Test
+	public void testInsertRemoveSet() throws Exception {
+		List<String> list = new NyxList<>();
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			list.add("v" + i);
+			expected.add("v" + i);
+		}
+		for (int i = 0; i < 300; i++) {
+			Assert.assertEquals(expected.remove(i * 2), list.remove(i * 2));
+			// removed ids are reused by the insertions
+			list.add(i, "n" + i);
+			expected.add(i, "n" + i);
+		}
+		Assert.assertEquals(expected.set(500, "s"), list.set(500, "s"));
+		Assert.assertEquals(expected.size(), list.size());
+		for (int i = 0; i < expected.size(); i++)
+			Assert.assertEquals(expected.get(i), list.get(i));
+		Assert.assertTrue(list.remove("s"));
+		Assert.assertFalse(list.contains("s"));
+	}
+
+	@Test
+	public void testListIterator() throws Exception {
+		List<String> list = new NyxList<>();
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			list.add("v" + i);
+			expected.add("v" + i);
+		}
+		ListIterator<String> it = list.listIterator(), ex = expected.listIterator();
+		while (it.hasNext()) {
+			Assert.assertEquals(ex.nextIndex(), it.nextIndex());
+			String next = it.next();
+			Assert.assertEquals(ex.next(), next);
+			if (next.equals("v2")) {
+				it.remove();
+				ex.remove();
+			} else if (next.equals("v4")) {
+				it.set("s");
+				ex.set("s");
+			} else if (next.equals("v6")) {
+				it.add("a");
+				ex.add("a");
+			}
+		}
+		Assert.assertEquals(expected, list);
+		while (it.hasPrevious()) {
+			Assert.assertEquals(ex.previousIndex(), it.previousIndex());
+			String previous = it.previous();
+			Assert.assertEquals(ex.previous(), previous);
+			if (previous.equals("v8")) {
+				it.remove();
+				ex.remove();
+			}
+		}
+		Assert.assertEquals(expected, list);
+		it.remove();
+		ex.remove();
+		Assert.assertEquals(expected, list);
+		try {
+			it.remove();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// nothing returned since the last removal
+		}
+	}
+
 	@Test
 	public void testConcurrent() throws Exception {
 		int nThreads = 100;
@@ -195,6 +265,23 @@ public class NyxListTest {
 		Assert.assertTrue(aTotal == total);
 	}
 	
+	/**
+	 * Closing a list releases its direct memory right away, the collection
+	 * stays usable after it is cleared.
+	 */
+	@Test
+	public void testClose() {
+		long reserved = OffHeapMemory.reserved();
+		NyxList<String> list = new NyxList<>();
+		String value = randomStr(1000, "a");
+		for (int i = 0; i < 4000; i++) list.add(value);
+		list.clear();
+		for (int i = 0; i < 4000; i++) list.add(value);
+		Assert.assertEquals(value, list.get(3999));
+		list.close();
+		Assert.assertTrue(OffHeapMemory.reserved() <= reserved);
+	}
+
 	public static byte[] serialize(Object obj) throws IOException {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		ObjectOutputStream os = new ObjectOutputStream(out);
@@ -1,5 +1,6 @@
 package nyx.collections.test;
 
+import java.util.Iterator;
 import java.util.Set;
 
 import nyx.collections.NyxSet;
@@ -14,5 +15,42 @@ public class NyxSetTest {
 		Set<String> test = new NyxSet<String>() {{ add("test1"); add("test1"); }};
 		Assert.assertEquals(test.size(), 1);
 	}
+
+	/** Building a large set takes linear time as nothing is decoded. */
+	@Test
+	public void testAddContainsRemove() {
+		NyxSet<String> set = new NyxSet<>();
+		int n = 100000;
+		for (int i = 0; i < n; i++) Assert.assertTrue(set.add("e" + i));
+		for (int i = 0; i < n; i += 7) Assert.assertFalse(set.add("e" + i));
+		Assert.assertEquals(n, set.size());
+		Assert.assertTrue(set.contains("e" + (n - 1)));
+		Assert.assertFalse(set.contains("e" + n));
+		for (int i = 0; i < n; i += 2) Assert.assertTrue(set.remove("e" + i));
+		Assert.assertFalse(set.remove("e0"));
+		Assert.assertEquals(n / 2, set.size());
+		Assert.assertFalse(set.contains("e2"));
+		Assert.assertTrue(set.contains("e3"));
+		Assert.assertEquals(0, set.metrics().getDecodeCount());
+		set.close();
+	}
+
+	@Test
+	public void testIterator() {
+		NyxSet<Integer> set = new NyxSet<>();
+		for (int i = 0; i < 100; i++) set.add(i);
+		int sum = 0;
+		for (Iterator<Integer> it = set.iterator(); it.hasNext();) {
+			int e = it.next();
+			sum += e;
+			if (e % 2 == 0) it.remove();
+		}
+		Assert.assertEquals(4950, sum);
+		Assert.assertEquals(50, set.size());
+		Assert.assertFalse(set.contains(10));
+		set.clear();
+		Assert.assertTrue(set.isEmpty());
+		set.close();
+	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,285 @@
+package nyx.collections.test;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import nyx.collections.converter.Converter;
+import nyx.collections.metrics.Histogram;
+import nyx.collections.metrics.Metrics;
+import nyx.collections.pool.BoundedCache;
+import nyx.collections.pool.CacheStats;
+import nyx.collections.pool.ObjectPool;
+import nyx.collections.pool.ObjectPool.Type;
+import nyx.collections.pool.PoolMetrics;
+import nyx.collections.storage.ElasticByteStorage;
+import nyx.collections.vm.Housekeeper;
+
+import org.junit.Test;
+
+public class ObjectPoolTest {
+
+	/**
+	 * Puts more elements than the write-behind queue holds and reads them
+	 * back while they are being stored.
+	 */
+	@Test
+	public void testWriteBehind() {
+		ObjectPool<Integer, String> pool = new ObjectPool<>(Type.NONE, new ElasticByteStorage<Integer>());
+		for (int i = 0; i < 20000; i++) {
+			pool.put(i, "value " + i);
+			assertEquals("value " + i, pool.get(i));
+		}
+		assertEquals(20000, pool.size());
+		for (int i = 0; i < 20000; i++)
+			assertEquals("value " + i, pool.get(i));
+		pool.close();
+	}
+
+	/**
+	 * A batch which cannot be stored stays readable, the failure is rethrown
+	 * and the elements are stored once the storage works again.
+	 */
+	@Test
+	public void testFailedBatchIsKept() {
+		final AtomicBoolean broken = new AtomicBoolean(true);
+		Converter<String, byte[]> converter = new Converter<String, byte[]>() {
+			@Override
+			public byte[] encode(String from) {
+				if (broken.get()) throw new IllegalStateException("broken");
+				return from.getBytes(StandardCharsets.UTF_8);
+			}
+			@Override
+			public String decode(byte[] to) {
+				return to != null ? new String(to, StandardCharsets.UTF_8) : null;
+			}
+		};
+		ObjectPool<Integer, String> pool = new ObjectPool<>(Type.NONE, new ElasticByteStorage<Integer>(), converter);
+		int accepted = 0;
+		try {
+			// put rethrows the failure as soon as a batch has failed
+			for (; accepted < 100; accepted++)
+				pool.put(accepted, "value " + accepted);
+			pool.size();
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		for (int i = 0; i < accepted; i++)
+			assertEquals("value " + i, pool.get(i));
+		broken.set(false);
+		assertEquals(accepted, pool.size());
+		for (int i = 0; i < accepted; i++)
+			assertEquals("value " + i, pool.get(i));
+		pool.close();
+	}
+
+	/** Elements which are not stored yet can be updated and removed. */
+	@Test
+	public void testPendingUpdate() {
+		ObjectPool<Integer, String> pool = new ObjectPool<>(Type.NONE, new ElasticByteStorage<Integer>());
+		for (int i = 0; i < 1000; i++) {
+			pool.put(i, "value " + i);
+			if (i % 2 == 0) assertEquals("value " + i, pool.remove(i));
+			else pool.update(i, "updated " + i);
+		}
+		assertEquals(500, pool.size());
+		for (int i = 1; i < 1000; i += 2)
+			assertEquals("updated " + i, pool.get(i));
+		pool.close();
+	}
+
+	/** Clearing while elements are put must not leave the stored count behind. */
+	@Test(timeout = 60000)
+	public void testClearWhilePutting() throws InterruptedException {
+		final ObjectPool<Integer, String> pool = new ObjectPool<>(Type.NONE, new ElasticByteStorage<Integer>());
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			final int first = t * 100000;
+			writers[t] = new Thread(new Runnable() {
+				@Override public void run() {
+					for (int i = first; i < first + 50000; i++) pool.put(i, "value " + i);
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers)
+			while (writer.isAlive()) pool.clear();
+		pool.size();
+		pool.clear();
+		assertEquals(0, pool.size());
+		pool.close();
+	}
+
+	/**
+	 * Updates elements while batches are encoded by several threads, the last
+	 * value of a key must win.
+	 */
+	@Test
+	public void testParallelEncoders() {
+		ObjectPool<Integer, String> pool = new ObjectPool<>(Type.NONE, new ElasticByteStorage<Integer>(), 4);
+		for (int i = 0; i < 10000; i++) {
+			pool.put(i, "value " + i);
+			if (i % 3 == 0) pool.update(i, "updated " + i);
+		}
+		assertEquals(10000, pool.size());
+		for (int i = 0; i < 10000; i++)
+			assertEquals((i % 3 == 0 ? "updated " : "value ") + i, pool.get(i));
+		pool.close();
+	}
+
+	/**
+	 * The bounded tier keeps its size and a frequently read hot set survives
+	 * a scan over cold elements.
+	 */
+	@Test
+	public void testBoundedCache() {
+		ObjectPool<Integer, String> pool = new ObjectPool<>(new ElasticByteStorage<Integer>(),
+				new BoundedCache<Integer, String>(100));
+		for (int i = 0; i < 2000; i++) pool.put(i, "value " + i);
+		assertEquals(2000, pool.size());
+		for (int round = 0; round < 10; round++)
+			for (int i = 0; i < 50; i++) assertEquals("value " + i, pool.get(i));
+		for (int i = 1000; i < 2000; i++) assertEquals("value " + i, pool.get(i));
+		CacheStats before = pool.cacheStats();
+		assertTrue(before.getSize() <= 100);
+		assertTrue(before.getEvictions() > 0);
+		for (int i = 0; i < 50; i++) assertEquals("value " + i, pool.get(i));
+		CacheStats after = pool.cacheStats();
+		assertTrue(after.getHits() - before.getHits() >= 45);
+		assertEquals(before.getHits() + before.getMisses() + 50, after.getHits() + after.getMisses());
+		pool.close();
+	}
+
+	/** A decoded element is kept by the reference type of the pool. */
+	@Test
+	public void testSoftMiss() {
+		CountingConverter converter = new CountingConverter();
+		ObjectPool<Integer, String> pool = new ObjectPool<>(Type.SOFT, new ElasticByteStorage<Integer>(), converter);
+		pool.put(1, "value");
+		pool.update(1, "updated");
+		assertEquals("updated", pool.get(1));
+		System.gc();
+		assertEquals("updated", pool.get(1));
+		assertEquals(1, converter.decodes.get());
+		pool.close();
+	}
+
+	/** Concurrent misses on a key decode it once. */
+	@Test
+	public void testSingleFlight() throws Exception {
+		CountingConverter converter = new CountingConverter();
+		assertSingleFlight(new ObjectPool<>(new ElasticByteStorage<Integer>(), converter, 1,
+				new BoundedCache<Integer, String>(100)), converter);
+		converter = new CountingConverter();
+		assertSingleFlight(new ObjectPool<>(Type.SOFT, new ElasticByteStorage<Integer>(), converter), converter);
+	}
+
+	private static void assertSingleFlight(final ObjectPool<Integer, String> pool, CountingConverter converter)
+			throws InterruptedException {
+		pool.put(1, "value");
+		pool.update(1, "updated");
+		converter.delay = true;
+		Thread[] readers = new Thread[8];
+		final AtomicInteger failures = new AtomicInteger();
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					if (!"updated".equals(pool.get(1))) failures.incrementAndGet();
+				}
+			});
+			readers[i].start();
+		}
+		for (Thread reader : readers) reader.join();
+		assertEquals(0, failures.get());
+		assertEquals(1, converter.decodes.get());
+		pool.close();
+	}
+
+	/** Pools share the housekeeping threads instead of starting their own. */
+	@Test
+	public void testSharedWorkers() {
+		int threads = Thread.activeCount();
+		List<ObjectPool<Integer, String>> pools = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			ObjectPool<Integer, String> pool = new ObjectPool<>(Type.SOFT, new ElasticByteStorage<Integer>());
+			pool.put(i, "value " + i);
+			pools.add(pool);
+		}
+		for (int i = 0; i < 100; i++) {
+			assertEquals(1, pools.get(i).size());
+			assertEquals("value " + i, pools.get(i).get(i));
+		}
+		// housekeeping and storing threads
+		assertTrue(Thread.activeCount() - threads <= Housekeeper.THREADS * 2);
+		for (ObjectPool<Integer, String> pool : pools) pool.close();
+	}
+
+	/** Counts decoded elements, optionally slowing decoding down. */
+	static class CountingConverter implements Converter<String, byte[]> {
+		final AtomicInteger decodes = new AtomicInteger();
+		volatile boolean delay;
+
+		@Override
+		public byte[] encode(String from) {
+			return from.getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public String decode(byte[] to) {
+			if (to == null) return null;
+			decodes.incrementAndGet();
+			if (delay) try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return new String(to, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Metrics count hits, misses, encodes and decodes, and are registered as
+	 * an MBean until the pool is closed.
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+		ObjectPool<Integer, String> pool = new ObjectPool<>(Type.NONE, new ElasticByteStorage<Integer>());
+		pool.expose("ObjectPoolTest");
+		for (int i = 0; i < 100; i++) pool.put(i, "value " + i);
+		assertEquals(100, pool.size());
+		for (int i = 0; i < 100; i++) assertEquals("value " + i, pool.get(i));
+		PoolMetrics metrics = pool.metrics();
+		assertEquals(100, metrics.getEncodeCount());
+		assertEquals(100, metrics.getDecodeCount());
+		assertEquals(100, metrics.getCacheMisses());
+		assertEquals(0, metrics.getWriteBehindQueueDepth());
+		assertTrue(metrics.getOffHeapUsedBytes() > 0);
+		assertTrue(metrics.getDecodeP99Nanos() >= metrics.getDecodeP50Nanos());
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Set<ObjectName> names = server.queryNames(new ObjectName(Metrics.DOMAIN + ":type=ObjectPoolTest,*"), null);
+		assertEquals(1, names.size());
+		assertEquals(100L, server.getAttribute(names.iterator().next(), "CacheMisses"));
+		pool.close();
+		assertTrue(server.queryNames(new ObjectName(Metrics.DOMAIN + ":type=ObjectPoolTest,*"), null).isEmpty());
+
+		Histogram h = new Histogram();
+		for (int i = 1; i <= 100; i++) h.record(i);
+		assertEquals(100, h.getCount());
+		assertEquals(50.5, h.getMean(), 0.001);
+		assertEquals(63, h.getPercentile(0.5));
+		assertEquals(127, h.getPercentile(0.99));
+		assertEquals(127, h.getMax());
+	}
+
+}
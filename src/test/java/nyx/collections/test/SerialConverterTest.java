@@ -1,9 +1,15 @@
 package nyx.collections.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Arrays;
+import java.util.Date;
 
 import nyx.collections.Const;
 import nyx.collections.Acme;
+import nyx.collections.converter.ClassDictionary;
 import nyx.collections.converter.SerialConverter;
 
 import org.hamcrest.core.IsEqual;
@@ -33,4 +39,28 @@ public class SerialConverterTest {
 		Assert.assertNotNull(converter.encode(ba));
 	}
 
+	/**
+	 * Verifies that elements encoded with a {@link ClassDictionary} are
+	 * smaller and can be decoded by a deserialized copy of the converter.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testDictionary() throws Exception {
+		SerialConverter<Object> plain = new SerialConverter<>();
+		SerialConverter<Object> converter = new SerialConverter<>(new ClassDictionary());
+		Date date = new Date(42);
+		byte[] encoded = converter.encode(date);
+		Assert.assertTrue(encoded.length * 2 < plain.encode(date).length);
+		Assert.assertEquals(date, converter.decode(encoded));
+		Assert.assertArrayEquals(encoded, converter.encode(date));
+		byte[] list = converter.encode(Arrays.asList(date, 1L));
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new ObjectOutputStream(baos).writeObject(converter);
+		SerialConverter<Object> copy = (SerialConverter<Object>) new ObjectInputStream(
+				new ByteArrayInputStream(baos.toByteArray())).readObject();
+		Assert.assertEquals(date, copy.decode(encoded));
+		Assert.assertEquals(Arrays.asList(date, 1L), copy.decode(list));
+	}
+
 }